@@ -0,0 +1,102 @@
+package com.chat.bench;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal benchmark runner: warm-up iterations, then timed iterations reported as mean ns/op with the
+ * spread between iterations. The result of every operation is stored to a field so the JIT cannot
+ * drop the measured work. Configured with {@code -Dchat.bench.warmup}, {@code chat.bench.iterations},
+ * {@code chat.bench.millis} and a {@code chat.bench.filter} regex on benchmark names.
+ */
+public class Harness {
+    private final static int MAX_BATCH = 1024;
+
+    public interface Operation {
+        Object invoke() throws Exception;
+    }
+
+    private final int warmupIterations;
+    private final int iterations;
+    private final long iterationNanos;
+    private final Pattern filter;
+    private Object last;
+    private volatile Object sink;
+
+    public Harness(int warmupIterations, int iterations, long iterationMillis, String filter) {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.iterationNanos = TimeUnit.MILLISECONDS.toNanos(iterationMillis);
+        this.filter = Pattern.compile(filter);
+    }
+
+    public static Harness fromProperties() {
+        int warmup = Integer.getInteger("chat.bench.warmup", 3);
+        int iterations = Integer.getInteger("chat.bench.iterations", 5);
+        long millis = Long.getLong("chat.bench.millis", 1000);
+        String filter = System.getProperty("chat.bench.filter", ".*");
+        return new Harness(warmup, iterations, millis, filter);
+    }
+
+    public boolean isSelected(String name) {
+        return filter.matcher(name).find();
+    }
+
+    /**
+     * Runs one benchmark and prints {@code name ns/op +- spread ops/s}; {@code unitsPerOp} scales the
+     * throughput column, e.g. bytes per operation for transfer benchmarks.
+     */
+    public void run(String name, long unitsPerOp, String unit, Operation operation) throws Exception {
+        if (!isSelected(name)) {
+            return;
+        }
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(operation);
+        }
+        double[] nanosPerOp = new double[iterations];
+        double mean = 0;
+        for (int i = 0; i < iterations; i++) {
+            nanosPerOp[i] = iteration(operation);
+            mean += nanosPerOp[i] / iterations;
+        }
+        double variance = 0;
+        for (double value : nanosPerOp) {
+            variance += (value - mean) * (value - mean) / Math.max(1, iterations - 1);
+        }
+        double perSecond = 1e9 / mean * unitsPerOp;
+        System.out.println(String.format(Locale.ROOT, "%-40s %14.1f ns/op +- %8.1f  %16.1f %s/s",
+                name, mean, Math.sqrt(variance), perSecond, unit));
+    }
+
+    public void run(String name, Operation operation) throws Exception {
+        run(name, 1, "ops", operation);
+    }
+
+    /**
+     * Prints one value measured by a scenario that does not fit the timed loop, such as the heap held by
+     * thousands of connections; the scenario checks {@link #isSelected} itself.
+     */
+    public void report(String name, double value, String unit) {
+        System.out.println(String.format(Locale.ROOT, "%-40s %14.1f %s", name, value, unit));
+    }
+
+    private double iteration(Operation operation) throws Exception {
+        long operations = 0;
+        int batch = 1;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < batch; i++) {
+                last = operation.invoke();
+            }
+            operations += batch;
+            elapsed = System.nanoTime() - start;
+            if (batch < MAX_BATCH && elapsed < iterationNanos / 100) {
+                batch *= 2;
+            }
+        } while (elapsed < iterationNanos);
+        sink = last;
+        return (double) elapsed / operations;
+    }
+}
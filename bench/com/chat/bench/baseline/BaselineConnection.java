@@ -0,0 +1,75 @@
+package com.chat.bench.baseline;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The blocking connection of the original chat, copied unchanged apart from its name so the benchmarks
+ * measure the reader thread and the synchronized writer the current transports replaced.
+ */
+public class BaselineConnection {
+    private final Socket socket;
+    private final Thread rxThread;
+    private final BufferedReader in;
+    private final BufferedWriter out;
+    private final BaselineConnectionListener listener;
+
+    public BaselineConnection(BaselineConnectionListener listener, Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        this.listener = listener;
+        this.rxThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.onConnectionReady(BaselineConnection.this);
+                    while (!rxThread.isInterrupted()) {
+                        String msg = in.readLine();
+                        if (msg.charAt(0) == '`') {
+                            listener.onReceiveCommand(BaselineConnection.this, msg);
+                        } else {
+                            listener.onReceiveString(BaselineConnection.this, msg);
+                        }
+                    }
+
+                } catch (IOException e){
+                    listener.onException(BaselineConnection.this, e);
+                } finally {
+                    listener.onDisconnect(BaselineConnection.this);
+                }
+            }
+        });
+        rxThread.start();
+
+    }
+
+    public BaselineConnection(BaselineConnectionListener listener, String ipAddress, int port) throws IOException{
+        this(listener, new Socket(ipAddress, port));
+    }
+
+    public synchronized void sendMessage(String msg) {
+        try {
+            out.write(msg + "\r\n");
+            out.flush();
+        } catch (IOException e) {
+            listener.onException(BaselineConnection.this, e);
+            disconnect();
+        }
+    }
+
+    public synchronized void disconnect() {
+        rxThread.interrupt();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            listener.onException(BaselineConnection.this, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TCPConnection: " + socket.getInetAddress() + ": " + socket.getPort();
+    }
+}
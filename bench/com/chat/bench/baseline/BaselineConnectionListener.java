@@ -0,0 +1,14 @@
+package com.chat.bench.baseline;
+
+import java.io.IOException;
+
+/**
+ * The connection listener of the original chat, unchanged apart from its name.
+ */
+public interface BaselineConnectionListener {
+    void onConnectionReady(BaselineConnection connection) throws IOException;
+    void onReceiveString(BaselineConnection connection, String msg);
+    void onDisconnect(BaselineConnection connection);
+    void onException(BaselineConnection connection, Exception e);
+    void onReceiveCommand(BaselineConnection connection, String command) throws IOException;
+}
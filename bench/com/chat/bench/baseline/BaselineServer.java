@@ -0,0 +1,78 @@
+package com.chat.bench.baseline;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The message path of the original chat server: the connection list guarded by the server monitor,
+ * fan-out by writing to every connection in turn and the subnet check on accept. The method bodies are
+ * copied unchanged except that nothing is printed to the console, and the settings window that asked
+ * for the network and mask is replaced by constructor arguments.
+ */
+public class BaselineServer implements BaselineConnectionListener {
+    private final String network;
+    private final String mask;
+
+    private final ArrayList<BaselineConnection> connections;
+
+    public BaselineServer(String network, String mask) {
+        this.network = network;
+        this.mask = mask;
+        this.connections = new ArrayList<>();
+    }
+
+    public synchronized int size() {
+        return connections.size();
+    }
+
+    @Override
+    public synchronized void onConnectionReady(BaselineConnection connection) throws IOException {
+        connections.add(connection);
+        sendToEveryConnection("Client connected: " + connection);
+    }
+
+    @Override
+    public synchronized void onReceiveString(BaselineConnection connection, String msg) {
+        sendToEveryConnection(msg);
+    }
+
+    @Override
+    public synchronized void onDisconnect(BaselineConnection connection) {
+        connections.remove(connection);
+        sendToEveryConnection("Client disconnected: " + connection);
+    }
+
+    @Override
+    public synchronized void onException(BaselineConnection connection, Exception e) {
+    }
+
+    @Override
+    public void onReceiveCommand(BaselineConnection connection, String command) {
+    }
+
+    private void sendToEveryConnection(String msg) {
+        for (BaselineConnection connection : connections) {
+            connection.sendMessage(msg);
+        }
+    }
+
+    public boolean checkNewConnection(Socket socket) throws SocketException {
+        String address = socket.getInetAddress().toString();
+        address = address.substring(1);
+        ArrayList<String> addressArray = new ArrayList<String>(Arrays.asList(address.split("\\.")));
+        ArrayList<String> maskArray = new ArrayList<String>(Arrays.asList(mask.split("\\.")));
+        StringBuilder result = new StringBuilder();
+
+        for (int i = 0; i < 4; i++) {
+            int a = Integer.parseInt(addressArray.get(i));
+            int b = Integer.parseInt(maskArray.get(i));
+
+            result.append(a & b).append(".");
+        }
+        result.deleteCharAt(result.length() - 1);
+        return result.toString().equals(network);
+    }
+}
@@ -0,0 +1,66 @@
+package com.chat.bench.baseline;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * An unconnected socket over in-memory streams, so a {@link BaselineConnection} can be driven without
+ * the kernel in the way. Reads block until the socket is closed when no input is given, and fail once
+ * it is closed either way, which ends the connection's reader thread like a closed socket would.
+ */
+public class StreamSocket extends Socket {
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private final InputStream in;
+    private final OutputStream out;
+
+    public StreamSocket(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    public StreamSocket(OutputStream out) {
+        this(null, out);
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (in == null) {
+                    try {
+                        closed.await();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (closed.getCount() == 0) {
+                    throw new SocketException("Socket closed");
+                }
+                return in.read(buffer, offset, length);
+            }
+        };
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed.countDown();
+        super.close();
+    }
+}
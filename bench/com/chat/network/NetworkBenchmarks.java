@@ -0,0 +1,532 @@
+package com.chat.network;
+
+import com.chat.bench.Harness;
+import com.chat.bench.baseline.BaselineConnection;
+import com.chat.bench.baseline.BaselineConnectionListener;
+import com.chat.bench.baseline.StreamSocket;
+import com.chat.metrics.Histogram;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the wire protocol and file transfer paths: frame encoding and the incremental frame decoder
+ * in line and binary mode, both against the original blocking connection they replaced, frame compression, and
+ * checksummed range transfers over loopback, from disk and from a resident copy. The throughput scenarios
+ * stream {@code chat.bench.messages} messages down one connection and report messages per second and messages
+ * per write call; {@code chat.write.batch} is read once per JVM, so run the suite once with it and once
+ * without. The connection scenarios hold {@code chat.bench.connections} (10000) connections, blocking ones
+ * served by platform or virtual reader threads or selector ones on an event loop group, and report accept
+ * latency, heap and threads, then echo round trips and rate while {@code chat.bench.active} of them are busy;
+ * they need twice that many file descriptors.
+ */
+class NetworkBenchmarks {
+    private final static int DECODE_BATCH = 64;
+    private final static int TRANSFER_SIZE = 8 * FileTransfer.CHUNK_SIZE;
+    private final static int CONNECTIONS = Integer.getInteger("chat.bench.connections", 10000);
+    private final static int ACTIVE = Integer.getInteger("chat.bench.active", 100);
+    private final static long LOAD_MILLIS = Long.getLong("chat.bench.loadMillis", 5000);
+    private final static int MESSAGES = Integer.getInteger("chat.bench.messages", 500000);
+    private final static long QUEUED_LIMIT = 512 * 1024;
+    private final static String MESSAGE = "User: the quick brown fox jumps over the lazy dog, message from the local chat";
+
+    public static void main(String[] args) throws Exception {
+        Harness harness = Harness.fromProperties();
+        encode(harness);
+        decode(harness);
+        compression(harness);
+        transfer(harness, false, false);
+        transfer(harness, true, false);
+        transfer(harness, false, true);
+        transfer(harness, true, true);
+        throughput(harness, false);
+        throughput(harness, true);
+        connections(harness, WorkerPool.Mode.PLATFORM);
+        connections(harness, WorkerPool.Mode.VIRTUAL);
+        connections(harness, null);
+    }
+
+    private static void encode(Harness harness) throws Exception {
+        BaselineConnection baseline = new BaselineConnection(new CountingListener(new Semaphore(0)),
+                new StreamSocket(OutputStream.nullOutputStream()));
+        try {
+            harness.run("protocol.encode.string", new Harness.Operation() {
+                @Override
+                public Object invoke() {
+                    baseline.sendMessage(MESSAGE);
+                    return baseline;
+                }
+            });
+        } finally {
+            baseline.disconnect();
+        }
+        harness.run("protocol.encode.text", new Harness.Operation() {
+            @Override
+            public Object invoke() {
+                return Protocol.TEXT.encodeText(MESSAGE);
+            }
+        });
+        harness.run("protocol.encode.binary", new Harness.Operation() {
+            @Override
+            public Object invoke() {
+                return Protocol.BINARY.encodeSequenced(42, MESSAGE);
+            }
+        });
+    }
+
+    private static void decode(Harness harness) throws Exception {
+        decodeString(harness);
+        for (Protocol protocol : Protocol.values()) {
+            ByteBuffer frames = ByteBuffer.allocate(DECODE_BATCH * (MESSAGE.length() + 64));
+            for (int i = 0; i < DECODE_BATCH; i++) {
+                frames.put(i % 8 == 0 ? protocol.encodeCommand("`GET_LIST`0`200`") : protocol.encodeText(MESSAGE));
+            }
+            frames.flip();
+            FrameDecoder decoder = new FrameDecoder();
+            int[] decoded = new int[1];
+            FrameDecoder.Sink sink = new FrameDecoder.Sink() {
+                @Override
+                public void onFrame(byte type, long sequence, String payload) {
+                    if (type == Protocol.TYPE_COMMAND) {
+                        decoded[0] += payload.split("`").length;
+                    } else {
+                        decoded[0] += payload.length();
+                    }
+                }
+            };
+            harness.run("protocol.decode." + protocol.name().toLowerCase() + ".x" + DECODE_BATCH, DECODE_BATCH, "frames",
+                    new Harness.Operation() {
+                        @Override
+                        public Object invoke() throws IOException {
+                            decoder.decode(frames.duplicate(), sink);
+                            return decoded;
+                        }
+                    });
+        }
+    }
+
+    /**
+     * The connection the frame decoder replaced, its reader thread reading the same mix of messages and
+     * commands from a stream that repeats them. Each operation lets one batch through and waits for the
+     * thread to dispatch it, so the figure includes one thread handoff per batch.
+     */
+    private static void decodeString(Harness harness) throws Exception {
+        String name = "protocol.decode.string.x" + DECODE_BATCH;
+        if (!harness.isSelected(name)) {
+            return;
+        }
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        for (int i = 0; i < DECODE_BATCH; i++) {
+            lines.writeBytes(((i % 8 == 0 ? "`GET_LIST`0`200`" : MESSAGE) + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] cycle = lines.toByteArray();
+        Semaphore cycles = new Semaphore(0);
+        InputStream repeating = new InputStream() {
+            private int position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                read(one, 0, 1);
+                return one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (position == 0) {
+                    try {
+                        cycles.acquire();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                int count = Math.min(length, cycle.length - position);
+                System.arraycopy(cycle, position, buffer, offset, count);
+                position = (position + count) % cycle.length;
+                return count;
+            }
+        };
+        Semaphore batches = new Semaphore(0);
+        CountingListener listener = new CountingListener(batches);
+        BaselineConnection baseline = new BaselineConnection(listener,
+                new StreamSocket(repeating, OutputStream.nullOutputStream()));
+        try {
+            harness.run(name, DECODE_BATCH, "frames", new Harness.Operation() {
+                @Override
+                public Object invoke() throws InterruptedException {
+                    cycles.release();
+                    batches.acquire();
+                    return listener;
+                }
+            });
+        } finally {
+            baseline.disconnect();
+        }
+    }
+
+    /**
+     * Does the same work per frame as the decoder sink, splitting commands and measuring messages, and
+     * signals every full batch.
+     */
+    private static class CountingListener implements BaselineConnectionListener {
+        private final Semaphore batches;
+        private long frames;
+        private long decoded;
+
+        CountingListener(Semaphore batches) {
+            this.batches = batches;
+        }
+
+        @Override
+        public void onConnectionReady(BaselineConnection connection) {
+        }
+
+        @Override
+        public void onReceiveString(BaselineConnection connection, String msg) {
+            decoded += msg.length();
+            received();
+        }
+
+        @Override
+        public void onDisconnect(BaselineConnection connection) {
+        }
+
+        @Override
+        public void onException(BaselineConnection connection, Exception e) {
+        }
+
+        @Override
+        public void onReceiveCommand(BaselineConnection connection, String command) {
+            decoded += command.split("`").length;
+            received();
+        }
+
+        private void received() {
+            if (++frames % DECODE_BATCH == 0) {
+                batches.release();
+            }
+        }
+    }
+
+    private static void compression(Harness harness) throws Exception {
+        byte[] frame = Protocol.BINARY.encodeText(MESSAGE + " " + MESSAGE);
+        byte[] compressed = Compression.compressFrame(frame);
+        harness.run("compression.frame.deflate", frame.length, "bytes", new Harness.Operation() {
+            @Override
+            public Object invoke() {
+                return Compression.compressFrame(frame);
+            }
+        });
+        harness.run("compression.frame.inflate", frame.length, "bytes", new Harness.Operation() {
+            @Override
+            public Object invoke() throws IOException {
+                return Compression.inflateFrame(compressed, Protocol.HEADER_SIZE,
+                        compressed.length - Protocol.HEADER_SIZE);
+            }
+        });
+    }
+
+    private static void transfer(Harness harness, boolean compress, boolean resident) throws Exception {
+        String name = "transfer.loopback." + (compress ? "deflate" : "raw") + (resident ? ".resident" : "");
+        if (!harness.isSelected(name)) {
+            return;
+        }
+        Path directory = Files.createTempDirectory("chat-bench");
+        Path source = directory.resolve("source.bin");
+        Path target = directory.resolve("target.bin");
+        byte[] content = new byte[TRANSFER_SIZE];
+        if (compress) {
+            byte[] text = MESSAGE.getBytes();
+            for (int i = 0; i < content.length; i++) {
+                content[i] = text[i % text.length];
+            }
+        } else {
+            new Random(1).nextBytes(content);
+        }
+        Files.write(source, content);
+        ResidentFile cached = resident ? ResidentFile.load(source, TRANSFER_SIZE) : null;
+        ServerSocketChannel server = ServerSocketChannel.open()
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        SocketChannel sender = SocketChannel.open(server.getLocalAddress());
+        try (server;
+             SocketChannel receiver = server.accept();
+             FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                     StandardOpenOption.WRITE);
+             ChunkLog log = ChunkLog.open(target, TRANSFER_SIZE)) {
+            Thread receiving = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            FileTransfer.receiveRange(out, 0, TRANSFER_SIZE, receiver, log);
+                        }
+                    } catch (IOException e) {
+                        // sender closed
+                    }
+                }
+            }, "bench-receiver");
+            receiving.start();
+            harness.run(name, TRANSFER_SIZE, "bytes", new Harness.Operation() {
+                @Override
+                public Object invoke() throws IOException {
+                    return resident ? FileTransfer.sendRange(cached, 0, TRANSFER_SIZE, sender, compress)
+                            : FileTransfer.sendRange(in, 0, TRANSFER_SIZE, sender, compress);
+                }
+            });
+            sender.close();
+            receiving.join();
+            log.delete();
+        } finally {
+            sender.close();
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(target);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /**
+     * Sends {@code chat.bench.messages} text messages through one blocking or selector connection to a peer
+     * that drains the socket, and times them until the last frame is written. The sender only waits while
+     * more than {@code QUEUED_LIMIT} bytes are queued, so the disconnecting backpressure policy never trips
+     * and the queue stays deep enough for batching to show.
+     */
+    private static void throughput(Harness harness, boolean nio) throws Exception {
+        String name = "throughput." + (nio ? "nio" : "blocking") + "."
+                + (Boolean.getBoolean("chat.write.batch") ? "batched" : "unbatched");
+        if (!harness.isSelected(name)) {
+            return;
+        }
+        EventLoopGroup eventLoops = nio ? new EventLoopGroup() : null;
+        Semaphore ready = new Semaphore(0);
+        TCPConnectionListener listener = new TCPConnectionListener() {
+            @Override
+            public void onConnectionReady(TCPConnection connection) {
+                ready.release();
+            }
+
+            @Override
+            public void onReceiveString(TCPConnection connection, String msg) {
+            }
+
+            @Override
+            public void onDisconnect(TCPConnection connection) {
+            }
+
+            @Override
+            public void onException(TCPConnection connection, Exception e) {
+                System.out.println(name + " failed: " + e);
+            }
+
+            @Override
+            public void onReceiveCommand(TCPConnection connection, String command) {
+            }
+        };
+        TCPConnection connection = null;
+        try (ServerSocketChannel server = ServerSocketChannel.open()
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             Socket peer = new Socket(InetAddress.getLoopbackAddress(),
+                     ((InetSocketAddress) server.getLocalAddress()).getPort())) {
+            SocketChannel accepted = server.accept();
+            connection = nio ? new TCPConnection(listener, accepted, eventLoops)
+                    : new TCPConnection(listener, accepted.socket());
+            Thread draining = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[64 * 1024];
+                    try {
+                        while (peer.getInputStream().read(buffer) >= 0) {
+                            // discard
+                        }
+                    } catch (IOException e) {
+                        // connection closed
+                    }
+                }
+            }, "bench-drain");
+            draining.start();
+            ready.acquire();
+            long frames = connection.framesWritten();
+            long writes = connection.writeCalls();
+            long start = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                while (connection.queuedBytes() > QUEUED_LIMIT) {
+                    Thread.onSpinWait();
+                }
+                connection.sendText(MESSAGE);
+            }
+            while (connection.framesWritten() - frames < MESSAGES) {
+                Thread.onSpinWait();
+            }
+            long elapsed = System.nanoTime() - start;
+            harness.report(name + ".rate", MESSAGES * 1e9 / elapsed, "msgs/s");
+            harness.report(name + ".batch", (double) MESSAGES / (connection.writeCalls() - writes), "msgs/write");
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            if (eventLoops != null) {
+                eventLoops.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Connects {@code chat.bench.connections} connections one after another, timing each from the client's
+     * connect until the server side reports ready, then measures the heap they hold after a GC. Blocking
+     * connections get reader threads of {@code mode}; with no mode they use the selector transport. Platform
+     * reader threads also cost a native stack each, which shows in the thread count, not the heap. The load
+     * phase then runs on top of the idle set.
+     */
+    private static void connections(Harness harness, WorkerPool.Mode mode) throws Exception {
+        String name = "connections." + (mode == null ? "nio" : mode.name().toLowerCase()) + "." + CONNECTIONS;
+        if (!harness.isSelected(name)) {
+            return;
+        }
+        if (mode == WorkerPool.Mode.VIRTUAL && !new NamedThreadFactory("bench-probe", true).isVirtual()) {
+            System.out.println(name + " skipped, this JDK has no virtual threads");
+            return;
+        }
+        long heapBefore = heapAfterGc();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        WorkerPool readers = mode == null ? null : new WorkerPool("bench-reader", mode, CONNECTIONS);
+        EventLoopGroup eventLoops = mode == null ? new EventLoopGroup() : null;
+        Semaphore ready = new Semaphore(0);
+        TCPConnectionListener listener = new TCPConnectionListener() {
+            @Override
+            public void onConnectionReady(TCPConnection connection) {
+                ready.release();
+            }
+
+            @Override
+            public void onReceiveString(TCPConnection connection, String msg) {
+                connection.sendText(msg);
+            }
+
+            @Override
+            public void onDisconnect(TCPConnection connection) {
+            }
+
+            @Override
+            public void onException(TCPConnection connection, Exception e) {
+            }
+
+            @Override
+            public void onReceiveCommand(TCPConnection connection, String command) {
+            }
+        };
+        Histogram accept = new Histogram();
+        List<Socket> clients = new ArrayList<>(CONNECTIONS);
+        List<TCPConnection> connections = new ArrayList<>(CONNECTIONS);
+        try (ServerSocketChannel server = ServerSocketChannel.open()
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), CONNECTIONS)) {
+            InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+            for (int i = 0; i < CONNECTIONS; i++) {
+                long start = System.nanoTime();
+                clients.add(new Socket(address.getAddress(), address.getPort()));
+                SocketChannel accepted = server.accept();
+                connections.add(mode == null ? new TCPConnection(listener, accepted, eventLoops)
+                        : new TCPConnection(listener, accepted.socket(), readers));
+                ready.acquire();
+                accept.recordSince(start);
+            }
+            long heap = heapAfterGc() - heapBefore;
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+            harness.report(name + ".accept.p50", accept.percentile(50) / 1e3, "us");
+            harness.report(name + ".accept.p99", accept.percentile(99) / 1e3, "us");
+            harness.report(name + ".heap", heap / (1024.0 * 1024), "MiB");
+            harness.report(name + ".heap.per.connection", (double) heap / CONNECTIONS, "bytes");
+            harness.report(name + ".platform.threads", threads, "threads");
+            load(harness, name, clients);
+        } finally {
+            for (TCPConnection connection : connections) {
+                connection.disconnect();
+            }
+            for (Socket client : clients) {
+                client.close();
+            }
+            if (readers != null) {
+                readers.shutdown();
+            } else {
+                eventLoops.shutdown();
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (ManagementFactory.getThreadMXBean().getThreadCount() > threadsBefore
+                    && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * Keeps every connection open while {@code chat.bench.active} (100) of them send a message and wait
+     * for the server to echo it back, each from its own client thread, for {@code chat.bench.loadMillis}.
+     * Reports the round trip percentiles and the echoes per second the server sustains next to the idle set.
+     */
+    private static void load(Harness harness, String name, List<Socket> clients) throws Exception {
+        int active = Math.min(ACTIVE, clients.size());
+        Histogram roundTrips = new Histogram();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LOAD_MILLIS);
+        byte[] line = (MESSAGE + "\r\n").getBytes(StandardCharsets.UTF_8);
+        List<Thread> senders = new ArrayList<>(active);
+        for (int i = 0; i < active; i++) {
+            Socket client = clients.get(i * clients.size() / active);
+            Thread sender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        BufferedReader in = new BufferedReader(
+                                new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+                        OutputStream out = client.getOutputStream();
+                        while (System.nanoTime() < deadline) {
+                            long start = System.nanoTime();
+                            out.write(line);
+                            if (in.readLine() == null) {
+                                return;
+                            }
+                            roundTrips.recordSince(start);
+                        }
+                    } catch (IOException e) {
+                        System.out.println(name + " sender failed: " + e);
+                    }
+                }
+            }, "bench-sender-" + i);
+            sender.start();
+            senders.add(sender);
+        }
+        long start = System.nanoTime();
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        harness.report(name + ".load.rtt.p50", roundTrips.percentile(50) / 1e3, "us");
+        harness.report(name + ".load.rtt.p99", roundTrips.percentile(99) / 1e3, "us");
+        harness.report(name + ".load.rate", roundTrips.count() * 1e9 / elapsed, "msgs/s");
+    }
+
+    private static long heapAfterGc() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
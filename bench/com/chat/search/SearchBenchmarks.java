@@ -0,0 +1,125 @@
+package com.chat.search;
+
+import com.chat.bench.Harness;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Benchmarks for the search index: adding messages, and term, conjunction, prefix and phrase queries
+ * over {@code chat.bench.search.docs} (a million by default) generated messages with a skewed vocabulary,
+ * most of them in merged segment files.
+ */
+class SearchBenchmarks {
+    private final static int DOCS = Integer.getInteger("chat.bench.search.docs", 1_000_000);
+    private final static int VOCABULARY = 20000;
+    private final static int LIMIT = 50;
+    private final static String[] QUERIES = {"search.query.common", "search.query.rare", "search.query.and",
+            "search.query.prefix", "search.query.phrase", "search.query.phrase.common"};
+
+    public static void main(String[] args) throws Exception {
+        Harness harness = Harness.fromProperties();
+        String[] words = vocabulary(new Random(7));
+        add(harness, words);
+        query(harness, words);
+    }
+
+    private static void add(Harness harness, String[] words) throws Exception {
+        if (!harness.isSelected("search.add")) {
+            return;
+        }
+        Path directory = Files.createTempDirectory("chat-bench-search");
+        SearchIndex index = new SearchIndex(directory);
+        Random random = new Random(1);
+        long[] doc = new long[1];
+        try {
+            harness.run("search.add", new Harness.Operation() {
+                @Override
+                public Object invoke() {
+                    return index.add(++doc[0], message(random, words));
+                }
+            });
+        } finally {
+            index.close();
+            delete(directory);
+        }
+    }
+
+    private static void query(Harness harness, String[] words) throws Exception {
+        boolean selected = false;
+        for (String name : QUERIES) {
+            selected |= harness.isSelected(name);
+        }
+        if (!selected) {
+            return;
+        }
+        Path directory = Files.createTempDirectory("chat-bench-search");
+        SearchIndex index = new SearchIndex(directory);
+        Random random = new Random(1);
+        String sample = null;
+        for (int doc = 1; doc <= DOCS; doc++) {
+            String text = message(random, words);
+            index.add(doc, text);
+            if (doc == DOCS / 3) {
+                sample = text;
+            }
+        }
+        index.close();
+        index = new SearchIndex(directory);
+        String[] sampleWords = sample.split(" ");
+        try {
+            String[] queries = {words[0], words[VOCABULARY - 1], words[5] + " " + words[1],
+                    words[10].substring(0, 2) + "*", "\"" + sampleWords[1] + " " + sampleWords[2] + "\"",
+                    "\"" + words[0] + " " + words[1] + "\""};
+            for (int i = 0; i < QUERIES.length; i++) {
+                query(harness, index, QUERIES[i], queries[i]);
+            }
+        } finally {
+            index.close();
+            delete(directory);
+        }
+    }
+
+    private static void query(Harness harness, SearchIndex index, String name, String query) throws Exception {
+        harness.run(name, new Harness.Operation() {
+            @Override
+            public Object invoke() {
+                return index.search(query, LIMIT);
+            }
+        });
+    }
+
+    private static String[] vocabulary(Random random) {
+        String[] words = new String[VOCABULARY];
+        for (int i = 0; i < words.length; i++) {
+            char[] word = new char[3 + random.nextInt(6)];
+            for (int j = 0; j < word.length; j++) {
+                word[j] = (char) ('a' + random.nextInt(26));
+            }
+            words[i] = new String(word);
+        }
+        return words;
+    }
+
+    private static String message(Random random, String[] words) {
+        StringBuilder message = new StringBuilder("User:");
+        int length = 4 + random.nextInt(12);
+        for (int i = 0; i < length; i++) {
+            int rank = (int) Math.min(words.length - 1, Math.abs(random.nextGaussian() * words.length / 6));
+            message.append(' ').append(words[rank]);
+        }
+        return message.toString();
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+}
@@ -0,0 +1,235 @@
+package com.chat.server;
+
+import com.chat.bench.Harness;
+import com.chat.bench.baseline.BaselineConnection;
+import com.chat.bench.baseline.BaselineServer;
+import com.chat.network.EventLoopGroup;
+import com.chat.network.TCPConnection;
+import com.chat.network.TCPConnectionListener;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Benchmarks for the server side of a message: the access check on accept and room fan-out to
+ * 1, 16, 256 and 1024 NIO connections whose peers drain and discard everything over loopback, each
+ * next to the same work done by the original server code in {@code com.chat.bench.baseline}.
+ */
+class ServerBenchmarks {
+    private final static int[] FAN_OUT = {1, 16, 256, 1024};
+    private final static String MESSAGE = "User: the quick brown fox jumps over the lazy dog, message from the local chat";
+
+    public static void main(String[] args) throws Exception {
+        Harness harness = Harness.fromProperties();
+        access(harness);
+        for (int recipients : FAN_OUT) {
+            broadcast(harness, recipients);
+            broadcastBaseline(harness, recipients);
+        }
+    }
+
+    private static void access(Harness harness) throws Exception {
+        Path rules = Files.createTempFile("chat-bench", ".rules");
+        Files.write(rules, List.of("allow 10.0.0.0/8", "deny 10.66.0.0/16", "allow 192.168.0.0/24",
+                "allow 2001:db8::/32"));
+        AccessFilter filter = new AccessFilter(rules, Long.MAX_VALUE / 1_000_000_000L, Long.MAX_VALUE / 1_000_000_000L,
+                true);
+        try {
+            InetAddress allowed = InetAddress.getByName("192.168.0.107");
+            InetAddress denied = InetAddress.getByName("10.66.1.2");
+            InetAddress ipv6 = InetAddress.getByName("2001:db8::7");
+            harness.run("access.accept.allowed", new Harness.Operation() {
+                @Override
+                public Object invoke() {
+                    return filter.accept(allowed);
+                }
+            });
+            harness.run("access.accept.denied", new Harness.Operation() {
+                @Override
+                public Object invoke() {
+                    return filter.accept(denied);
+                }
+            });
+            harness.run("access.accept.ipv6", new Harness.Operation() {
+                @Override
+                public Object invoke() {
+                    return filter.accept(ipv6);
+                }
+            });
+            BaselineServer baseline = new BaselineServer("192.168.0.0", "255.255.255.0");
+            Socket socket = new Socket() {
+                @Override
+                public InetAddress getInetAddress() {
+                    return allowed;
+                }
+            };
+            harness.run("access.accept.baseline", new Harness.Operation() {
+                @Override
+                public Object invoke() throws IOException {
+                    return baseline.checkNewConnection(socket);
+                }
+            });
+        } finally {
+            filter.close();
+            Files.deleteIfExists(rules);
+        }
+    }
+
+    private static void broadcast(Harness harness, int recipients) throws Exception {
+        String name = "broadcast.fanout." + recipients;
+        if (!harness.isSelected(name)) {
+            return;
+        }
+        BroadcastEngine engine = new BroadcastEngine();
+        EventLoopGroup eventLoops = new EventLoopGroup();
+        List<SocketChannel> peers = new ArrayList<>();
+        Selector drain = Selector.open();
+        TCPConnectionListener listener = new TCPConnectionListener() {
+            @Override
+            public void onConnectionReady(TCPConnection connection) {
+                engine.register(connection);
+            }
+
+            @Override
+            public void onReceiveString(TCPConnection connection, String msg) {
+            }
+
+            @Override
+            public void onDisconnect(TCPConnection connection) {
+                engine.unregister(connection);
+            }
+
+            @Override
+            public void onException(TCPConnection connection, Exception e) {
+            }
+
+            @Override
+            public void onReceiveCommand(TCPConnection connection, String command) {
+            }
+        };
+        try (ServerSocketChannel server = ServerSocketChannel.open()
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), recipients)) {
+            for (int i = 0; i < recipients; i++) {
+                SocketChannel peer = SocketChannel.open(server.getLocalAddress());
+                peer.configureBlocking(false);
+                peers.add(peer);
+                new TCPConnection(listener, server.accept(), eventLoops);
+            }
+            for (SocketChannel peer : peers) {
+                peer.register(drain, SelectionKey.OP_READ);
+            }
+            Thread draining = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain(drain);
+                }
+            }, "bench-drain");
+            draining.start();
+            while (engine.size() < recipients) {
+                Thread.sleep(10);
+            }
+            long[] sequence = new long[1];
+            harness.run(name, recipients, "deliveries", new Harness.Operation() {
+                @Override
+                public Object invoke() {
+                    engine.broadcast(++sequence[0], MESSAGE);
+                    return sequence;
+                }
+            });
+            drain.close();
+            draining.join();
+        } finally {
+            drain.close();
+            for (SocketChannel peer : peers) {
+                peer.close();
+            }
+            eventLoops.shutdown();
+        }
+    }
+
+    /**
+     * The same fan-out through the original server: one blocking connection and reader thread per
+     * recipient, written in turn under the server monitor.
+     */
+    private static void broadcastBaseline(Harness harness, int recipients) throws Exception {
+        String name = "broadcast.fanout." + recipients + ".baseline";
+        if (!harness.isSelected(name)) {
+            return;
+        }
+        BaselineServer baseline = new BaselineServer("127.0.0.0", "255.0.0.0");
+        List<BaselineConnection> connections = new ArrayList<>();
+        List<SocketChannel> peers = new ArrayList<>();
+        Selector drain = Selector.open();
+        try (ServerSocket server = new ServerSocket(0, recipients, InetAddress.getLoopbackAddress())) {
+            for (int i = 0; i < recipients; i++) {
+                SocketChannel peer = SocketChannel.open(server.getLocalSocketAddress());
+                peer.configureBlocking(false);
+                peers.add(peer);
+                connections.add(new BaselineConnection(baseline, server.accept()));
+            }
+            for (SocketChannel peer : peers) {
+                peer.register(drain, SelectionKey.OP_READ);
+            }
+            Thread draining = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain(drain);
+                }
+            }, "bench-drain");
+            draining.start();
+            while (baseline.size() < recipients) {
+                Thread.sleep(10);
+            }
+            harness.run(name, recipients, "deliveries", new Harness.Operation() {
+                @Override
+                public Object invoke() {
+                    baseline.onReceiveString(null, MESSAGE);
+                    return baseline;
+                }
+            });
+            for (BaselineConnection connection : connections) {
+                connection.disconnect();
+            }
+            drain.close();
+            draining.join();
+        } finally {
+            drain.close();
+            for (SocketChannel peer : peers) {
+                peer.close();
+            }
+        }
+    }
+
+    private static void drain(Selector selector) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (selector.isOpen()) {
+                selector.select(100);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    buffer.clear();
+                    if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                        key.cancel();
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // selector closed
+        }
+    }
+}
@@ -1,46 +1,105 @@
 package com.chat.client;
 
+import com.chat.metrics.Counter;
+import com.chat.metrics.Log;
+import com.chat.metrics.Metrics;
+import com.chat.network.ChunkLog;
+import com.chat.network.Compression;
+import com.chat.network.FileTransfer;
+import com.chat.network.NamedThreadFactory;
 import com.chat.network.TCPConnection;
 import com.chat.network.TCPConnectionListener;
+import com.chat.network.WorkerPool;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.AdjustmentListener;
 import java.io.*;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Scanner;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.IntConsumer;
 
 public class ClientWindow extends JFrame implements ActionListener, TCPConnectionListener {
     private static final String SERVER_IP = "192.168.0.107";
     private static final String USERNAME = "User";
     private static final String DOWNLOAD_DIRECTORY = "D:/Загрузка";
     private static final String LOG_PATH = "D:/LocalUserChat/UserStory.txt";
+    private static final String HISTORY_DIRECTORY = "D:/LocalUserChat/History";
+    private static final int HISTORY_PAGE = 200;
+    private static final int MAX_LINES = 5000;
     private static final int PORT = 7777;
-    public static final int FILE_DISPATCH_PORT = 11111;
-    public static final int FILE_RECEPTION_PORT = 22222;
-    public static final int FILE_SIZE = 5242880;
+    public static final int TRANSFER_PORT = 11111;
+    public static final int TRANSFER_STREAMS = Integer.getInteger("chat.transfer.streams", 4);
     public static final int WIDTH = 600;
     public static final int HEIGHT = 400;
+    private static final int METRICS_PORT = Integer.getInteger("chat.metrics.port", 0);
+    private static final Log LOG = Log.get("client");
+    private static final Counter DUPLICATES = Metrics.counter("dedup.dropped");
 
     private final JTextArea area;
+    private final MessageRenderer renderer;
     private final JTextField nicknameField;
     private final JTextField inputField;
     private final JButton sendButton;
     private final JButton downloadButton;
 
+    private final WorkerPool transferWorkers;
+    private final ExecutorService historyLoader;
+    private final Set<String> rooms;
+    private final DedupWindow seen;
+
     private TCPConnection connection;
+    private FileListWindow fileList;
+    private String username;
+    private char[] password;
+    private volatile boolean authenticated;
+    private HistoryStore history;
+    private HistorySearch search;
+    private String clientId;
+    private long oldestShown;
+    private boolean storyLoaded;
+    private boolean loadingOlder;
 
     private ClientWindow() {
         area = new JTextArea();
+        renderer = new MessageRenderer(area, MAX_LINES, new IntConsumer() {
+            @Override
+            public void accept(int entries) {
+                oldestShown += entries;
+            }
+        });
         nicknameField = new JTextField(USERNAME);
         inputField = new JTextField();
         sendButton = new JButton("Send file");
         downloadButton = new JButton("Get file");
+        transferWorkers = WorkerPool.fromProperties("file-transfer", 8);
+        historyLoader = Executors.newSingleThreadExecutor(new NamedThreadFactory("history-loader", false));
+        rooms = ConcurrentHashMap.newKeySet();
+        seen = new DedupWindow();
 
         setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
         setSize(WIDTH, HEIGHT);
@@ -51,7 +110,16 @@ public class ClientWindow extends JFrame implements ActionListener, TCPConnectio
         area.setEditable(false);
         area.setLineWrap(true);
         inputField.addActionListener(this);
-        add(new JScrollPane(area), BorderLayout.CENTER);
+        JScrollPane scrollPane = new JScrollPane(area);
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(new AdjustmentListener() {
+            @Override
+            public void adjustmentValueChanged(AdjustmentEvent e) {
+                if (!e.getValueIsAdjusting() && e.getValue() == 0) {
+                    loadOlderStory();
+                }
+            }
+        });
+        add(scrollPane, BorderLayout.CENTER);
         add(nicknameField, BorderLayout.NORTH);
         add(inputField, BorderLayout.SOUTH);
 
@@ -64,20 +132,64 @@ public class ClientWindow extends JFrame implements ActionListener, TCPConnectio
                 fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
                 int result = fileChooser.showOpenDialog(ClientWindow.this);
                 if (result == JFileChooser.APPROVE_OPTION) {
-                    connection.sendMessage("`UPLOAD`" + fileChooser.getSelectedFile().getAbsolutePath());
+                    File file = fileChooser.getSelectedFile();
+                    try {
+                        transferWorkers.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    String hash = FileTransfer.sha256(file.toPath());
+                                    connection.sendMessage("`UPLOAD`" + file.getAbsolutePath() + "`" + file.length() + "`" + hash);
+                                } catch (IOException e) {
+                                    printMessage("Upload failed: " + e.getMessage());
+                                }
+                            }
+                        });
+                    } catch (RejectedExecutionException ex) {
+                        printMessage("Too many transfers running, try again later");
+                    }
                 }
             }
         });
         downloadButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                connection.sendMessage("`GET_LIST`");
+                if (fileList == null) {
+                    fileList = new FileListWindow(connection);
+                }
+                fileList.open();
             }
         });
         add(sendButton, BorderLayout.EAST);
         add(downloadButton, BorderLayout.WEST);
 
         setVisible(true);
+        try {
+            history = new HistoryStore(Paths.get(HISTORY_DIRECTORY));
+            importLegacyStory();
+            seen.seed(history.lastSequence());
+            clientId = loadClientId(Paths.get(HISTORY_DIRECTORY, "client.id"));
+            search = new HistorySearch(history, Paths.get(HISTORY_DIRECTORY, "Index"));
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        search.close();
+                        history.close();
+                    } catch (IOException e) {
+                        LOG.warn("history.close.failed", "error", e);
+                    }
+                }
+            }));
+        } catch (IOException e) {
+            printMessage("History exception: " + e);
+        }
+        Metrics.gauge("render.pending", renderer::pendingCount);
+        Metrics.gauge("render.edt.nanos.last.second", renderer::edtNanosLastSecond);
+        Metrics.gauge("compression.raw.bytes", Compression::rawBytes);
+        Metrics.gauge("compression.wire.bytes", Compression::wireBytes);
+        Metrics.export("client", METRICS_PORT);
+        askCredentials();
         try {
             connection = new TCPConnection(this, SERVER_IP, PORT);
 
@@ -97,11 +209,29 @@ public class ClientWindow extends JFrame implements ActionListener, TCPConnectio
 
     @Override
     public void actionPerformed(ActionEvent e) {
-        System.out.println(e.getSource());
         String msg = inputField.getText();
         if (!msg.equals("")) {
             inputField.setText("");
-            connection.sendMessage(nicknameField.getText() + ": " + msg);
+            if (msg.startsWith("/join ")) {
+                connection.sendCommand("`JOIN`" + msg.substring("/join ".length()).trim());
+            } else if (msg.startsWith("/leave ")) {
+                connection.sendCommand("`LEAVE`" + msg.substring("/leave ".length()).trim());
+            } else if (msg.startsWith("/msg ")) {
+                String[] parts = msg.substring("/msg ".length()).trim().split(" ", 2);
+                if (parts.length < 2) {
+                    printMessage("Usage: /msg <user> <text>");
+                } else {
+                    connection.sendCommand("`MSG`" + parts[0] + "`" + parts[1]);
+                }
+            } else if (msg.startsWith("/search ")) {
+                searchHistory(msg.substring("/search ".length()).trim());
+            } else if (msg.startsWith("/search-server ")) {
+                connection.sendCommand("`SEARCH`" + msg.substring("/search-server ".length()).trim());
+            } else if (authenticated) {
+                connection.sendText(msg);
+            } else {
+                connection.sendText(nicknameField.getText() + ": " + msg);
+            }
         }
     }
 
@@ -109,17 +239,46 @@ public class ClientWindow extends JFrame implements ActionListener, TCPConnectio
     public void onConnectionReady(TCPConnection connection) throws IOException {
         updateStory();
         printMessage("Connection ready...");
+        if (username != null) {
+            connection.sendCommand("`AUTH`" + username + "`" + new String(password));
+        }
+        for (String room : rooms) {
+            connection.sendCommand("`JOIN`" + room);
+        }
+    }
+
+    /**
+     * Only binary frames carry sequences, so the gap since the last stored message is asked for once the
+     * server's HELLO switched the connection over.
+     */
+    @Override
+    public void onProtocolNegotiated(TCPConnection connection) {
+        if (history != null) {
+            connection.sendCommand("`SYNC`" + history.lastSequence() + "`" + clientId);
+        }
     }
 
     @Override
     public void onReceiveString(TCPConnection connection, String msg) {
+        long sequence = connection.currentSequence();
+        if (!seen.firstSeen(sequence)) {
+            DUPLICATES.increment();
+            return;
+        }
         String text = "<" + new SimpleDateFormat("dd/MM/yyyy HH:mm:ss").format(Calendar.getInstance().getTime()) + ">" + msg;
-        printMessage(text);
-        try (FileWriter fw = new FileWriter(LOG_PATH, true)) {
-            fw.write(text + "\n");
-        } catch (IOException e) {
-            e.printStackTrace();
+        boolean stored = false;
+        if (history != null) {
+            try {
+                long index = history.append(System.currentTimeMillis(), sequence, text);
+                stored = true;
+                if (search != null) {
+                    search.append(index, msg);
+                }
+            } catch (IOException e) {
+                LOG.warn("history.append.failed", "error", e);
+            }
         }
+        renderer.enqueue(text, stored);
     }
 
     @Override
@@ -134,128 +293,281 @@ public class ClientWindow extends JFrame implements ActionListener, TCPConnectio
 
     @Override
     public void onReceiveCommand(TCPConnection connection, String command) throws IOException {
-        ArrayList<String> commandByParts = new ArrayList<String>(Arrays.asList(command.split("`")));
-        switch (commandByParts.get(1)) {
-            case "UPLOAD" -> sendFileToServer(commandByParts.get(2));
-            case "GET_LIST" -> {
-                DefaultListModel<String> list = new DefaultListModel<>();
-                for (int i = 2; i < commandByParts.size(); i++) {
-                    list.add(0, commandByParts.get(i));
+        String[] commandByParts = command.split("`");
+        switch (commandByParts[1]) {
+            case "UPLOAD" -> {
+                long id = Long.parseLong(commandByParts[2]);
+                String filePath = commandByParts[3];
+                long offset = Long.parseLong(commandByParts[4]);
+                try {
+                    transferWorkers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendFileToServer(id, filePath, offset);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    printMessage("Too many transfers running, upload of " + filePath + " cancelled");
                 }
-                JFrame listFrame = new JFrame("Server files list");
-                listFrame.setSize(300, 300);
-                listFrame.setLocationRelativeTo(null);
-                listFrame.setAlwaysOnTop(true);
-                JList<String> filesList = new JList<String>(list);
-                filesList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-                JButton selectButton = new JButton("Select");
-                listFrame.add(filesList, BorderLayout.CENTER);
-                listFrame.add(selectButton, BorderLayout.SOUTH);
-                selectButton.addActionListener(new ActionListener() {
+            }
+            case "AUTH" -> {
+                authenticated = true;
+                SwingUtilities.invokeLater(new Runnable() {
                     @Override
-                    public void actionPerformed(ActionEvent e) {
-                        String result = filesList.getSelectedValue();
-                        connection.sendMessage("`DOWNLOAD`" + result);
-                        listFrame.dispose();
+                    public void run() {
+                        nicknameField.setText(commandByParts[2]);
+                        nicknameField.setEditable(false);
                     }
                 });
-                listFrame.setVisible(true);
+                printMessage("Logged in as " + commandByParts[2]);
+            }
+            case "AUTH_FAILED" -> {
+                authenticated = false;
+                printMessage("Login failed for " + (commandByParts.length > 2 ? commandByParts[2] : "") + ", messages are sent as a guest");
             }
+            case "JOIN" -> {
+                rooms.add(commandByParts[2]);
+                printMessage("Joined room " + commandByParts[2]);
+            }
+            case "LEAVE" -> {
+                rooms.remove(commandByParts[2]);
+                printMessage("Left room " + commandByParts[2]);
+            }
+            case "SEARCH_RESULT" -> {
+                String[] result = command.split("`", 5);
+                printMessage("[" + result[3] + "] " + result[4]);
+            }
+            case "SEARCH_DONE" -> printMessage("Server search: " + commandByParts[2] + " found");
+            case "UPLOAD_DONE" -> printMessage("File " + commandByParts[2] + " uploaded as " + commandByParts[3]);
+            case "UPLOAD_FAILED" -> printMessage("Upload of " + commandByParts[2] + " failed"
+                    + (commandByParts.length > 3 ? ": " + commandByParts[3] : ""));
+            case "DOWNLOAD_FAILED" -> printMessage("Download of " + commandByParts[2] + " failed"
+                    + (commandByParts.length > 3 ? ": " + commandByParts[3] : ""));
+            case "GET_LIST" -> SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    fileList.onPage(commandByParts);
+                }
+            });
+            case "LIST_CHANGES" -> SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    fileList.onChanges(commandByParts);
+                }
+            });
             case "DOWNLOAD" -> {
-                System.out.println(DOWNLOAD_DIRECTORY + "/" + commandByParts.get(2));
-                File downloadedFile = new File(DOWNLOAD_DIRECTORY + "/" + commandByParts.get(2));
-                getFileFromServer(downloadedFile.getAbsolutePath());
+                long id = Long.parseLong(commandByParts[2]);
+                long size = Long.parseLong(commandByParts[4]);
+                LOG.info("download.started", "id", id, "file", commandByParts[3], "bytes", size);
+                File downloadedFile = new File(DOWNLOAD_DIRECTORY + "/" + commandByParts[3]);
+                try {
+                    transferWorkers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                getFileFromServer(id, downloadedFile.toPath(), size);
+                            } catch (IOException e) {
+                                printMessage("Download failed: " + e.getMessage());
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    printMessage("Too many transfers running, download of " + commandByParts[3] + " cancelled");
+                }
+            }
+        }
+
+    }
+
+    private void askCredentials() {
+        JPanel loginPanel = new JPanel(new GridLayout(2, 2, 5, 5));
+        JTextField userField = new JTextField(USERNAME);
+        JPasswordField passwordField = new JPasswordField();
+        loginPanel.add(new JLabel("User"));
+        loginPanel.add(userField);
+        loginPanel.add(new JLabel("Password"));
+        loginPanel.add(passwordField);
+        int result = JOptionPane.showConfirmDialog(this, loginPanel, "Log in", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE);
+        if (result != JOptionPane.OK_OPTION || userField.getText().trim().isEmpty()) {
+            return;
+        }
+        if (userField.getText().indexOf('`') >= 0 || new String(passwordField.getPassword()).indexOf('\n') >= 0) {
+            JOptionPane.showMessageDialog(this, "User names cannot contain ` and passwords cannot contain line breaks",
+                    "Log in", JOptionPane.ERROR_MESSAGE);
+            askCredentials();
+            return;
+        }
+        username = userField.getText().trim();
+        password = passwordField.getPassword();
+    }
+
+    /**
+     * Returns the id this installation resumes its server-side buffer with, creating it on first start.
+     */
+    private static String loadClientId(Path file) throws IOException {
+        if (Files.exists(file)) {
+            String id = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+            if (!id.isEmpty()) {
+                return id;
             }
         }
+        String id = UUID.randomUUID().toString();
+        Files.write(file, id.getBytes(StandardCharsets.UTF_8));
+        return id;
+    }
 
+    private void printMessage(String msg) {
+        renderer.enqueue(msg);
     }
 
-    private synchronized void printMessage(String msg) {
+    private void updateStory() throws IOException {
+        if (history == null || storyLoaded) {
+            return;
+        }
+        storyLoaded = true;
+        long size = history.size();
+        long from = Math.max(0, size - HISTORY_PAGE);
+        List<String> lines = history.read(from, (int) (size - from));
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
-                area.append(msg + "\n");
-                area.setCaretPosition(area.getDocument().getLength());
+                oldestShown = from;
             }
         });
+        for (String line : lines) {
+            renderer.enqueue(line, true);
+        }
     }
 
-    private void updateStory() throws IOException {
-        FileReader fr = new FileReader(LOG_PATH);
-        Scanner sc = new Scanner(fr);
-
-        while (sc.hasNextLine()) {
-            printMessage(sc.nextLine());
+    private void loadOlderStory() {
+        if (history == null || oldestShown == 0 || loadingOlder) {
+            return;
         }
-
-        sc.close();
-        fr.close();
+        loadingOlder = true;
+        long to = oldestShown;
+        long from = Math.max(0, to - HISTORY_PAGE);
+        historyLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<String> lines = history.read(from, (int) (to - from));
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            loadingOlder = false;
+                            // A trim while reading moved the top of the area; the next scroll reloads.
+                            if (oldestShown == to) {
+                                oldestShown = to - renderer.prepend(lines);
+                            }
+                        }
+                    });
+                } catch (IOException e) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            loadingOlder = false;
+                        }
+                    });
+                    printMessage("History exception: " + e);
+                }
+            }
+        });
     }
 
-    private void sendFileToServer(String filePath) {
-        FileInputStream fis = null;
-        BufferedInputStream bis = null;
-        OutputStream os = null;
-        Socket sock = null;
+    private void searchHistory(String query) {
+        if (search == null) {
+            printMessage("History is not available");
+            return;
+        }
         try {
-            System.out.println("Waiting...");
-            try {
-                sock = new Socket(SERVER_IP, FILE_DISPATCH_PORT);
-
-                File myFile = new File(filePath);
-                byte[] myByteArray = new byte[(int) myFile.length()];
-                fis = new FileInputStream(myFile);
-                bis = new BufferedInputStream(fis);
-                bis.read(myByteArray, 0, myByteArray.length);
-                os = sock.getOutputStream();
-                os.write(myByteArray, 0, myByteArray.length);
-                os.flush();
-                System.out.println("Done.");
-            } catch (Exception e) {
-                System.out.println(e.getMessage());
-            } finally {
-                if (bis != null) bis.close();
-                if (os != null) os.close();
-                if (sock != null) sock.close();
+            List<String> lines = search.search(query);
+            lines.add("Search: " + lines.size() + " found");
+            printMessage(String.join("\n", lines));
+        } catch (IOException e) {
+            printMessage("History exception: " + e);
+        }
+    }
+
+    private void importLegacyStory() throws IOException {
+        Path legacy = Paths.get(LOG_PATH);
+        if (history.size() > 0 || !Files.exists(legacy)) {
+            return;
+        }
+        long timestamp = Files.getLastModifiedTime(legacy).toMillis();
+        try (BufferedReader reader = Files.newBufferedReader(legacy, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                history.append(timestamp, 0, line);
             }
+        }
+        history.sync();
+    }
+
+    private void sendFileToServer(long id, String filePath, long offset) {
+        try (FileChannel file = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+             SocketChannel channel = openTransfer(id, offset, file.size() - offset)) {
+            boolean compress = connection.compression() && Compression.isCompressible(filePath);
+            FileTransfer.sendRange(file, offset, file.size() - offset, channel, compress);
         } catch (Exception e) {
-            System.out.println(e.getMessage());
+            LOG.warn("upload.failed", "file", filePath, "error", e);
         }
     }
 
-    private void getFileFromServer(String filePath) throws IOException {
-        int bytesRead;
-        int current = 0;
-        FileOutputStream fos = null;
-        BufferedOutputStream bos = null;
-        Socket sock = null;
-        File file = new File(filePath);
-        file.createNewFile();
-        try {
-            sock = new Socket(SERVER_IP, FILE_RECEPTION_PORT);
-            System.out.println("Connecting...");
-
-            byte [] mybytearray  = new byte [FILE_SIZE];
-            InputStream is = sock.getInputStream();
-            fos = new FileOutputStream(filePath);
-            bos = new BufferedOutputStream(fos);
-            bytesRead = is.read(mybytearray,0,mybytearray.length);
-            current = bytesRead;
-
-            do {
-                bytesRead =
-                        is.read(mybytearray, current, (mybytearray.length-current));
-                if(bytesRead >= 0) current += bytesRead;
-            } while(bytesRead > -1);
-
-            bos.write(mybytearray, 0 , current);
-            bos.flush();
-            System.out.println("File " + filePath + " downloaded (" + current + " bytes read)");
+    private void getFileFromServer(long id, Path target, long size) throws IOException {
+        Path partFile = Paths.get(target + ".part");
+        try (ChunkLog log = ChunkLog.open(partFile, size);
+             FileChannel file = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.READ)) {
+            List<long[]> ranges = log.missingRanges(TRANSFER_STREAMS);
+            List<Future<?>> parallel = new ArrayList<>();
+            for (int i = 1; i < ranges.size(); i++) {
+                long[] range = ranges.get(i);
+                try {
+                    FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            receiveRange(id, file, range, log);
+                            return null;
+                        }
+                    });
+                    transferWorkers.execute(task);
+                    parallel.add(task);
+                } catch (RejectedExecutionException e) {
+                    receiveRange(id, file, range, log);
+                }
+            }
+            if (!ranges.isEmpty()) {
+                receiveRange(id, file, ranges.get(0), log);
+            }
+            for (Future<?> task : parallel) {
+                try {
+                    task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
+                }
+            }
+            if (!log.isComplete()) {
+                throw new IOException("Download of " + target + " is incomplete, request it again to resume");
+            }
         }
-        finally {
-            if (fos != null) fos.close();
-            if (bos != null) bos.close();
-            if (sock != null) sock.close();
+        Files.deleteIfExists(Paths.get(partFile + ".chunks"));
+        Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+        printMessage("File " + target + " downloaded (" + size + " bytes)");
+    }
+
+    private void receiveRange(long id, FileChannel file, long[] range, ChunkLog log) throws IOException {
+        try (SocketChannel channel = openTransfer(id, range[0], range[1])) {
+            FileTransfer.receiveRange(file, range[0], range[1], channel, log);
         }
     }
+
+    private SocketChannel openTransfer(long id, long offset, long length) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(SERVER_IP, TRANSFER_PORT));
+        FileTransfer.writeHeader(channel, id, offset, length);
+        return channel;
+    }
 }
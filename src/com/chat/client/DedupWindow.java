@@ -0,0 +1,71 @@
+package com.chat.client;
+
+import java.util.Arrays;
+
+/**
+ * Remembers which message sequences were already shown, for the last {@code chat.dedup.window} sequences
+ * below the highest one seen. Anything older than the window counts as seen: the server never replays
+ * further back than its replay limit, which the default window covers. Not thread-safe; a connection
+ * delivers messages from one thread at a time.
+ */
+class DedupWindow {
+    private final static int SIZE = Integer.highestOneBit(Math.max(64, Integer.getInteger("chat.dedup.window", 16384)));
+
+    private final long[] bits;
+    private long highest;
+
+    DedupWindow() {
+        this.bits = new long[SIZE / Long.SIZE];
+    }
+
+    /**
+     * Marks everything up to {@code sequence} as seen, e.g. what the history already holds.
+     */
+    void seed(long sequence) {
+        if (sequence > highest) {
+            highest = sequence;
+            Arrays.fill(bits, -1L);
+        }
+    }
+
+    /**
+     * Records {@code sequence} and returns whether it is new. Messages without a sequence are always new.
+     */
+    boolean firstSeen(long sequence) {
+        if (sequence <= 0) {
+            return true;
+        }
+        if (sequence > highest) {
+            if (sequence - highest >= SIZE) {
+                Arrays.fill(bits, 0L);
+            } else {
+                for (long s = highest + 1; s < sequence; s++) {
+                    clear(s);
+                }
+            }
+            highest = sequence;
+            set(sequence);
+            return true;
+        }
+        if (highest - sequence >= SIZE) {
+            return false;
+        }
+        int index = (int) (sequence & (SIZE - 1));
+        long mask = 1L << index;
+        if ((bits[index >>> 6] & mask) != 0) {
+            return false;
+        }
+        bits[index >>> 6] |= mask;
+        return true;
+    }
+
+    private void set(long sequence) {
+        int index = (int) (sequence & (SIZE - 1));
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private void clear(long sequence) {
+        int index = (int) (sequence & (SIZE - 1));
+        bits[index >>> 6] &= ~(1L << index);
+    }
+}
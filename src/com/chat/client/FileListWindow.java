@@ -0,0 +1,190 @@
+package com.chat.client;
+
+import com.chat.network.TCPConnection;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Paged, filterable view of the server's file catalog. The first opening loads pages with GET_LIST,
+ * later openings only ask for LIST_CHANGES since the catalog version already shown.
+ */
+class FileListWindow extends JFrame {
+    private final static int PAGE = 200;
+
+    private final TCPConnection connection;
+    private final DefaultListModel<String> names;
+    private final Map<String, Long> sizes;
+    private final JTextField filterField;
+    private final JButton moreButton;
+    private String filter;
+    private long version;
+    private int total;
+
+    FileListWindow(TCPConnection connection) {
+        super("Server files list");
+        this.connection = connection;
+        this.names = new DefaultListModel<>();
+        this.sizes = new HashMap<>();
+        this.filterField = new JTextField();
+        this.moreButton = new JButton("More");
+        this.filter = "";
+        setSize(300, 300);
+        setLocationRelativeTo(null);
+        setAlwaysOnTop(true);
+
+        JList<String> filesList = new JList<>(names);
+        filesList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        filesList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected,
+                                                          boolean cellHasFocus) {
+                Long size = sizes.get(value);
+                String text = size == null ? String.valueOf(value) : value + " (" + formatSize(size) + ")";
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+        filterField.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                filter = filterField.getText().trim();
+                reload();
+            }
+        });
+        moreButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                requestPage(names.size());
+            }
+        });
+        JButton selectButton = new JButton("Select");
+        selectButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                String result = filesList.getSelectedValue();
+                if (result != null) {
+                    connection.sendMessage("`DOWNLOAD`" + result);
+                    setVisible(false);
+                }
+            }
+        });
+        JPanel buttons = new JPanel(new GridLayout(1, 2));
+        buttons.add(moreButton);
+        buttons.add(selectButton);
+        add(filterField, BorderLayout.NORTH);
+        add(new JScrollPane(filesList), BorderLayout.CENTER);
+        add(buttons, BorderLayout.SOUTH);
+    }
+
+    void open() {
+        if (version == 0) {
+            reload();
+        } else {
+            connection.sendCommand("`LIST_CHANGES`" + version);
+        }
+        setVisible(true);
+    }
+
+    /**
+     * Applies a {@code `GET_LIST`version`total`offset`entry...} reply. Must run on the EDT.
+     */
+    void onPage(String[] parts) {
+        int offset = Integer.parseInt(parts[4]);
+        if (offset == 0) {
+            names.clear();
+            sizes.clear();
+            version = Long.parseLong(parts[2]);
+        }
+        total = Integer.parseInt(parts[3]);
+        for (int i = 5; i < parts.length; i++) {
+            String[] entry = parseEntry(parts[i]);
+            sizes.put(entry[0], Long.parseLong(entry[1]));
+            names.addElement(entry[0]);
+        }
+        updateTitle();
+    }
+
+    /**
+     * Applies a {@code `LIST_CHANGES`version`state`entry...} reply. Must run on the EDT.
+     */
+    void onChanges(String[] parts) {
+        if (parts[3].equals("reset")) {
+            reload();
+            return;
+        }
+        for (int i = 4; i < parts.length; i++) {
+            String[] entry = parseEntry(parts[i]);
+            String name = entry[0];
+            long size = Long.parseLong(entry[1]);
+            boolean shown = sizes.containsKey(name);
+            if (size < 0) {
+                if (shown) {
+                    names.removeElement(name);
+                    sizes.remove(name);
+                    total--;
+                }
+            } else if (shown) {
+                sizes.put(name, size);
+            } else if (filter.isEmpty() || name.toLowerCase().contains(filter.toLowerCase())) {
+                sizes.put(name, size);
+                names.add(insertionPoint(name), name);
+                total++;
+            }
+        }
+        version = Long.parseLong(parts[2]);
+        if (parts[3].equals("more")) {
+            connection.sendCommand("`LIST_CHANGES`" + version);
+        }
+        repaint();
+        updateTitle();
+    }
+
+    private void reload() {
+        version = 0;
+        requestPage(0);
+    }
+
+    private void requestPage(int offset) {
+        connection.sendCommand("`GET_LIST`" + offset + "`" + PAGE + "`" + filter);
+    }
+
+    private void updateTitle() {
+        setTitle("Server files list (" + names.size() + " of " + total + ")");
+        moreButton.setEnabled(names.size() < total);
+    }
+
+    private int insertionPoint(String name) {
+        int low = 0;
+        int high = names.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (String.CASE_INSENSITIVE_ORDER.compare(names.get(middle), name) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // name|size|modified|hash, parsed from the right because only the name may contain '|'
+    private static String[] parseEntry(String entry) {
+        int hash = entry.lastIndexOf('|');
+        int modified = entry.lastIndexOf('|', hash - 1);
+        int size = entry.lastIndexOf('|', modified - 1);
+        return new String[] {entry.substring(0, size), entry.substring(size + 1, modified),
+                entry.substring(modified + 1, hash), entry.substring(hash + 1)};
+    }
+
+    private static String formatSize(long size) {
+        if (size < 1024) {
+            return size + " B";
+        }
+        int unit = (63 - Long.numberOfLeadingZeros(size)) / 10;
+        return String.format("%.1f %sB", size / (double) (1L << (unit * 10)), " KMGTPE".charAt(unit));
+    }
+}
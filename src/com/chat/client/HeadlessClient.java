@@ -0,0 +1,425 @@
+package com.chat.client;
+
+import com.chat.network.ChunkLog;
+import com.chat.network.Compression;
+import com.chat.network.EventLoopGroup;
+import com.chat.network.FileTransfer;
+import com.chat.network.TCPConnection;
+import com.chat.network.TCPConnectionListener;
+import com.chat.network.WorkerPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chat client without a window: speaks the same commands as {@link ClientWindow} (AUTH, JOIN, LEAVE, MSG,
+ * UPLOAD, DOWNLOAD, SEARCH) over a {@link TCPConnection} and reports through a {@link Listener}. With an
+ * {@link EventLoopGroup} many clients share a few selector threads, which is what the load generator uses.
+ */
+public class HeadlessClient implements TCPConnectionListener {
+    public interface Listener {
+        void onReady(HeadlessClient client);
+
+        void onMessage(HeadlessClient client, String msg);
+
+        void onClosed(HeadlessClient client);
+
+        void onError(HeadlessClient client, Exception e);
+    }
+
+    private final static WorkerPool TRANSFERS = WorkerPool.fromProperties("headless-transfer", 64);
+    private final static long REPLY_TIMEOUT = Long.getLong("chat.client.replySeconds", 30);
+
+    private final String host;
+    private final int transferPort;
+    private final Listener listener;
+    private final Map<String, CompletableFuture<String>> logins;
+    private final Map<String, Upload> uploads;
+    private final Map<String, Download> downloads;
+    private final Queue<Search> searches;
+    private final DedupWindow seen;
+    private final TCPConnection connection;
+
+    private static class Upload {
+        final CompletableFuture<String> result;
+        volatile boolean answered;
+
+        Upload() {
+            this.result = new CompletableFuture<>();
+        }
+    }
+
+    private static class Download {
+        final Path target;
+        final CompletableFuture<Path> result;
+        volatile boolean answered;
+
+        Download(Path target) {
+            this.target = target;
+            this.result = new CompletableFuture<>();
+        }
+    }
+
+    private static class Search {
+        final List<String> results;
+        final CompletableFuture<List<String>> result;
+
+        Search() {
+            this.results = new ArrayList<>();
+            this.result = new CompletableFuture<>();
+        }
+    }
+
+    public HeadlessClient(String host, int port, int transferPort, Listener listener, EventLoopGroup group)
+            throws IOException {
+        this.host = host;
+        this.transferPort = transferPort;
+        this.listener = listener;
+        this.logins = new ConcurrentHashMap<>();
+        this.uploads = new ConcurrentHashMap<>();
+        this.downloads = new ConcurrentHashMap<>();
+        this.searches = new ConcurrentLinkedQueue<>();
+        this.seen = new DedupWindow();
+        if (group == null) {
+            this.connection = new TCPConnection(this, host, port);
+        } else {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+            try {
+                this.connection = new TCPConnection(this, channel, group);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+    }
+
+    public TCPConnection connection() {
+        return connection;
+    }
+
+    public void send(String msg) {
+        connection.sendText(msg);
+    }
+
+    public void join(String room) {
+        connection.sendCommand("`JOIN`" + room);
+    }
+
+    public void leave(String room) {
+        connection.sendCommand("`LEAVE`" + room);
+    }
+
+    public void directMessage(String user, String msg) {
+        connection.sendCommand("`MSG`" + user + "`" + msg);
+    }
+
+    /**
+     * Asks for the messages after {@code lastSeen}; with the {@code clientId} of an earlier connection the
+     * server resends what that connection left unacknowledged. Messages delivered twice are dropped.
+     */
+    public void sync(long lastSeen, String clientId) {
+        connection.sendCommand("`SYNC`" + lastSeen + "`" + clientId);
+    }
+
+    /**
+     * Searches the server's message journal; the future completes with the matching messages the
+     * connection may see, newest first. The server answers searches in the order they were sent.
+     */
+    public CompletableFuture<List<String>> search(String query) {
+        Search search = new Search();
+        searches.add(search);
+        connection.sendCommand("`SEARCH`" + query);
+        return search.result;
+    }
+
+    /**
+     * Logs in; the future completes with the user name, or exceptionally when the server refuses. The password
+     * is the last field of the command and may contain {@code `}; the user name may not.
+     */
+    public CompletableFuture<String> login(String user, String password) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        if (user.indexOf('`') >= 0 || password.indexOf('\n') >= 0) {
+            result.completeExceptionally(
+                    new IOException("User names cannot contain ` and passwords cannot contain line breaks"));
+            return result;
+        }
+        CompletableFuture<String> previous = logins.putIfAbsent(user, result);
+        if (previous != null) {
+            return previous;
+        }
+        connection.sendCommand("`AUTH`" + user + "`" + password);
+        return result;
+    }
+
+    /**
+     * Uploads a file; the future completes with the name the server stored it under, or exceptionally when
+     * the server refuses the upload or does not answer within {@code chat.client.replySeconds}. Only one
+     * upload per path may be in flight.
+     */
+    public CompletableFuture<String> upload(Path file) {
+        Upload upload = new Upload();
+        String path = file.toAbsolutePath().toString();
+        if (uploads.putIfAbsent(path, upload) != null) {
+            upload.result.completeExceptionally(new IOException("Upload of " + path + " is already running"));
+            return upload.result;
+        }
+        try {
+            TRANSFERS.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        String hash = FileTransfer.sha256(file);
+                        connection.sendCommand("`UPLOAD`" + path + "`" + Files.size(file) + "`" + hash);
+                        CompletableFuture.delayedExecutor(REPLY_TIMEOUT, TimeUnit.SECONDS).execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!upload.answered && uploads.remove(path, upload)) {
+                                    upload.result.completeExceptionally(
+                                            new IOException("No answer to the upload of " + path));
+                                }
+                            }
+                        });
+                    } catch (IOException e) {
+                        uploads.remove(path, upload);
+                        upload.result.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            uploads.remove(path);
+            upload.result.completeExceptionally(e);
+        }
+        return upload.result;
+    }
+
+    /**
+     * Downloads a file from the shared directory into {@code target}; the future fails when the server
+     * refuses the download or does not answer within {@code chat.client.replySeconds}. Only one download
+     * per name may be in flight.
+     */
+    public CompletableFuture<Path> download(String name, Path target) {
+        Download download = new Download(target);
+        if (downloads.putIfAbsent(name, download) != null) {
+            download.result.completeExceptionally(new IOException("Download of " + name + " is already running"));
+            return download.result;
+        }
+        connection.sendCommand("`DOWNLOAD`" + name);
+        CompletableFuture.delayedExecutor(REPLY_TIMEOUT, TimeUnit.SECONDS).execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!download.answered && downloads.remove(name, download)) {
+                    download.result.completeExceptionally(new IOException("No answer to the download of " + name));
+                }
+            }
+        });
+        return download.result;
+    }
+
+    public void close() {
+        connection.disconnect();
+    }
+
+    @Override
+    public void onConnectionReady(TCPConnection connection) {
+        listener.onReady(this);
+    }
+
+    @Override
+    public void onReceiveString(TCPConnection connection, String msg) {
+        if (seen.firstSeen(connection.currentSequence())) {
+            listener.onMessage(this, msg);
+        }
+    }
+
+    @Override
+    public void onDisconnect(TCPConnection connection) {
+        IOException closed = new IOException("Connection closed");
+        for (String user : logins.keySet()) {
+            fail(logins.remove(user), closed);
+        }
+        for (String path : uploads.keySet()) {
+            Upload upload = uploads.remove(path);
+            if (upload != null) {
+                upload.result.completeExceptionally(closed);
+            }
+        }
+        for (String name : downloads.keySet()) {
+            Download download = downloads.remove(name);
+            if (download != null) {
+                download.result.completeExceptionally(closed);
+            }
+        }
+        Search search;
+        while ((search = searches.poll()) != null) {
+            search.result.completeExceptionally(closed);
+        }
+        listener.onClosed(this);
+    }
+
+    @Override
+    public void onException(TCPConnection connection, Exception e) {
+        listener.onError(this, e);
+    }
+
+    @Override
+    public void onReceiveCommand(TCPConnection connection, String command) {
+        String[] commandByParts = command.split("`");
+        switch (commandByParts[1]) {
+            case "AUTH" -> complete(logins.remove(commandByParts[2]), commandByParts[2]);
+            case "AUTH_FAILED" -> fail(logins.remove(commandByParts.length > 2 ? commandByParts[2] : ""),
+                    new IOException("Login refused"));
+            case "UPLOAD" -> {
+                long id = Long.parseLong(commandByParts[2]);
+                String path = commandByParts[3];
+                long offset = Long.parseLong(commandByParts[4]);
+                Upload upload = uploads.get(path);
+                if (upload == null) {
+                    return;
+                }
+                upload.answered = true;
+                transfer(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            sendFile(id, Paths.get(path), offset);
+                        } catch (IOException e) {
+                            uploads.remove(path, upload);
+                            upload.result.completeExceptionally(e);
+                        }
+                    }
+                }, upload.result);
+            }
+            case "UPLOAD_DONE" -> {
+                Upload upload = uploads.remove(commandByParts[2]);
+                if (upload != null) {
+                    upload.result.complete(commandByParts[3]);
+                }
+            }
+            case "UPLOAD_FAILED" -> {
+                Upload upload = uploads.remove(commandByParts[2]);
+                if (upload != null) {
+                    upload.result.completeExceptionally(new IOException(failure("Upload", commandByParts)));
+                }
+            }
+            case "DOWNLOAD_FAILED" -> {
+                Download download = downloads.remove(commandByParts[2]);
+                if (download != null) {
+                    download.result.completeExceptionally(new IOException(failure("Download", commandByParts)));
+                }
+            }
+            case "SEARCH_RESULT" -> {
+                Search search = searches.peek();
+                if (search != null) {
+                    search.results.add(command.split("`", 5)[4]);
+                }
+            }
+            case "SEARCH_DONE" -> {
+                Search search = searches.poll();
+                if (search != null) {
+                    search.result.complete(search.results);
+                }
+            }
+            case "DOWNLOAD" -> {
+                long id = Long.parseLong(commandByParts[2]);
+                String name = commandByParts[3];
+                long size = Long.parseLong(commandByParts[4]);
+                Download download = downloads.get(name);
+                if (download == null) {
+                    return;
+                }
+                download.answered = true;
+                transfer(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            receiveFile(id, download.target, size);
+                            downloads.remove(name, download);
+                            download.result.complete(download.target);
+                        } catch (IOException e) {
+                            downloads.remove(name, download);
+                            download.result.completeExceptionally(e);
+                        }
+                    }
+                }, download.result);
+            }
+            default -> listener.onMessage(this, command);
+        }
+    }
+
+    private void transfer(Runnable task, CompletableFuture<?> result) {
+        try {
+            TRANSFERS.execute(task);
+        } catch (RejectedExecutionException e) {
+            if (result != null) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void sendFile(long id, Path path, long offset) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+             SocketChannel channel = openTransfer(id, offset, file.size() - offset)) {
+            boolean compress = connection.compression() && Compression.isCompressible(path.toString());
+            FileTransfer.sendRange(file, offset, file.size() - offset, channel, compress);
+        }
+    }
+
+    private void receiveFile(long id, Path target, long size) throws IOException {
+        Path partFile = Paths.get(target + ".part");
+        try (ChunkLog log = ChunkLog.open(partFile, size);
+             FileChannel file = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.READ);
+             SocketChannel channel = openTransfer(id, 0, size)) {
+            FileTransfer.receiveRange(file, 0, size, channel, log);
+            if (!log.isComplete()) {
+                throw new IOException("Download of " + target + " is incomplete");
+            }
+            log.delete();
+        }
+        Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private SocketChannel openTransfer(long id, long offset, long length) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, transferPort));
+        FileTransfer.writeHeader(channel, id, offset, length);
+        return channel;
+    }
+
+    private static String failure(String transfer, String[] commandByParts) {
+        return transfer + " of " + commandByParts[2] + " failed"
+                + (commandByParts.length > 3 ? ": " + commandByParts[3] : "");
+    }
+
+    private static <T> void complete(CompletableFuture<T> result, T value) {
+        if (result != null) {
+            result.complete(value);
+        }
+    }
+
+    private static void fail(CompletableFuture<?> result, Exception e) {
+        if (result != null) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HeadlessClient: " + connection;
+    }
+}
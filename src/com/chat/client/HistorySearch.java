@@ -0,0 +1,111 @@
+package com.chat.client;
+
+import com.chat.metrics.Log;
+import com.chat.network.NamedThreadFactory;
+import com.chat.search.SearchIndex;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full-text search over the {@link HistoryStore}: history record {@code i} is document {@code i + 1} of a
+ * {@link SearchIndex}. On start a background thread indexes the records the index has not seen, which is
+ * all of them after an upgrade and the unflushed tail after a crash; new messages are indexed as they
+ * arrive once it has caught up.
+ */
+class HistorySearch implements Closeable {
+    private final static Log LOG = Log.get("search");
+    private final static int CATCH_UP_BATCH = 1024;
+    private final static int MAX_RESULTS = Integer.getInteger("chat.search.results", 50);
+
+    private final HistoryStore history;
+    private final SearchIndex index;
+    private final ExecutorService catchUp;
+    private volatile boolean closed;
+    private boolean caughtUp;
+
+    HistorySearch(HistoryStore history, Path directory) throws IOException {
+        this.history = history;
+        this.index = new SearchIndex(directory);
+        this.catchUp = Executors.newSingleThreadExecutor(new NamedThreadFactory("search-catch-up", false));
+        catchUp.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    catchUp();
+                } catch (IOException e) {
+                    LOG.warn("catch.up.failed", "error", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Indexes the message stored at {@code historyIndex}; until the catch-up is done it picks the
+     * message up itself.
+     */
+    synchronized void append(long historyIndex, String msg) {
+        if (caughtUp) {
+            index.add(historyIndex + 1, msg);
+        }
+    }
+
+    /**
+     * Returns the newest history lines matching {@code query}, oldest first.
+     */
+    List<String> search(String query) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (long doc : index.search(query, MAX_RESULTS)) {
+            lines.addAll(history.read(doc - 1, 1));
+        }
+        Collections.reverse(lines);
+        return lines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        catchUp.shutdown();
+        try {
+            catchUp.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        index.close();
+    }
+
+    private void catchUp() throws IOException {
+        long next = index.lastDoc();
+        long start = next;
+        while (!closed) {
+            List<String> records;
+            synchronized (this) {
+                long size = history.size();
+                if (next >= size) {
+                    caughtUp = true;
+                    LOG.info("caught.up", "indexed", next - start, "records", size);
+                    return;
+                }
+                records = history.read(next, (int) Math.min(CATCH_UP_BATCH, size - next));
+            }
+            for (String record : records) {
+                index.add(++next, stripTimestamp(record));
+            }
+        }
+    }
+
+    /**
+     * History lines start with the time they were received in angle brackets, which is not searched.
+     */
+    private static String stripTimestamp(String record) {
+        int end = record.startsWith("<") ? record.indexOf('>') : -1;
+        return end < 0 ? record : record.substring(end + 1);
+    }
+}
@@ -0,0 +1,328 @@
+package com.chat.client;
+
+import com.chat.metrics.Log;
+import com.chat.network.NamedThreadFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+class HistoryStore implements Closeable {
+    private final static Log LOG = Log.get("history");
+    private final static long SEGMENT_SIZE = 8L * 1024 * 1024;
+    private final static int INDEX_INTERVAL = 64;
+    private final static int INDEX_ENTRY_SIZE = 2 * Long.BYTES;
+    private final static int RECORD_HEADER_SIZE = Integer.BYTES + 2 * Long.BYTES;
+    private final static int WRITE_BUFFER_SIZE = 64 * 1024;
+    private final static long SYNC_INTERVAL_MS = 1000;
+    private final static int SYNC_BATCH = 256;
+
+    private final Path directory;
+    private final TreeMap<Long, Segment> segments;
+    private final ByteBuffer pending;
+    private final ScheduledExecutorService syncer;
+    private Segment active;
+    private long nextIndex;
+    private long lastSequence;
+    private int unsynced;
+
+    HistoryStore(Path directory) throws IOException {
+        this.directory = directory;
+        this.segments = new TreeMap<>();
+        this.pending = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        Files.createDirectories(directory);
+        List<Path> logs = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path log : stream) {
+                logs.add(log);
+            }
+        }
+        logs.sort(null);
+        for (Path log : logs) {
+            String name = log.getFileName().toString();
+            long base = Long.parseLong(name.substring(0, name.length() - ".log".length()));
+            segments.put(base, new Segment(base));
+        }
+        long next = 0;
+        for (Map.Entry<Long, Segment> entry : segments.entrySet()) {
+            Map.Entry<Long, Segment> higher = segments.higherEntry(entry.getKey());
+            if (higher != null) {
+                entry.getValue().count = higher.getKey() - entry.getKey();
+            } else {
+                entry.getValue().recover();
+                next = entry.getKey() + entry.getValue().count;
+            }
+        }
+        for (Segment segment : segments.descendingMap().values()) {
+            lastSequence = segment.lastSequence();
+            if (lastSequence > 0) {
+                break;
+            }
+        }
+        this.nextIndex = next;
+        this.active = segments.isEmpty() ? roll() : segments.lastEntry().getValue();
+        this.syncer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("history-sync", false));
+        syncer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync();
+                } catch (IOException e) {
+                    LOG.warn("sync.failed", "error", e);
+                }
+            }
+        }, SYNC_INTERVAL_MS, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized long size() {
+        return nextIndex;
+    }
+
+    synchronized long lastSequence() {
+        return lastSequence;
+    }
+
+    synchronized long append(long timestamp, long sequence, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (active.size + pending.position() >= SEGMENT_SIZE) {
+            flush();
+            active = roll();
+        }
+        long position = active.size + pending.position();
+        if ((nextIndex - active.base) % INDEX_INTERVAL == 0) {
+            flush();
+            active.addIndexEntry(position, timestamp);
+        }
+        if (pending.remaining() < RECORD_HEADER_SIZE + bytes.length) {
+            flush();
+        }
+        if (pending.remaining() < RECORD_HEADER_SIZE + bytes.length) {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bytes.length);
+            record.putInt(bytes.length).putLong(timestamp).putLong(sequence).put(bytes).flip();
+            active.write(record);
+        } else {
+            pending.putInt(bytes.length).putLong(timestamp).putLong(sequence).put(bytes);
+        }
+        active.count++;
+        lastSequence = Math.max(lastSequence, sequence);
+        if (++unsynced >= SYNC_BATCH) {
+            sync();
+        }
+        return nextIndex++;
+    }
+
+    synchronized List<String> read(long from, int count) throws IOException {
+        flush();
+        List<String> records = new ArrayList<>(Math.max(0, count));
+        long index = Math.max(0, from);
+        long end = Math.min(nextIndex, from + count);
+        while (index < end) {
+            Segment segment = segments.floorEntry(index).getValue();
+            index = segment.read(index, end, records);
+        }
+        return records;
+    }
+
+    synchronized long indexAt(long timestamp) {
+        long result = 0;
+        for (Segment segment : segments.values()) {
+            for (int k = 0; k < segment.index.size(); k++) {
+                if (segment.index.get(k)[1] > timestamp) {
+                    return result;
+                }
+                result = segment.base + (long) k * INDEX_INTERVAL;
+            }
+        }
+        return result;
+    }
+
+    synchronized void sync() throws IOException {
+        flush();
+        if (unsynced > 0) {
+            active.channel.force(false);
+            active.indexChannel.force(false);
+            unsynced = 0;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        syncer.shutdown();
+        sync();
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+            segment.indexChannel.close();
+        }
+    }
+
+    private void flush() throws IOException {
+        if (pending.position() == 0) {
+            return;
+        }
+        pending.flip();
+        active.write(pending);
+        pending.clear();
+    }
+
+    private Segment roll() throws IOException {
+        if (active != null) {
+            active.channel.force(false);
+            active.indexChannel.force(false);
+        }
+        Segment segment = new Segment(nextIndex);
+        segments.put(nextIndex, segment);
+        return segment;
+    }
+
+    private class Segment {
+        private final long base;
+        private final FileChannel channel;
+        private final FileChannel indexChannel;
+        private final List<long[]> index;
+        private long size;
+        private long count;
+
+        private Segment(long base) throws IOException {
+            String name = String.format("%020d", base);
+            this.base = base;
+            this.channel = FileChannel.open(directory.resolve(name + ".log"), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.indexChannel = FileChannel.open(directory.resolve(name + ".idx"), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.index = new ArrayList<>();
+            this.size = channel.size();
+            ByteBuffer entries = ByteBuffer.allocate((int) (indexChannel.size() / INDEX_ENTRY_SIZE * INDEX_ENTRY_SIZE));
+            readFully(indexChannel, entries, 0);
+            entries.flip();
+            while (entries.hasRemaining()) {
+                long position = entries.getLong();
+                long timestamp = entries.getLong();
+                if (position < size) {
+                    index.add(new long[] {position, timestamp});
+                }
+            }
+            indexChannel.truncate((long) index.size() * INDEX_ENTRY_SIZE);
+            indexChannel.position(indexChannel.size());
+        }
+
+        private void recover() throws IOException {
+            int entry = index.size() - 1;
+            long position = entry < 0 ? 0 : index.get(entry)[0];
+            long recovered = entry < 0 ? 0 : (long) entry * INDEX_INTERVAL;
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            while (position + RECORD_HEADER_SIZE <= size) {
+                header.clear();
+                readFully(channel, header, position);
+                header.flip();
+                int length = header.getInt();
+                long timestamp = header.getLong();
+                if (length < 0 || position + RECORD_HEADER_SIZE + length > size) {
+                    break;
+                }
+                if (recovered % INDEX_INTERVAL == 0 && recovered / INDEX_INTERVAL >= index.size()) {
+                    addIndexEntry(position, timestamp);
+                }
+                position += RECORD_HEADER_SIZE + length;
+                recovered++;
+            }
+            if (position < size) {
+                channel.truncate(position);
+                size = position;
+            }
+            count = recovered;
+        }
+
+        /**
+         * Returns the highest sequence of the newest index block that has records carrying one, scanning
+         * back from the end; 0 when none does, as for messages that arrived over the text protocol.
+         */
+        private long lastSequence() throws IOException {
+            for (int entry = index.size() - 1; entry >= 0; entry--) {
+                long result = lastSequence(entry);
+                if (result > 0) {
+                    return result;
+                }
+            }
+            return 0;
+        }
+
+        private long lastSequence(int entry) throws IOException {
+            long position = index.get(entry)[0];
+            long current = base + (long) entry * INDEX_INTERVAL;
+            long end = Math.min(base + count, current + INDEX_INTERVAL);
+            long result = 0;
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            while (current < end) {
+                header.clear();
+                readFully(channel, header, position);
+                header.flip();
+                int length = header.getInt();
+                header.getLong();
+                result = Math.max(result, header.getLong());
+                position += RECORD_HEADER_SIZE + length;
+                current++;
+            }
+            return result;
+        }
+
+        private void addIndexEntry(long position, long timestamp) throws IOException {
+            index.add(new long[] {position, timestamp});
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            entry.putLong(position).putLong(timestamp).flip();
+            while (entry.hasRemaining()) {
+                indexChannel.write(entry);
+            }
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                size += channel.write(buffer, size);
+            }
+        }
+
+        private long read(long from, long end, List<String> records) throws IOException {
+            long relative = from - base;
+            int entry = (int) Math.min(relative / INDEX_INTERVAL, index.size() - 1);
+            long position = index.get(entry)[0];
+            long current = base + (long) entry * INDEX_INTERVAL;
+            long last = Math.min(end, base + count);
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            while (current < last) {
+                header.clear();
+                readFully(channel, header, position);
+                header.flip();
+                int length = header.getInt();
+                if (current >= from) {
+                    ByteBuffer text = ByteBuffer.allocate(length);
+                    readFully(channel, text, position + RECORD_HEADER_SIZE);
+                    records.add(new String(text.array(), 0, length, StandardCharsets.UTF_8));
+                }
+                position += RECORD_HEADER_SIZE + length;
+                current++;
+            }
+            return current;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("History segment ended unexpectedly");
+            }
+        }
+    }
+}
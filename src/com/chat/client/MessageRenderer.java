@@ -0,0 +1,214 @@
+package com.chat.client;
+
+import com.chat.metrics.Histogram;
+import com.chat.metrics.Metrics;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Appends incoming messages to the chat area in batches on a Swing timer, spending at most
+ * {@code EDT_BUDGET_PER_SECOND} of the event thread on it. At most {@code maxLines} messages wait; when
+ * more arrive the oldest waiting ones are dropped, since trimming would remove them right after they
+ * were shown, and the area restarts with a line saying how many were skipped. Messages are tracked per
+ * entry, so {@code onTrim} hears how many entries of the history store left the area, or never reached
+ * it; notices and other local lines are not counted.
+ */
+class MessageRenderer implements ActionListener {
+    private final static int FRAME_MILLIS = 16;
+    private final static int MAX_MESSAGES_PER_FRAME = 500;
+    private final static long EDT_BUDGET_PER_SECOND = TimeUnit.MILLISECONDS.toNanos(200);
+    private final static Histogram EDT_LAG = Metrics.histogram("render.lag.nanos");
+    private final static Histogram FRAME_NANOS = Metrics.histogram("render.frame.nanos");
+
+    private final JTextArea area;
+    private final int maxLines;
+    private final IntConsumer onTrim;
+    private final ArrayDeque<Entry> pending;
+    private final ArrayDeque<Entry> shown;
+    private final Timer timer;
+    private long windowStart;
+    private long windowNanos;
+    private volatile long lastSecondNanos;
+    private volatile long firstPendingNanos;
+    private int skipped;
+    private int skippedHistory;
+
+    private static class Entry {
+        final String text;
+        final boolean fromHistory;
+        int lines;
+
+        Entry(String text, boolean fromHistory) {
+            this.text = text;
+            this.fromHistory = fromHistory;
+            this.lines = 1;
+            for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) {
+                lines++;
+            }
+        }
+    }
+
+    MessageRenderer(JTextArea area, int maxLines, IntConsumer onTrim) {
+        this.area = area;
+        this.maxLines = maxLines;
+        this.onTrim = onTrim;
+        this.pending = new ArrayDeque<>();
+        this.shown = new ArrayDeque<>();
+        this.timer = new Timer(FRAME_MILLIS, this);
+        this.windowStart = System.nanoTime();
+        timer.start();
+    }
+
+    void enqueue(String msg) {
+        enqueue(msg, false);
+    }
+
+    /**
+     * Queues a message; {@code fromHistory} marks one that is an entry of the history store.
+     */
+    void enqueue(String msg, boolean fromHistory) {
+        Entry entry = new Entry(msg, fromHistory);
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                firstPendingNanos = System.nanoTime();
+            }
+            pending.add(entry);
+            if (pending.size() > maxLines) {
+                if (pending.poll().fromHistory) {
+                    skippedHistory++;
+                }
+                skipped++;
+            }
+        }
+    }
+
+    /**
+     * Inserts older history entries at the top of the area, on the EDT. Only the newest entries that fit
+     * under {@code maxLines} go in; returns how many did.
+     */
+    int prepend(List<String> entries) {
+        int room = maxLines - (area.getLineCount() - 1);
+        StringBuilder block = new StringBuilder();
+        int added = 0;
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Entry entry = new Entry(entries.get(i), true);
+            if (entry.lines > room) {
+                break;
+            }
+            room -= entry.lines;
+            block.insert(0, entry.text + "\n");
+            shown.addFirst(entry);
+            added++;
+        }
+        if (added > 0) {
+            area.insert(block.toString(), 0);
+            area.setCaretPosition(block.length());
+        }
+        return added;
+    }
+
+    int pendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    long edtNanosLastSecond() {
+        return lastSecondNanos;
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        long start = System.nanoTime();
+        if (start - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+            lastSecondNanos = windowNanos;
+            windowStart = start;
+            windowNanos = 0;
+        }
+        if (windowNanos >= EDT_BUDGET_PER_SECOND) {
+            return;
+        }
+        List<Entry> batch = new ArrayList<>();
+        int dropped;
+        int droppedHistory;
+        long waitingSince;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            dropped = skipped;
+            droppedHistory = skippedHistory;
+            skipped = 0;
+            skippedHistory = 0;
+            waitingSince = firstPendingNanos;
+            Entry entry;
+            while (batch.size() < MAX_MESSAGES_PER_FRAME && (entry = pending.poll()) != null) {
+                batch.add(entry);
+            }
+        }
+        if (dropped > 0) {
+            // Everything shown is older than the dropped messages, so the area starts over with the notice.
+            int cleared = 0;
+            for (Entry entry : shown) {
+                if (entry.fromHistory) {
+                    cleared++;
+                }
+            }
+            shown.clear();
+            Entry notice = new Entry("... " + dropped + " messages skipped ...", false);
+            shown.add(notice);
+            area.setText(notice.text + "\n");
+            onTrim.accept(cleared + droppedHistory);
+        }
+        StringBuilder text = new StringBuilder();
+        for (Entry entry : batch) {
+            text.append(entry.text).append('\n');
+            shown.add(entry);
+        }
+        area.append(text.toString());
+        trim();
+        area.setCaretPosition(area.getDocument().getLength());
+        long end = System.nanoTime();
+        windowNanos += end - start;
+        EDT_LAG.record(end - waitingSince);
+        FRAME_NANOS.record(end - start);
+    }
+
+    private void trim() {
+        int excess = area.getLineCount() - 1 - maxLines;
+        if (excess <= 0) {
+            return;
+        }
+        try {
+            area.replaceRange("", 0, area.getLineEndOffset(excess - 1));
+        } catch (BadLocationException e) {
+            area.setText("");
+            excess = Integer.MAX_VALUE;
+        }
+        // An entry trimmed only in part counts once its last line goes.
+        int trimmed = 0;
+        while (excess > 0 && !shown.isEmpty()) {
+            Entry first = shown.peek();
+            if (first.lines > excess) {
+                first.lines -= excess;
+                break;
+            }
+            excess -= first.lines;
+            shown.poll();
+            if (first.fromHistory) {
+                trimmed++;
+            }
+        }
+        if (trimmed > 0) {
+            onTrim.accept(trimmed);
+        }
+    }
+}
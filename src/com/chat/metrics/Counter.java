@@ -0,0 +1,26 @@
+package com.chat.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter striped over a {@link LongAdder}, so hot paths on many threads do not contend.
+ */
+public class Counter {
+    private final LongAdder value;
+
+    Counter() {
+        this.value = new LongAdder();
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+}
@@ -0,0 +1,89 @@
+package com.chat.metrics;
+
+import java.io.PrintStream;
+import java.time.Instant;
+
+/**
+ * Structured logging: one line per event, {@code timestamp level component event key=value ...}.
+ * The minimum level comes from {@code -Dchat.log.level} (debug, info, warn; info by default).
+ */
+public class Log {
+    public enum Level { DEBUG, INFO, WARN }
+
+    private final static Level THRESHOLD = parseLevel(System.getProperty("chat.log.level", "info"));
+
+    private final String component;
+
+    private Log(String component) {
+        this.component = component;
+    }
+
+    public static Log get(String component) {
+        return new Log(component);
+    }
+
+    public boolean isDebugEnabled() {
+        return THRESHOLD == Level.DEBUG;
+    }
+
+    public void debug(String event, Object... fields) {
+        log(Level.DEBUG, event, fields);
+    }
+
+    public void info(String event, Object... fields) {
+        log(Level.INFO, event, fields);
+    }
+
+    public void warn(String event, Object... fields) {
+        log(Level.WARN, event, fields);
+    }
+
+    private void log(Level level, String event, Object[] fields) {
+        if (level.compareTo(THRESHOLD) < 0) {
+            return;
+        }
+        StringBuilder line = new StringBuilder(64 + fields.length * 16);
+        line.append(Instant.now()).append(' ').append(level).append(' ').append(component).append(' ').append(event);
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            line.append(' ').append(fields[i]).append('=');
+            appendValue(line, fields[i + 1]);
+        }
+        PrintStream out = level == Level.WARN ? System.err : System.out;
+        out.println(line);
+    }
+
+    private static void appendValue(StringBuilder line, Object value) {
+        String text = String.valueOf(value);
+        boolean quote = text.isEmpty();
+        for (int i = 0; i < text.length() && !quote; i++) {
+            char c = text.charAt(i);
+            quote = c == ' ' || c == '"' || c == '=' || c < 0x20;
+        }
+        if (!quote) {
+            line.append(text);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c == '\n') {
+                line.append("\\n");
+            } else if (c == '\r') {
+                line.append("\\r");
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.chat.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide registry of named counters, histograms and gauges. Metrics are created on first use
+ * and published through JMX and an optional plain-text endpoint on the loopback interface.
+ */
+public class Metrics {
+    private final static double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final static Map<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+    private final static Map<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+    private final static Map<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+    private final static Log LOG = Log.get("metrics");
+
+    private static HttpServer endpoint;
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name) {
+        return COUNTERS.computeIfAbsent(name, n -> new Counter());
+    }
+
+    public static Histogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    public static void gauge(String name, LongSupplier value) {
+        GAUGES.put(name, value);
+    }
+
+    /**
+     * Flattens every metric into name/value pairs; histograms expand into count, mean, max and percentiles.
+     */
+    public static Map<String, Number> snapshot() {
+        Map<String, Number> values = new TreeMap<>();
+        for (Map.Entry<String, Counter> entry : COUNTERS.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, LongSupplier> entry : GAUGES.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+        for (Map.Entry<String, Histogram> entry : HISTOGRAMS.entrySet()) {
+            Histogram histogram = entry.getValue();
+            String name = entry.getKey();
+            values.put(name + ".count", histogram.count());
+            values.put(name + ".mean", histogram.mean());
+            values.put(name + ".max", histogram.max());
+            for (double percentile : PERCENTILES) {
+                values.put(name + ".p" + (percentile == (long) percentile ? String.valueOf((long) percentile)
+                        : String.valueOf(percentile).replace('.', '_')), histogram.percentile(percentile));
+            }
+        }
+        return values;
+    }
+
+    public static String render() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Number> entry : snapshot().entrySet()) {
+            text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Heap occupancy after the last collection is the leak signal soak runs watch; the live heap saws up and down.
+     */
+    private static void registerJvmGauges() {
+        gauge("jvm.threads", () -> ManagementFactory.getThreadMXBean().getThreadCount());
+        gauge("jvm.heap.used", () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        gauge("jvm.heap.after.gc", () -> {
+            long used = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                MemoryUsage usage = pool.getCollectionUsage();
+                if (pool.getType() == MemoryType.HEAP && usage != null) {
+                    used += usage.getUsed();
+                }
+            }
+            return used;
+        });
+        gauge("jvm.direct.used", () -> {
+            long used = 0;
+            for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                used += pool.getMemoryUsed();
+            }
+            return used;
+        });
+    }
+
+    /**
+     * Registers the JMX bean {@code com.chat:type=Metrics,name=<process>} and, when {@code port} is positive,
+     * serves {@link #render()} over HTTP on 127.0.0.1.
+     */
+    public static synchronized void export(String process, int port) {
+        registerJvmGauges();
+        try {
+            ObjectName name = new ObjectName("com.chat:type=Metrics,name=" + ObjectName.quote(process));
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), name);
+            }
+        } catch (JMException e) {
+            LOG.warn("jmx.failed", "error", e);
+        }
+        if (port <= 0 || endpoint != null) {
+            return;
+        }
+        try {
+            endpoint = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            endpoint.createContext("/", exchange -> {
+                byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            endpoint.start();
+            LOG.info("endpoint.started", "address", endpoint.getAddress());
+        } catch (IOException e) {
+            endpoint = null;
+            LOG.warn("endpoint.failed", "port", port, "error", e);
+        }
+    }
+}
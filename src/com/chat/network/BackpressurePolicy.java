@@ -0,0 +1,12 @@
+package com.chat.network;
+
+public enum BackpressurePolicy {
+    DROP_OLDEST,
+    COALESCE,
+    DISCONNECT;
+
+    public static BackpressurePolicy fromProperties() {
+        String policy = System.getProperty("chat.outbound.policy", "disconnect");
+        return valueOf(policy.toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,70 @@
+package com.chat.network;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class BufferPool {
+    private final static int[] SIZES = {512, 8 * 1024, 64 * 1024};
+    private final static int MAX_POOLED = 256;
+    public final static int DIRECT_SIZE = 64 * 1024;
+
+    private final static Queue<ByteBuffer>[] POOLS = createPools();
+    private final static Queue<ByteBuffer> DIRECT = new ConcurrentLinkedQueue<>();
+
+    private BufferPool() {
+    }
+
+    public static ByteBuffer acquire(int capacity) {
+        int index = sizeClass(capacity);
+        if (index < 0) {
+            return ByteBuffer.allocate(capacity);
+        }
+        ByteBuffer buffer = POOLS[index].poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(SIZES[index]);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public static void release(ByteBuffer buffer) {
+        int index = sizeClass(buffer.capacity());
+        if (index >= 0 && SIZES[index] == buffer.capacity() && POOLS[index].size() < MAX_POOLED) {
+            POOLS[index].offer(buffer);
+        }
+    }
+
+    public static ByteBuffer acquireDirect() {
+        ByteBuffer buffer = DIRECT.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(DIRECT_SIZE);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public static void releaseDirect(ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == DIRECT_SIZE && DIRECT.size() < MAX_POOLED) {
+            DIRECT.offer(buffer);
+        }
+    }
+
+    private static int sizeClass(int capacity) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (capacity <= SIZES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Queue<ByteBuffer>[] createPools() {
+        Queue<ByteBuffer>[] pools = new Queue[SIZES.length];
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = new ConcurrentLinkedQueue<>();
+        }
+        return pools;
+    }
+}
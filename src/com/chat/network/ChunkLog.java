@@ -0,0 +1,129 @@
+package com.chat.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+public class ChunkLog implements AutoCloseable {
+    private final static int MIN_RANGE_CHUNKS = 8;
+
+    private final Path path;
+    private final long size;
+    private final int chunkCount;
+    private final BitSet verified;
+    private final FileChannel log;
+
+    private ChunkLog(Path path, long size) throws IOException {
+        this.path = path;
+        this.size = size;
+        this.chunkCount = (int) ((size + FileTransfer.CHUNK_SIZE - 1) / FileTransfer.CHUNK_SIZE);
+        this.verified = new BitSet(chunkCount);
+        this.log = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+        log.read(header, 0);
+        header.flip();
+        if (header.remaining() < Long.BYTES || header.getLong() != size) {
+            log.truncate(0);
+            header.clear();
+            header.putLong(size).flip();
+            while (header.hasRemaining()) {
+                log.write(header, header.position());
+            }
+        }
+        ByteBuffer entries = ByteBuffer.allocate((int) ((log.size() - Long.BYTES) / Integer.BYTES * Integer.BYTES));
+        while (entries.hasRemaining()) {
+            if (log.read(entries, Long.BYTES + entries.position()) < 0) {
+                break;
+            }
+        }
+        entries.flip();
+        while (entries.remaining() >= Integer.BYTES) {
+            int chunk = entries.getInt();
+            if (chunk >= 0 && chunk < chunkCount) {
+                verified.set(chunk);
+            }
+        }
+        log.position(Long.BYTES + entries.limit());
+    }
+
+    public static ChunkLog open(Path partFile, long size) throws IOException {
+        return new ChunkLog(Paths.get(partFile + ".chunks"), size);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public synchronized boolean isVerified(int chunk) {
+        return verified.get(chunk);
+    }
+
+    public synchronized void markVerified(int chunk) throws IOException {
+        if (verified.get(chunk)) {
+            return;
+        }
+        ByteBuffer entry = ByteBuffer.allocate(Integer.BYTES).putInt(chunk);
+        entry.flip();
+        while (entry.hasRemaining()) {
+            log.write(entry);
+        }
+        verified.set(chunk);
+    }
+
+    public synchronized boolean isComplete() {
+        return verified.cardinality() == chunkCount;
+    }
+
+    public synchronized long verifiedPrefix() {
+        return Math.min(size, (long) verified.nextClearBit(0) * FileTransfer.CHUNK_SIZE);
+    }
+
+    public synchronized List<long[]> missingRanges(int maxRanges) {
+        List<long[]> runs = new ArrayList<>();
+        int start = verified.nextClearBit(0);
+        while (start < chunkCount) {
+            int next = verified.nextSetBit(start);
+            int end = next < 0 || next > chunkCount ? chunkCount : next;
+            runs.add(new long[] {start, end});
+            start = verified.nextClearBit(end);
+        }
+        while (runs.size() < maxRanges) {
+            int largest = 0;
+            for (int i = 1; i < runs.size(); i++) {
+                if (runs.get(i)[1] - runs.get(i)[0] > runs.get(largest)[1] - runs.get(largest)[0]) {
+                    largest = i;
+                }
+            }
+            if (runs.isEmpty() || runs.get(largest)[1] - runs.get(largest)[0] < 2 * MIN_RANGE_CHUNKS) {
+                break;
+            }
+            long[] run = runs.get(largest);
+            long middle = run[0] + (run[1] - run[0]) / 2;
+            runs.add(largest + 1, new long[] {middle, run[1]});
+            run[1] = middle;
+        }
+        List<long[]> ranges = new ArrayList<>(runs.size());
+        for (long[] run : runs) {
+            long offset = run[0] * FileTransfer.CHUNK_SIZE;
+            ranges.add(new long[] {offset, Math.min(size, run[1] * FileTransfer.CHUNK_SIZE) - offset});
+        }
+        return ranges;
+    }
+
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+}
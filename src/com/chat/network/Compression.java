@@ -0,0 +1,183 @@
+package com.chat.network;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate for frames and transfer chunks. Frames are compressed one by one against a preset
+ * dictionary of common chat text, so a broadcast frame is still compressed once and shared by every
+ * recipient that negotiated {@link #CAPABILITY} in its HELLO.
+ */
+public class Compression {
+    public final static String CAPABILITY = "deflate";
+    public final static byte FLAG = (byte) 0x80;
+
+    private final static boolean ENABLED = !"none".equalsIgnoreCase(System.getProperty("chat.compression"));
+    private final static int MIN_FRAME_PAYLOAD = 96;
+    private final static byte[] DICTIONARY = (
+            "`UPLOAD`UPLOAD_DONE`DOWNLOAD`GET_LIST`LIST_CHANGES`JOIN`LEAVE`MSG`AUTH`SYNC`"
+                    + ".txt|.docx|.xlsx|.pdf|.zip|.jpg|.png|.exe|"
+                    + "Client connected: TCPConnection: /192.168.0.Client disconnected: TCPConnection: /192.168.0."
+                    + "[from ] [to ] Joined room Left room general "
+                    + "Привет, как дела? Спасибо, хорошо. Да, нет, сейчас, сегодня, завтра, файл, отправил. "
+                    + "Hello, thanks, yes, no, please, today, tomorrow, meeting, file, sent. <dd/MM/yyyy HH:mm:ss>: "
+    ).getBytes(StandardCharsets.UTF_8);
+    private final static Set<String> INCOMPRESSIBLE = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "jar", "apk", "cab", "msi",
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "mp3", "aac", "ogg", "flac", "m4a",
+            "mp4", "mkv", "avi", "mov", "webm", "wmv", "docx", "xlsx", "pptx", "odt", "ods", "pdf");
+
+    private final static ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(
+            () -> new Deflater(Deflater.BEST_SPEED, true));
+    private final static ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final static LongAdder RAW_BYTES = new LongAdder();
+    private final static LongAdder WIRE_BYTES = new LongAdder();
+    private final static LongAdder NANOS = new LongAdder();
+
+    private Compression() {
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Whether a file is worth compressing, judged by its extension. Archives and media are skipped.
+     */
+    public static boolean isCompressible(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 || !INCOMPRESSIBLE.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns {@code frame} with its payload deflated and {@link #FLAG} set in its type,
+     * or the frame itself when it is a text line, too small, or does not shrink.
+     */
+    public static byte[] compressFrame(byte[] frame) {
+        if (frame.length < Protocol.HEADER_SIZE + MIN_FRAME_PAYLOAD || frame[0] != Protocol.MAGIC
+                || (frame[2] & FLAG) != 0) {
+            return frame;
+        }
+        long start = System.nanoTime();
+        int payload = frame.length - Protocol.HEADER_SIZE;
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(frame, Protocol.HEADER_SIZE, payload);
+        deflater.finish();
+        byte[] packed = new byte[frame.length];
+        int size = Protocol.HEADER_SIZE;
+        while (!deflater.finished() && size < packed.length) {
+            size += deflater.deflate(packed, size, packed.length - size);
+        }
+        record(payload, deflater.finished() ? size - Protocol.HEADER_SIZE : payload, start);
+        if (!deflater.finished() || size >= frame.length) {
+            return frame;
+        }
+        System.arraycopy(frame, 0, packed, 0, Protocol.HEADER_SIZE);
+        packed[2] = (byte) (frame[2] | FLAG);
+        ByteBuffer.wrap(packed).putInt(3, size - Protocol.HEADER_SIZE);
+        return Arrays.copyOf(packed, size);
+    }
+
+    static byte[] inflateFrame(byte[] source, int offset, int length) throws StreamCorruptedException {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(source, offset, length);
+        byte[] output = new byte[Math.max(256, length * 4)];
+        int size = 0;
+        try {
+            while (!inflater.finished()) {
+                if (size == output.length) {
+                    if (output.length >= Protocol.MAX_PAYLOAD) {
+                        throw new StreamCorruptedException("Compressed frame exceeds " + Protocol.MAX_PAYLOAD + " bytes");
+                    }
+                    output = Arrays.copyOf(output, Math.min(Protocol.MAX_PAYLOAD, output.length * 2));
+                }
+                int inflated = inflater.inflate(output, size, output.length - size);
+                if (inflated == 0 && inflater.needsInput()) {
+                    throw new StreamCorruptedException("Truncated compressed frame");
+                }
+                size += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Corrupt compressed frame: " + e.getMessage());
+        }
+        return size == output.length ? output : Arrays.copyOf(output, size);
+    }
+
+    /**
+     * Deflates {@code source} into {@code target}. Returns false, leaving {@code target} unspecified,
+     * when the result would not save at least an eighth of the input.
+     */
+    static boolean compressChunk(ByteBuffer source, ByteBuffer target) {
+        long start = System.nanoTime();
+        int raw = source.remaining();
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(source);
+        deflater.finish();
+        int budget = raw - raw / 8;
+        target.clear().limit(Math.min(target.capacity(), budget));
+        while (!deflater.finished() && target.hasRemaining()) {
+            deflater.deflate(target);
+        }
+        boolean packed = deflater.finished();
+        record(raw, packed ? target.position() : raw, start);
+        target.flip();
+        return packed;
+    }
+
+    static void decompressChunk(ByteBuffer source, ByteBuffer target) throws StreamCorruptedException {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(source);
+        try {
+            while (!inflater.finished() && target.hasRemaining()) {
+                if (inflater.inflate(target) == 0 && inflater.needsInput()) {
+                    throw new StreamCorruptedException("Truncated compressed chunk");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Corrupt compressed chunk: " + e.getMessage());
+        }
+        if (!inflater.finished() || target.hasRemaining()) {
+            throw new StreamCorruptedException("Compressed chunk has the wrong length");
+        }
+        target.flip();
+    }
+
+    /**
+     * Uncompressed bytes that went through the compressor.
+     */
+    public static long rawBytes() {
+        return RAW_BYTES.sum();
+    }
+
+    /**
+     * Bytes the compressor produced for {@link #rawBytes()}; inputs that did not shrink count as sent raw.
+     */
+    public static long wireBytes() {
+        return WIRE_BYTES.sum();
+    }
+
+    public static long compressNanos() {
+        return NANOS.sum();
+    }
+
+    private static void record(long raw, long wire, long startNanos) {
+        RAW_BYTES.add(raw);
+        WIRE_BYTES.add(wire);
+        NANOS.add(System.nanoTime() - startNanos);
+    }
+}
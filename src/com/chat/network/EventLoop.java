@@ -0,0 +1,112 @@
+package com.chat.network;
+
+import com.chat.metrics.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+class EventLoop implements Runnable {
+    private final static Log LOG = Log.get("event-loop");
+
+    private final static int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks;
+    private final ByteBuffer readBuffer;
+    private volatile boolean running;
+
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        this.running = true;
+        this.thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    void execute(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    SelectionKey register(SocketChannel channel, TCPConnection connection) throws IOException {
+        return channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    TCPConnection connection = (TCPConnection) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isReadable()) {
+                            connection.handleRead(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.handleWrite();
+                        }
+                    } catch (RuntimeException e) {
+                        LOG.warn("connection.failed", "connection", connection, "error", e);
+                        connection.disconnect();
+                    }
+                }
+            } catch (IOException e) {
+                LOG.warn("loop.exception", "error", e);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((TCPConnection) key.attachment()).disconnect();
+        }
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOG.warn("loop.exception", "error", e);
+        }
+    }
+
+    /**
+     * Runs the queued tasks; a task that throws is logged and skipped so the loop keeps serving the other
+     * connections.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.warn("task.failed", "error", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.chat.network;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EventLoopGroup {
+    private final EventLoop[] loops;
+    private final AtomicInteger next;
+
+    public EventLoopGroup(int threads) throws IOException {
+        this.loops = new EventLoop[threads];
+        this.next = new AtomicInteger();
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop("event-loop-" + i);
+        }
+    }
+
+    public EventLoopGroup() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    EventLoop next() {
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+
+    public void shutdown() {
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.chat.network;
+
+import com.chat.metrics.Counter;
+import com.chat.metrics.Histogram;
+import com.chat.metrics.Log;
+import com.chat.metrics.Metrics;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+public class FileTransfer {
+    public final static int CHUNK_SIZE = 1024 * 1024;
+    public final static int HEADER_SIZE = 3 * Long.BYTES;
+    private final static int CHUNK_HEADER_SIZE = Long.BYTES + 3 * Integer.BYTES;
+    private final static int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+    private final static int MAX_COMPRESSION_MISSES = 4;
+    private final static Counter SENT_BYTES = Metrics.counter("transfer.sent.bytes");
+    private final static Counter RECEIVED_BYTES = Metrics.counter("transfer.received.bytes");
+    private final static Histogram SENT_THROUGHPUT = Metrics.histogram("transfer.sent.bytes.per.sec");
+    private final static Histogram RECEIVED_THROUGHPUT = Metrics.histogram("transfer.received.bytes.per.sec");
+    private final static Log LOG = Log.get("transfer");
+
+    private FileTransfer() {
+    }
+
+    public static void writeHeader(WritableByteChannel channel, long id, long offset, long length) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putLong(id).putLong(offset).putLong(length);
+        header.flip();
+        writeFully(channel, header);
+    }
+
+    public static long[] readHeader(ReadableByteChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header);
+        header.flip();
+        return new long[] {header.getLong(), header.getLong(), header.getLong()};
+    }
+
+    public static long sendRange(FileChannel file, long offset, long length, WritableByteChannel channel)
+            throws IOException {
+        return sendRange(file, offset, length, channel, false);
+    }
+
+    /**
+     * Sends a range as checksummed chunks. With {@code compress} each chunk is deflated when that saves
+     * at least an eighth of it; after {@value #MAX_COMPRESSION_MISSES} chunks in a row that do not,
+     * the rest of the range goes out raw through {@code transferTo}.
+     */
+    public static long sendRange(FileChannel file, long offset, long length, WritableByteChannel channel,
+                                 boolean compress) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+        ByteBuffer scratch = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+        ByteBuffer raw = compress ? ByteBuffer.allocateDirect(CHUNK_SIZE) : null;
+        ByteBuffer packed = compress ? ByteBuffer.allocateDirect(CHUNK_SIZE) : null;
+        int misses = 0;
+        long end = offset + length;
+        for (long position = offset; position < end; position += CHUNK_SIZE) {
+            int chunkLength = (int) Math.min(CHUNK_SIZE, end - position);
+            if (compress && misses < MAX_COMPRESSION_MISSES) {
+                raw.clear().limit(chunkLength);
+                readFully(file, raw, position);
+                raw.flip();
+                CRC32C crc = new CRC32C();
+                crc.update(raw.duplicate());
+                boolean packedChunk = Compression.compressChunk(raw, packed);
+                misses = packedChunk ? 0 : misses + 1;
+                ByteBuffer body = packedChunk ? packed : raw.rewind();
+                chunkHeader.clear();
+                chunkHeader.putLong(position).putInt(chunkLength).putInt((int) crc.getValue()).putInt(body.remaining());
+                chunkHeader.flip();
+                writeFully(channel, chunkHeader);
+                writeFully(channel, body);
+                continue;
+            }
+            chunkHeader.clear();
+            chunkHeader.putLong(position).putInt(chunkLength).putInt(checksum(file, position, chunkLength, scratch))
+                    .putInt(chunkLength);
+            chunkHeader.flip();
+            writeFully(channel, chunkHeader);
+            long sent = 0;
+            while (sent < chunkLength) {
+                long transferred = file.transferTo(position + sent, chunkLength - sent, channel);
+                if (transferred == 0 && position + sent >= file.size()) {
+                    throw new EOFException("File ended at " + (position + sent) + " while sending");
+                }
+                sent += transferred;
+            }
+        }
+        report("sent", offset, length, start, SENT_BYTES, SENT_THROUGHPUT);
+        return length;
+    }
+
+    /**
+     * Sends a range of a {@link ResidentFile} in the same chunk format, without touching the disk.
+     */
+    public static long sendRange(ResidentFile file, long offset, long length, WritableByteChannel channel,
+                                 boolean compress) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+        ByteBuffer packed = compress ? ByteBuffer.allocateDirect(CHUNK_SIZE) : null;
+        int misses = 0;
+        long end = offset + length;
+        for (long position = offset; position < end; position += CHUNK_SIZE) {
+            int chunkLength = (int) Math.min(CHUNK_SIZE, end - position);
+            ByteBuffer body = file.slice(position, chunkLength);
+            if (compress && misses < MAX_COMPRESSION_MISSES) {
+                boolean packedChunk = Compression.compressChunk(body.duplicate(), packed);
+                misses = packedChunk ? 0 : misses + 1;
+                if (packedChunk) {
+                    body = packed;
+                }
+            }
+            chunkHeader.clear();
+            chunkHeader.putLong(position).putInt(chunkLength).putInt(file.checksum(position, chunkLength))
+                    .putInt(body.remaining());
+            chunkHeader.flip();
+            writeFully(channel, chunkHeader);
+            writeFully(channel, body);
+        }
+        report("sent", offset, length, start, SENT_BYTES, SENT_THROUGHPUT);
+        return length;
+    }
+
+    public static long receiveRange(FileChannel file, long offset, long length, ReadableByteChannel channel,
+                                    ChunkLog log) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+        ByteBuffer scratch = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+        ByteBuffer raw = null;
+        ByteBuffer packed = null;
+        long end = offset + length;
+        long received = 0;
+        while (received < length) {
+            chunkHeader.clear();
+            readFully(channel, chunkHeader);
+            chunkHeader.flip();
+            long position = chunkHeader.getLong();
+            int chunkLength = chunkHeader.getInt();
+            int expected = chunkHeader.getInt();
+            int wireLength = chunkHeader.getInt();
+            if (position < offset || position % CHUNK_SIZE != 0 || chunkLength <= 0
+                    || chunkLength != Math.min(CHUNK_SIZE, end - position)
+                    || wireLength <= 0 || wireLength > chunkLength) {
+                throw new IOException("Unexpected chunk " + position + "+" + chunkLength);
+            }
+            if (wireLength == chunkLength) {
+                transferFully(file, position, chunkLength, channel, scratch);
+            } else {
+                if (raw == null) {
+                    raw = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                    packed = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                }
+                packed.clear().limit(wireLength);
+                readFully(channel, packed);
+                packed.flip();
+                raw.clear().limit(chunkLength);
+                Compression.decompressChunk(packed, raw);
+                while (raw.hasRemaining()) {
+                    file.write(raw, position + raw.position());
+                }
+            }
+            int chunk = (int) (position / CHUNK_SIZE);
+            if (checksum(file, position, chunkLength, scratch) != expected) {
+                throw new IOException("Checksum mismatch in chunk " + chunk);
+            }
+            log.markVerified(chunk);
+            received += chunkLength;
+        }
+        report("received", offset, length, start, RECEIVED_BYTES, RECEIVED_THROUGHPUT);
+        return length;
+    }
+
+    /**
+     * Streams a whole file through SHA-256 and returns the digest as lowercase hex.
+     */
+    public static String sha256(Path path) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buffer = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+            while (file.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+            StringBuilder hex = new StringBuilder(2 * digest.getDigestLength());
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void transferFully(FileChannel file, long position, int length, ReadableByteChannel channel,
+                                      ByteBuffer scratch) throws IOException {
+        long done = 0;
+        while (done < length) {
+            long transferred = file.transferFrom(channel, position + done, length - done);
+            if (transferred == 0) {
+                scratch.clear().limit(1);
+                if (channel.read(scratch) < 0) {
+                    throw new EOFException("Transfer truncated at " + (position + done));
+                }
+                scratch.flip();
+                transferred = file.write(scratch, position + done);
+            }
+            done += transferred;
+        }
+    }
+
+    private static int checksum(FileChannel file, long position, int length, ByteBuffer scratch) throws IOException {
+        CRC32C crc = new CRC32C();
+        long done = 0;
+        while (done < length) {
+            scratch.clear().limit((int) Math.min(scratch.capacity(), length - done));
+            int read = file.read(scratch, position + done);
+            if (read < 0) {
+                throw new EOFException("File ended at " + (position + done));
+            }
+            scratch.flip();
+            crc.update(scratch);
+            done += read;
+        }
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("File ended at " + (position + buffer.position()));
+            }
+        }
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Transfer closed unexpectedly");
+            }
+        }
+    }
+
+    private static void report(String action, long offset, long length, long startNanos, Counter bytes,
+                               Histogram throughput) {
+        long nanos = Math.max(1, System.nanoTime() - startNanos);
+        long bytesPerSecond = length * 1_000_000_000L / nanos;
+        bytes.add(length);
+        throughput.record(bytesPerSecond);
+        LOG.debug("range." + action, "offset", offset, "length", length, "ms", nanos / 1_000_000,
+                "bytesPerSec", bytesPerSecond);
+    }
+}
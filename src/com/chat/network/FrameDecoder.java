@@ -0,0 +1,136 @@
+package com.chat.network;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits a connection's bytes into frames, telling binary frames from text lines by their first byte.
+ * Binary payloads are limited to {@link Protocol#MAX_PAYLOAD} and lines to {@link Protocol#MAX_LINE};
+ * a peer exceeding either gets a {@link StreamCorruptedException} instead of growing the buffer.
+ */
+class FrameDecoder {
+    private final static int LINE_BUFFER_SIZE = 256;
+    private final static int LINE_BUFFER_KEEP = 64 * 1024;
+
+    interface Sink {
+        void onFrame(byte type, long sequence, String payload) throws IOException;
+    }
+
+    private enum State { START, LINE, HEADER, PAYLOAD }
+
+    private State state = State.START;
+    private byte[] line = new byte[LINE_BUFFER_SIZE];
+    private int length;
+    private final ByteBuffer header = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+    private ByteBuffer payload;
+    private byte payloadType;
+
+    void decode(ByteBuffer in, Sink sink) throws IOException {
+        while (in.hasRemaining()) {
+            switch (state) {
+                case START -> {
+                    if (in.get(in.position()) == Protocol.MAGIC) {
+                        header.clear();
+                        state = State.HEADER;
+                    } else {
+                        length = 0;
+                        state = State.LINE;
+                    }
+                }
+                case LINE -> decodeLine(in, sink);
+                case HEADER -> {
+                    decodeHeader(in);
+                    if (state == State.PAYLOAD && !payload.hasRemaining()) {
+                        decodePayload(in, sink);
+                    }
+                }
+                case PAYLOAD -> decodePayload(in, sink);
+            }
+        }
+    }
+
+    private void decodeLine(ByteBuffer in, Sink sink) throws IOException {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b == '\n') {
+                int end = length;
+                if (end > 0 && line[end - 1] == '\r') {
+                    end--;
+                }
+                byte type = end > 0 && line[0] == '`' ? Protocol.TYPE_COMMAND : Protocol.TYPE_TEXT;
+                String msg = new String(line, 0, end, StandardCharsets.UTF_8);
+                if (line.length > LINE_BUFFER_KEEP) {
+                    line = new byte[LINE_BUFFER_SIZE];
+                }
+                state = State.START;
+                sink.onFrame(type, 0, msg);
+                return;
+            }
+            if (length == line.length) {
+                if (length >= Protocol.MAX_LINE) {
+                    throw new StreamCorruptedException("Line longer than " + Protocol.MAX_LINE + " bytes");
+                }
+                line = Arrays.copyOf(line, (int) Math.min((long) line.length * 2, Protocol.MAX_LINE));
+            }
+            line[length++] = b;
+        }
+    }
+
+    private void decodeHeader(ByteBuffer in) throws IOException {
+        while (in.hasRemaining() && header.hasRemaining()) {
+            header.put(in.get());
+        }
+        if (header.hasRemaining()) {
+            return;
+        }
+        if (header.get(1) != Protocol.VERSION) {
+            throw new StreamCorruptedException("Unsupported frame version " + header.get(1));
+        }
+        payloadType = header.get(2);
+        int size = header.getInt(3);
+        if (size < 0 || size > Protocol.MAX_PAYLOAD) {
+            throw new StreamCorruptedException("Invalid frame length " + size);
+        }
+        payload = BufferPool.acquire(size);
+        payload.limit(size);
+        state = State.PAYLOAD;
+    }
+
+    private void decodePayload(ByteBuffer in, Sink sink) throws IOException {
+        int count = Math.min(in.remaining(), payload.remaining());
+        int limit = in.limit();
+        in.limit(in.position() + count);
+        payload.put(in);
+        in.limit(limit);
+        if (payload.hasRemaining()) {
+            return;
+        }
+        byte type = payloadType;
+        byte[] data = payload.array();
+        int offset = payload.arrayOffset();
+        int size = payload.position();
+        if ((type & Compression.FLAG) != 0) {
+            type &= ~Compression.FLAG;
+            data = Compression.inflateFrame(data, offset, size);
+            offset = 0;
+            size = data.length;
+        }
+        long sequence = 0;
+        if (Protocol.hasSequence(type)) {
+            if (size < Long.BYTES) {
+                throw new StreamCorruptedException("Sequenced frame without sequence");
+            }
+            sequence = ByteBuffer.wrap(data, offset, Long.BYTES).getLong();
+            offset += Long.BYTES;
+            size -= Long.BYTES;
+        }
+        String msg = new String(data, offset, size, StandardCharsets.UTF_8);
+        BufferPool.release(payload);
+        payload = null;
+        state = State.START;
+        sink.onFrame(type, sequence, msg);
+    }
+}
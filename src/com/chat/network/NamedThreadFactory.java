@@ -0,0 +1,46 @@
+package com.chat.network;
+
+import com.chat.metrics.Log;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NamedThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final ThreadFactory virtualFactory;
+    private final AtomicInteger count;
+
+    public NamedThreadFactory(String prefix, boolean virtual) {
+        this.prefix = prefix;
+        this.virtualFactory = virtual ? virtualFactory(prefix) : null;
+        this.count = new AtomicInteger();
+    }
+
+    public boolean isVirtual() {
+        return virtualFactory != null;
+    }
+
+    @Override
+    public Thread newThread(Runnable task) {
+        if (virtualFactory != null) {
+            return virtualFactory.newThread(task);
+        }
+        Thread thread = new Thread(task, prefix + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static ThreadFactory virtualFactory(String prefix) {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Method name = builderType.getMethod("name", String.class, long.class);
+            Method factory = builderType.getMethod("factory");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) factory.invoke(name.invoke(builder, prefix + "-", 1L));
+        } catch (ReflectiveOperationException e) {
+            Log.get("threads").info("virtual.unavailable", "pool", prefix);
+            return null;
+        }
+    }
+}
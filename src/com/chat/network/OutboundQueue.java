@@ -0,0 +1,134 @@
+package com.chat.network;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frames waiting to be written to one connection. Above the high watermark the policy applies: DISCONNECT
+ * gives a slow reader {@code chat.outbound.timeout} to catch up, the dropping policies shed chat text
+ * frames, oldest first, down to the low watermark. Handshakes, acknowledgements and command replies are
+ * never dropped, since a client waits for them. Past {@code chat.outbound.max} bytes the connection is
+ * dropped under every policy.
+ */
+class OutboundQueue {
+    final static int DISCONNECT = -1;
+
+    private final static long HIGH_WATERMARK = Long.getLong("chat.outbound.high", 4L * 1024 * 1024);
+    private final static long LOW_WATERMARK = Long.getLong("chat.outbound.low", 1024L * 1024);
+    private final static long MAX_BYTES = Long.getLong("chat.outbound.max", 4 * HIGH_WATERMARK);
+    private final static long TIMEOUT = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.outbound.timeout", 30000));
+
+    private final Queue<ByteBuffer> frames;
+    private final AtomicInteger depth;
+    private final AtomicLong bytes;
+    private final AtomicLong dropped;
+    private final BackpressurePolicy policy;
+    private volatile long overSince;
+
+    OutboundQueue(BackpressurePolicy policy) {
+        this.frames = new ConcurrentLinkedQueue<>();
+        this.depth = new AtomicInteger();
+        this.bytes = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.policy = policy;
+    }
+
+    int offer(ByteBuffer frame) {
+        depth.incrementAndGet();
+        long queued = bytes.addAndGet(frame.remaining());
+        frames.add(frame);
+        if (queued <= HIGH_WATERMARK) {
+            return 0;
+        }
+        if (policy == BackpressurePolicy.DISCONNECT) {
+            long now = System.nanoTime();
+            if (overSince == 0) {
+                overSince = now;
+            }
+            return queued > MAX_BYTES || now - overSince > TIMEOUT ? DISCONNECT : 0;
+        }
+        int count = dropText();
+        dropped.addAndGet(count);
+        return bytes.get() > MAX_BYTES ? DISCONNECT : count;
+    }
+
+    synchronized ByteBuffer poll() {
+        ByteBuffer frame = frames.poll();
+        if (frame != null) {
+            depth.decrementAndGet();
+            if (bytes.addAndGet(-frame.remaining()) <= LOW_WATERMARK) {
+                overSince = 0;
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Removes chat text frames from the head on until the queue is under the low watermark. Holds the
+     * same lock as {@link #poll()}, so a frame is taken either by the writer or here, never by both.
+     */
+    private synchronized int dropText() {
+        int count = 0;
+        Iterator<ByteBuffer> queued = frames.iterator();
+        while (bytes.get() > LOW_WATERMARK && queued.hasNext()) {
+            ByteBuffer frame = queued.next();
+            if (isText(frame)) {
+                queued.remove();
+                depth.decrementAndGet();
+                bytes.addAndGet(-frame.remaining());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * A text protocol line that is not a command, or a binary text frame, compressed or not.
+     */
+    private static boolean isText(ByteBuffer frame) {
+        int start = frame.position();
+        if (frame.remaining() == 0) {
+            return false;
+        }
+        if (frame.get(start) != Protocol.MAGIC) {
+            return frame.get(start) != '`';
+        }
+        if (frame.remaining() < Protocol.HEADER_SIZE) {
+            return false;
+        }
+        byte type = (byte) (frame.get(start + 2) & ~Compression.FLAG);
+        return type == Protocol.TYPE_TEXT || type == Protocol.TYPE_SEQUENCED_TEXT;
+    }
+
+    boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    void clear() {
+        ByteBuffer frame;
+        do {
+            frame = poll();
+        } while (frame != null);
+    }
+
+    BackpressurePolicy policy() {
+        return policy;
+    }
+
+    int depth() {
+        return depth.get();
+    }
+
+    long bytes() {
+        return bytes.get();
+    }
+
+    long dropped() {
+        return dropped.get();
+    }
+}
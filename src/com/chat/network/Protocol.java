@@ -0,0 +1,82 @@
+package com.chat.network;
+
+import java.nio.charset.StandardCharsets;
+
+public enum Protocol {
+    TEXT,
+    BINARY;
+
+    public final static byte MAGIC = (byte) 0xFF;
+    public final static byte VERSION = 1;
+    public final static byte TYPE_TEXT = 1;
+    public final static byte TYPE_COMMAND = 2;
+    public final static byte TYPE_HELLO = 3;
+    public final static byte TYPE_SEQUENCED_TEXT = 4;
+    public final static byte TYPE_ACK = 5;
+    public final static int HEADER_SIZE = 7;
+    public final static int MAX_PAYLOAD = 16 * 1024 * 1024;
+    public final static int MAX_LINE = Integer.getInteger("chat.protocol.maxLine", 1024 * 1024);
+
+    public static Protocol fromProperties() {
+        return "binary".equalsIgnoreCase(System.getProperty("chat.protocol")) ? BINARY : TEXT;
+    }
+
+    public byte[] encodeText(String msg) {
+        return encode(TYPE_TEXT, msg);
+    }
+
+    public byte[] encodeCommand(String command) {
+        return encode(TYPE_COMMAND, command);
+    }
+
+    public byte[] encodeSequenced(long sequence, String msg) {
+        return encode(TYPE_SEQUENCED_TEXT, sequence, msg);
+    }
+
+    /**
+     * Cumulative acknowledgement: the peer has read the sequenced frame {@code sequence} and all frames before it.
+     */
+    public byte[] encodeAck(long sequence) {
+        return encode(TYPE_ACK, sequence, "");
+    }
+
+    public static boolean hasSequence(byte type) {
+        return type == TYPE_SEQUENCED_TEXT || type == TYPE_ACK;
+    }
+
+    public byte[] encode(byte type, String payload) {
+        return encode(type, 0, payload);
+    }
+
+    /**
+     * Binary frames are built in an array of the exact frame size which the caller owns: one broadcast frame
+     * is shared by every recipient's queue, so it cannot come from a pool. The payload goes through
+     * {@link String#getBytes}, which the JIT compiles to a vectorized copy for Latin-1 strings and which
+     * replaces unpaired surrogates with '?' like the text protocol does.
+     */
+    private byte[] encode(byte type, long sequence, String payload) {
+        if (this == TEXT) {
+            return (payload + "\r\n").getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        int header = hasSequence(type) ? HEADER_SIZE + Long.BYTES : HEADER_SIZE;
+        byte[] frame = new byte[header + bytes.length];
+        frame[0] = MAGIC;
+        frame[1] = VERSION;
+        frame[2] = type;
+        putInt(frame, 3, header - HEADER_SIZE + bytes.length);
+        if (header > HEADER_SIZE) {
+            putInt(frame, HEADER_SIZE, (int) (sequence >>> 32));
+            putInt(frame, HEADER_SIZE + 4, (int) sequence);
+        }
+        System.arraycopy(bytes, 0, frame, header, bytes.length);
+        return frame;
+    }
+
+    private static void putInt(byte[] frame, int offset, int value) {
+        frame[offset] = (byte) (value >>> 24);
+        frame[offset + 1] = (byte) (value >>> 16);
+        frame[offset + 2] = (byte) (value >>> 8);
+        frame[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,72 @@
+package com.chat.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32C;
+
+/**
+ * A file held off-heap for repeated downloads. Senders share the one copy through duplicates, and the
+ * checksum of each whole chunk is computed once. The copy is not a mapping, so the file on disk can be
+ * replaced while downloads of the old content finish.
+ */
+public class ResidentFile {
+    private final ByteBuffer data;
+    private final AtomicLongArray checksums;
+
+    private ResidentFile(ByteBuffer data) {
+        this.data = data;
+        this.checksums = new AtomicLongArray((data.capacity() + FileTransfer.CHUNK_SIZE - 1) / FileTransfer.CHUNK_SIZE);
+    }
+
+    public static ResidentFile load(Path path, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(path + " is too large to keep resident");
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (data.hasRemaining()) {
+                if (file.read(data, data.position()) < 0) {
+                    throw new EOFException(path + " ended at " + data.position());
+                }
+            }
+        }
+        data.flip();
+        return new ResidentFile(data.asReadOnlyBuffer());
+    }
+
+    public long size() {
+        return data.capacity();
+    }
+
+    ByteBuffer slice(long position, int length) {
+        ByteBuffer slice = data.duplicate();
+        slice.position((int) position).limit((int) position + length);
+        return slice;
+    }
+
+    /**
+     * CRC32C of a range; ranges that are whole chunks, as senders cut them, are computed only once.
+     * Concurrent senders may both compute a missing value, which is harmless.
+     */
+    int checksum(long position, int length) {
+        boolean wholeChunk = position % FileTransfer.CHUNK_SIZE == 0
+                && length == Math.min(FileTransfer.CHUNK_SIZE, data.capacity() - position);
+        int index = (int) (position / FileTransfer.CHUNK_SIZE);
+        long cached = wholeChunk ? checksums.get(index) : 0;
+        if (cached != 0) {
+            return (int) cached;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(slice(position, length));
+        int value = (int) crc.getValue();
+        if (wholeChunk) {
+            checksums.set(index, (value & 0xFFFFFFFFL) | (1L << 32));
+        }
+        return value;
+    }
+}
@@ -1,62 +1,314 @@
 package com.chat.network;
 
+import com.chat.metrics.Counter;
+import com.chat.metrics.Histogram;
+import com.chat.metrics.Metrics;
+
 import java.io.*;
+import java.net.InetAddress;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 public class TCPConnection {
+    private final static WorkerPool READERS = WorkerPool.fromProperties("connection-reader", 10000);
+    private final static WorkerPool WRITERS = WorkerPool.fromProperties("connection-writer", 10000);
+
+    private final static int READ_BUFFER_SIZE = 8 * 1024;
+    private final static boolean WRITE_BATCHING = Boolean.getBoolean("chat.write.batch");
+    private final static long WRITE_LINGER_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("chat.write.lingerMicros", 0));
+    private final static Counter FRAMES_OUT = Metrics.counter("frames.out");
+    private final static Counter WRITE_CALLS = Metrics.counter("write.calls");
+    private final static Counter DROPPED = Metrics.counter("outbound.dropped");
+    private final static Counter WRITES_REJECTED = Metrics.counter("writes.rejected");
+    private final static Histogram QUEUE_DEPTH = Metrics.histogram("outbound.queue.depth");
+    private final static int ACK_EVERY = Integer.getInteger("chat.ack.every", 64);
+    private final static Counter ACKS_SENT = Metrics.counter("acks.sent");
+    private final static Counter ACKS_RECEIVED = Metrics.counter("acks.received");
+    private final static Histogram UNACKED_DEPTH = Metrics.histogram("unacked.frames");
+
     private final Socket socket;
-    private final Thread rxThread;
-    private final BufferedReader in;
-    private final BufferedWriter out;
+    private volatile Thread rxThread;
+    private final InputStream in;
+    private final OutputStream out;
+    private final AtomicBoolean writing;
     private final TCPConnectionListener listener;
 
+    private final SocketChannel channel;
+    private final EventLoop eventLoop;
+    private final FrameDecoder decoder;
+    private final OutboundQueue outbound;
+    private final AtomicBoolean closed;
+    private final AtomicBoolean flushScheduled;
+    private final UnackedBuffer unacked;
+    private volatile Protocol protocol;
+    private volatile boolean compression;
+    private volatile boolean acks;
+    private volatile long lastSequence;
+    private long lastRead;
+    private long currentSequence;
+    private int receivedSinceAck;
+    private volatile long writeCalls;
+    private volatile long framesWritten;
+    private SelectionKey key;
+    private ByteBuffer inFlight;
+    private ByteBuffer batch;
+
     public TCPConnection(TCPConnectionListener listener, Socket socket) throws IOException {
+        this(listener, socket, READERS);
+    }
+
+    public TCPConnection(TCPConnectionListener listener, Socket socket, WorkerPool readers) throws IOException {
         this.socket = socket;
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-        this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        this.in = socket.getInputStream();
+        this.out = WRITE_BATCHING ? socket.getOutputStream() : new BufferedOutputStream(socket.getOutputStream());
+        this.writing = new AtomicBoolean();
+        this.listener = listener;
+        this.channel = null;
+        this.eventLoop = null;
+        this.decoder = new FrameDecoder();
+        this.outbound = new OutboundQueue(BackpressurePolicy.fromProperties());
+        this.closed = new AtomicBoolean();
+        this.flushScheduled = null;
+        this.unacked = new UnackedBuffer();
+        this.protocol = Protocol.fromProperties();
+        try {
+            readers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    rxThread = Thread.currentThread();
+                    byte[] bytes = new byte[READ_BUFFER_SIZE];
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    try {
+                        sendHello();
+                        listener.onConnectionReady(TCPConnection.this);
+                        while (!rxThread.isInterrupted()) {
+                            int read = in.read(bytes);
+                            if (read < 0) {
+                                break;
+                            }
+                            buffer.clear().limit(read);
+                            decoder.decode(buffer, TCPConnection.this::dispatch);
+                            flushAck();
+                        }
+
+                    } catch (IOException | RuntimeException e) {
+                        if (!closed.get()) {
+                            listener.onException(TCPConnection.this, e);
+                        }
+                    } finally {
+                        rxThread = null;
+                        disconnect();
+                        listener.onDisconnect(TCPConnection.this);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Connection rejected: " + e.getMessage(), e);
+        }
+    }
+
+    public TCPConnection(TCPConnectionListener listener, String ipAddress, int port) throws IOException{
+        this(listener, new Socket(ipAddress, port));
+    }
+
+    public TCPConnection(TCPConnectionListener listener, SocketChannel channel, EventLoopGroup group) throws IOException {
+        this.socket = channel.socket();
+        this.in = null;
+        this.out = null;
+        this.writing = null;
         this.listener = listener;
-        this.rxThread = new Thread(new Runnable() {
+        this.channel = channel;
+        this.eventLoop = group.next();
+        this.decoder = new FrameDecoder();
+        this.outbound = new OutboundQueue(BackpressurePolicy.fromProperties());
+        this.closed = new AtomicBoolean();
+        this.flushScheduled = new AtomicBoolean();
+        this.unacked = new UnackedBuffer();
+        this.protocol = Protocol.fromProperties();
+        channel.configureBlocking(false);
+        eventLoop.execute(new Runnable() {
             @Override
             public void run() {
                 try {
+                    key = eventLoop.register(channel, TCPConnection.this);
+                    sendHello();
                     listener.onConnectionReady(TCPConnection.this);
-                    while (!rxThread.isInterrupted()) {
-                        String msg = in.readLine();
-                        if (msg.charAt(0) == '`') {
-                            listener.onReceiveCommand(TCPConnection.this, msg);
-                        } else {
-                            listener.onReceiveString(TCPConnection.this, msg);
-                        }
-                    }
-
-                } catch (IOException e){
+                } catch (IOException | RuntimeException e) {
                     listener.onException(TCPConnection.this, e);
-                } finally {
-                    listener.onDisconnect(TCPConnection.this);
+                    disconnect();
                 }
             }
         });
-        rxThread.start();
+    }
 
+    public Protocol protocol() {
+        return protocol;
     }
 
-    public TCPConnection(TCPConnectionListener listener, String ipAddress, int port) throws IOException{
-        this(listener, new Socket(ipAddress, port));
+    public boolean compression() {
+        return compression;
     }
 
-    public synchronized void sendMessage(String msg) {
-        try {
-            out.write(msg + "\r\n");
-            out.flush();
-        } catch (IOException e) {
-            listener.onException(TCPConnection.this, e);
+    /**
+     * Whether both ends negotiated {@link UnackedBuffer#CAPABILITY}, so sequenced frames are acknowledged.
+     */
+    public boolean acks() {
+        return acks;
+    }
+
+    /**
+     * Highest sequence received so far; replayed frames may arrive below it.
+     */
+    public long lastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Sequence of the frame being dispatched, 0 when it carried none. Valid only inside
+     * {@link TCPConnectionListener#onReceiveString}.
+     */
+    public long currentSequence() {
+        return currentSequence;
+    }
+
+    public UnackedBuffer unacked() {
+        return unacked;
+    }
+
+    public InetAddress remoteAddress() {
+        return socket.getInetAddress();
+    }
+
+    /**
+     * Whether the connection is closed; the listener's {@code onDisconnect} runs only after this turns true.
+     */
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    public int queueDepth() {
+        return outbound.depth();
+    }
+
+    public long queuedBytes() {
+        return outbound.bytes();
+    }
+
+    public long droppedFrames() {
+        return outbound.dropped();
+    }
+
+    public long writeCalls() {
+        return writeCalls;
+    }
+
+    public long framesWritten() {
+        return framesWritten;
+    }
+
+    public void sendMessage(String msg) {
+        if (!msg.isEmpty() && msg.charAt(0) == '`') {
+            sendCommand(msg);
+        } else {
+            sendText(msg);
+        }
+    }
+
+    public void sendText(String msg) {
+        sendFrame(compress(protocol.encodeText(msg)));
+    }
+
+    public void sendCommand(String command) {
+        sendFrame(compress(protocol.encodeCommand(command)));
+    }
+
+    public void sendFrame(byte[] frame) {
+        if (closed.get()) {
+            return;
+        }
+        int overflow = outbound.offer(ByteBuffer.wrap(frame));
+        QUEUE_DEPTH.record(outbound.depth());
+        if (overflow > 0) {
+            DROPPED.add(overflow);
+        }
+        if (overflow == OutboundQueue.DISCONNECT) {
+            listener.onException(this, new IOException("Outbound queue of " + this + " stalled, disconnecting"));
             disconnect();
+            return;
+        }
+        if (overflow > 0 && outbound.policy() == BackpressurePolicy.COALESCE) {
+            outbound.offer(ByteBuffer.wrap(protocol.encodeText("... " + overflow + " messages skipped ...")));
+        }
+        if (channel != null) {
+            if (WRITE_BATCHING && !flushScheduled.compareAndSet(false, true)) {
+                return;
+            }
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleWrite();
+                }
+            });
+        } else if (writing.compareAndSet(false, true)) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Sends the sequenced {@code frame} as {@code wire}, its compressed form or the frame itself, and keeps
+     * the frame until the peer acknowledges it.
+     */
+    public void sendSequenced(long sequence, byte[] frame, byte[] wire) {
+        if (!acks) {
+            sendFrame(wire);
+            return;
+        }
+        synchronized (unacked) {
+            unacked.add(sequence, frame);
+            sendFrame(wire);
+        }
+    }
+
+    /**
+     * Sends several sequenced frames as one {@code wire} batch, keeping each until it is acknowledged.
+     */
+    public void sendSequenced(List<Long> sequences, List<byte[]> frames, byte[] wire) {
+        if (!acks) {
+            sendFrame(wire);
+            return;
+        }
+        synchronized (unacked) {
+            for (int i = 0; i < frames.size(); i++) {
+                unacked.add(sequences.get(i), frames.get(i));
+            }
+            sendFrame(wire);
         }
     }
 
     public synchronized void disconnect() {
-        rxThread.interrupt();
+        if (channel != null) {
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            });
+            return;
+        }
+        closed.set(true);
+        outbound.clear();
+        Thread reader = rxThread;
+        if (reader != null) {
+            reader.interrupt();
+        }
         try {
             socket.close();
         } catch (IOException e) {
@@ -64,6 +316,268 @@ public class TCPConnection {
         }
     }
 
+    private void drainOutbound() {
+        try {
+            if (WRITE_BATCHING) {
+                drainBatched();
+            } else {
+                ByteBuffer buffer;
+                while ((buffer = outbound.poll()) != null) {
+                    out.write(buffer.array(), buffer.position(), buffer.remaining());
+                    framesWritten++;
+                    FRAMES_OUT.increment();
+                }
+                out.flush();
+                writeCalls++;
+                WRITE_CALLS.increment();
+            }
+        } catch (IOException e) {
+            outbound.clear();
+            listener.onException(TCPConnection.this, e);
+            disconnect();
+        } finally {
+            writing.set(false);
+        }
+        if (!outbound.isEmpty() && writing.compareAndSet(false, true)) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Hands the outbound queue to a writer thread. When every writer is busy the connection cannot be served
+     * and is dropped, rather than failing the broadcast that was queueing to it.
+     */
+    private void scheduleDrain() {
+        try {
+            WRITERS.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drainOutbound();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            writing.set(false);
+            WRITES_REJECTED.increment();
+            listener.onException(this, new IOException("No writer for " + this + ": " + e.getMessage(), e));
+            disconnect();
+        }
+    }
+
+    private void drainBatched() throws IOException {
+        if (WRITE_LINGER_NANOS > 0) {
+            LockSupport.parkNanos(WRITE_LINGER_NANOS);
+        }
+        ByteBuffer buffer = BufferPool.acquire(BufferPool.DIRECT_SIZE);
+        try {
+            ByteBuffer frame;
+            while ((frame = outbound.poll()) != null) {
+                framesWritten++;
+                FRAMES_OUT.increment();
+                if (frame.remaining() > buffer.remaining() && buffer.position() > 0) {
+                    out.write(buffer.array(), 0, buffer.position());
+                    writeCalls++;
+                    WRITE_CALLS.increment();
+                    buffer.clear();
+                }
+                if (frame.remaining() > buffer.remaining()) {
+                    out.write(frame.array(), frame.position(), frame.remaining());
+                    writeCalls++;
+                    WRITE_CALLS.increment();
+                } else {
+                    buffer.put(frame);
+                }
+            }
+            if (buffer.position() > 0) {
+                out.write(buffer.array(), 0, buffer.position());
+                writeCalls++;
+                WRITE_CALLS.increment();
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    void handleRead(ByteBuffer buffer) {
+        try {
+            buffer.clear();
+            int read = channel.read(buffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            buffer.flip();
+            decoder.decode(buffer, this::dispatch);
+            flushAck();
+        } catch (IOException | RuntimeException e) {
+            listener.onException(this, e);
+            close();
+        }
+    }
+
+    void handleWrite() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        if (WRITE_BATCHING) {
+            flushScheduled.set(false);
+            writeBatched();
+            return;
+        }
+        try {
+            if (inFlight == null) {
+                inFlight = outbound.poll();
+            }
+            while (inFlight != null) {
+                channel.write(inFlight);
+                writeCalls++;
+                WRITE_CALLS.increment();
+                if (inFlight.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                framesWritten++;
+                FRAMES_OUT.increment();
+                inFlight = outbound.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            listener.onException(this, e);
+            close();
+        }
+    }
+
+    private void writeBatched() {
+        try {
+            while (true) {
+                if (batch == null) {
+                    if (inFlight == null && outbound.isEmpty()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+                    batch = BufferPool.acquireDirect();
+                    fillBatch();
+                    batch.flip();
+                }
+                channel.write(batch);
+                writeCalls++;
+                WRITE_CALLS.increment();
+                if (batch.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                BufferPool.releaseDirect(batch);
+                batch = null;
+            }
+        } catch (IOException e) {
+            listener.onException(this, e);
+            close();
+        }
+    }
+
+    private void fillBatch() {
+        while (batch.hasRemaining()) {
+            if (inFlight == null) {
+                inFlight = outbound.poll();
+                if (inFlight == null) {
+                    return;
+                }
+            }
+            if (inFlight.remaining() <= batch.remaining()) {
+                batch.put(inFlight);
+                inFlight = null;
+                framesWritten++;
+                FRAMES_OUT.increment();
+            } else if (batch.position() == 0) {
+                ByteBuffer slice = inFlight.duplicate();
+                slice.limit(slice.position() + batch.remaining());
+                batch.put(slice);
+                inFlight.position(slice.position());
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            listener.onException(this, e);
+        }
+        outbound.clear();
+        if (batch != null) {
+            BufferPool.releaseDirect(batch);
+            batch = null;
+        }
+        listener.onDisconnect(this);
+    }
+
+    private void sendHello() {
+        if (protocol == Protocol.BINARY) {
+            String capabilities = Compression.isEnabled() ? Compression.CAPABILITY : "";
+            if (UnackedBuffer.isEnabled()) {
+                capabilities = capabilities.isEmpty() ? UnackedBuffer.CAPABILITY
+                        : capabilities + "," + UnackedBuffer.CAPABILITY;
+            }
+            sendFrame(protocol.encode(Protocol.TYPE_HELLO, capabilities));
+        }
+    }
+
+    private void flushAck() {
+        if (receivedSinceAck > 0) {
+            receivedSinceAck = 0;
+            sendFrame(protocol.encodeAck(lastRead));
+            ACKS_SENT.increment();
+        }
+    }
+
+    private byte[] compress(byte[] frame) {
+        return compression ? Compression.compressFrame(frame) : frame;
+    }
+
+    private void dispatch(byte type, long sequence, String msg) throws IOException {
+        switch (type) {
+            case Protocol.TYPE_TEXT -> {
+                currentSequence = 0;
+                listener.onReceiveString(TCPConnection.this, msg);
+            }
+            case Protocol.TYPE_SEQUENCED_TEXT -> {
+                lastSequence = Math.max(lastSequence, sequence);
+                lastRead = sequence;
+                currentSequence = sequence;
+                listener.onReceiveString(TCPConnection.this, msg);
+                if (acks && ++receivedSinceAck >= ACK_EVERY) {
+                    flushAck();
+                }
+            }
+            case Protocol.TYPE_ACK -> {
+                ACKS_RECEIVED.increment();
+                synchronized (unacked) {
+                    unacked.acknowledge(sequence);
+                    UNACKED_DEPTH.record(unacked.size());
+                }
+            }
+            case Protocol.TYPE_COMMAND -> listener.onReceiveCommand(TCPConnection.this, msg);
+            case Protocol.TYPE_HELLO -> {
+                List<String> capabilities = Arrays.asList(msg.split(","));
+                compression = Compression.isEnabled() && capabilities.contains(Compression.CAPABILITY);
+                acks = UnackedBuffer.isEnabled() && capabilities.contains(UnackedBuffer.CAPABILITY);
+                if (protocol != Protocol.BINARY) {
+                    protocol = Protocol.BINARY;
+                    sendHello();
+                }
+                listener.onProtocolNegotiated(this);
+            }
+            default -> listener.onException(TCPConnection.this, new IOException("Unknown frame type " + type));
+        }
+    }
+
     @Override
     public String toString() {
         return "TCPConnection: " + socket.getInetAddress() + ": " + socket.getPort();
@@ -8,4 +8,11 @@ public interface TCPConnectionListener {
     void onDisconnect(TCPConnection connection);
     void onException(TCPConnection connection, Exception e);
     void onReceiveCommand(TCPConnection connection, String command) throws IOException;
+
+    /**
+     * Called once the peer's HELLO arrived, after the connection switched to {@link Protocol#BINARY} and took
+     * up the capabilities both ends share. A connection that stays on the line protocol never calls it.
+     */
+    default void onProtocolNegotiated(TCPConnection connection) throws IOException {
+    }
 }
@@ -0,0 +1,129 @@
+package com.chat.network;
+
+import com.chat.metrics.Counter;
+import com.chat.metrics.Metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sequenced frames sent on one connection that the peer has not acknowledged yet, in the order they
+ * were queued. An ACK names the last sequence the peer read; since frames arrive in queue order, that
+ * frame and everything before it is freed. When the window is full the oldest frame is evicted. Either way
+ * the buffer can no longer stand in for the journal below {@link #releasedUpTo()}: a peer that acknowledged
+ * a frame may still have lost it, for instance when it crashed before storing it.
+ */
+public class UnackedBuffer {
+    public final static String CAPABILITY = "ack";
+
+    private final static boolean ENABLED = Boolean.parseBoolean(System.getProperty("chat.ack", "true"));
+    private final static int CAPACITY = Integer.getInteger("chat.ack.window", 4096);
+    private final static int INITIAL_CAPACITY = 16;
+    private final static Counter EVICTED = Metrics.counter("unacked.evicted");
+
+    private long[] sequences;
+    private byte[][] frames;
+    private int head;
+    private int size;
+    private long bytes;
+    private long lastSequence;
+    private long releasedUpTo;
+
+    public UnackedBuffer() {
+        this.sequences = new long[Math.min(INITIAL_CAPACITY, CAPACITY)];
+        this.frames = new byte[sequences.length][];
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    public synchronized void add(long sequence, byte[] frame) {
+        if (size == frames.length && frames.length < CAPACITY) {
+            grow();
+        } else if (size == frames.length) {
+            release(1);
+            EVICTED.increment();
+        }
+        int tail = (head + size) % frames.length;
+        sequences[tail] = sequence;
+        frames[tail] = frame;
+        size++;
+        bytes += frame.length;
+        lastSequence = Math.max(lastSequence, sequence);
+    }
+
+    /**
+     * Frees every frame up to and including the one carrying {@code sequence}; returns how many were freed,
+     * or 0 when that frame is not buffered.
+     */
+    public synchronized int acknowledge(long sequence) {
+        for (int i = 0; i < size; i++) {
+            if (sequences[(head + i) % frames.length] == sequence) {
+                release(i + 1);
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the buffered frames with a sequence above {@code sequence}, oldest first.
+     */
+    public synchronized List<byte[]> framesAfter(long sequence) {
+        List<byte[]> after = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % frames.length;
+            if (sequences[index] > sequence) {
+                after.add(frames[index]);
+            }
+        }
+        return after;
+    }
+
+    /**
+     * Whether every frame above {@code sequence} that was ever added is still buffered, acknowledged or not.
+     */
+    public synchronized boolean coversAfter(long sequence) {
+        return releasedUpTo <= sequence;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized long lastSequence() {
+        return lastSequence;
+    }
+
+    public synchronized long releasedUpTo() {
+        return releasedUpTo;
+    }
+
+    private void grow() {
+        int capacity = Math.min(CAPACITY, frames.length * 2);
+        long[] grownSequences = new long[capacity];
+        byte[][] grownFrames = new byte[capacity][];
+        for (int i = 0; i < size; i++) {
+            grownSequences[i] = sequences[(head + i) % frames.length];
+            grownFrames[i] = frames[(head + i) % frames.length];
+        }
+        sequences = grownSequences;
+        frames = grownFrames;
+        head = 0;
+    }
+
+    private void release(int count) {
+        for (int i = 0; i < count; i++) {
+            releasedUpTo = Math.max(releasedUpTo, sequences[head]);
+            bytes -= frames[head].length;
+            frames[head] = null;
+            head = (head + 1) % frames.length;
+        }
+        size -= count;
+    }
+}
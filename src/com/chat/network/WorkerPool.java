@@ -0,0 +1,78 @@
+package com.chat.network;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class WorkerPool implements Executor {
+    public enum Mode { VIRTUAL, PLATFORM }
+
+    private final String name;
+    private final int maxConcurrency;
+    private final Semaphore permits;
+    private final NamedThreadFactory threadFactory;
+    private final ThreadPoolExecutor platformPool;
+
+    public WorkerPool(String name, Mode mode, int maxConcurrency) {
+        this.name = name;
+        this.maxConcurrency = maxConcurrency;
+        this.permits = new Semaphore(maxConcurrency);
+        this.threadFactory = new NamedThreadFactory(name, mode == Mode.VIRTUAL);
+        if (threadFactory.isVirtual()) {
+            this.platformPool = null;
+        } else {
+            this.platformPool = new ThreadPoolExecutor(0, maxConcurrency, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), threadFactory);
+        }
+    }
+
+    public static WorkerPool fromProperties(String name, int defaultMaxConcurrency) {
+        Mode mode = "virtual".equalsIgnoreCase(System.getProperty("chat.threads")) ? Mode.VIRTUAL : Mode.PLATFORM;
+        int max = Integer.getInteger("chat." + name + ".max", defaultMaxConcurrency);
+        return new WorkerPool(name, mode, max);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (!permits.tryAcquire()) {
+            throw new RejectedExecutionException(name + " pool is saturated");
+        }
+        Runnable bounded = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            }
+        };
+        try {
+            if (platformPool != null) {
+                platformPool.execute(bounded);
+            } else {
+                threadFactory.newThread(bounded).start();
+            }
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public int maxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public int available() {
+        return permits.availablePermits();
+    }
+
+    public void shutdown() {
+        if (platformPool != null) {
+            platformPool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.chat.search;
+
+/**
+ * Walks the documents of one posting list from the newest to the oldest. A new cursor is positioned
+ * before its first document.
+ */
+abstract class Cursor {
+    protected long doc = Long.MAX_VALUE;
+
+    long doc() {
+        return doc;
+    }
+
+    /**
+     * Moves to the next older document; false when there is none.
+     */
+    abstract boolean next();
+
+    /**
+     * Positions of the term in the current document, ascending.
+     */
+    abstract int[] positions();
+
+    /**
+     * Number of documents in the list, to start intersections with the rarest one.
+     */
+    abstract int cost();
+
+    /**
+     * Moves to the newest document not newer than {@code target}; false when there is none.
+     */
+    boolean advance(long target) {
+        while (doc > target) {
+            if (!next()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,255 @@
+package com.chat.search;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable, memory-mapped segment file: the posting lists, then the term dictionary sorted by UTF-8
+ * bytes, then a table with the offset of every dictionary entry, then a fixed footer. Lookups binary
+ * search the offset table, so nothing but the footer is read when the segment is opened.
+ */
+class DiskSegment implements Segment {
+    final static String SUFFIX = ".seg";
+    final static int MAGIC = 0x43534547;
+    final static int VERSION = 1;
+    final static int FOOTER_SIZE = 4 * Integer.BYTES + 2 * Long.BYTES + 2 * Integer.BYTES;
+
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    private final int dictionaryOffset;
+    private final int offsetsOffset;
+    private final int termCount;
+    private final int docCount;
+    private final long firstDoc;
+    private final long lastDoc;
+
+    private DiskSegment(Path file, MappedByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        int footer = buffer.capacity() - FOOTER_SIZE;
+        if (footer < 0 || buffer.getInt(footer + FOOTER_SIZE - Integer.BYTES) != MAGIC
+                || buffer.getInt(footer + FOOTER_SIZE - 2 * Integer.BYTES) != VERSION) {
+            throw new StreamCorruptedException(file + " is not a search segment");
+        }
+        this.dictionaryOffset = buffer.getInt(footer);
+        this.offsetsOffset = buffer.getInt(footer + Integer.BYTES);
+        this.termCount = buffer.getInt(footer + 2 * Integer.BYTES);
+        this.docCount = buffer.getInt(footer + 3 * Integer.BYTES);
+        this.firstDoc = buffer.getLong(footer + 4 * Integer.BYTES);
+        this.lastDoc = buffer.getLong(footer + 4 * Integer.BYTES + Long.BYTES);
+        if (dictionaryOffset < 0 || offsetsOffset < dictionaryOffset
+                || (long) offsetsOffset + (long) termCount * Integer.BYTES != footer) {
+            throw new StreamCorruptedException(file + " has an inconsistent footer");
+        }
+    }
+
+    static DiskSegment open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new DiskSegment(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    Path file() {
+        return file;
+    }
+
+    long bytes() {
+        return buffer.capacity();
+    }
+
+    int termCount() {
+        return termCount;
+    }
+
+    byte[] termBytes(int ordinal) {
+        int entry = entry(ordinal);
+        byte[] term = new byte[buffer.getShort(entry)];
+        buffer.get(entry + Short.BYTES, term);
+        return term;
+    }
+
+    Cursor postings(int ordinal) {
+        int entry = entry(ordinal);
+        int postings = entry + Short.BYTES + buffer.getShort(entry);
+        return new DiskCursor(buffer, buffer.getInt(postings), buffer.getInt(postings + Integer.BYTES));
+    }
+
+    @Override
+    public Cursor term(String term) {
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        int ordinal = lowerBound(key);
+        return ordinal < termCount && compare(ordinal, key, false) == 0 ? postings(ordinal) : null;
+    }
+
+    @Override
+    public List<Cursor> prefix(String prefix, int max) {
+        byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+        int first = lowerBound(key);
+        int end = first;
+        while (end < termCount && compare(end, key, true) == 0) {
+            end++;
+        }
+        int[] ordinals = new int[end - first];
+        for (int i = 0; i < ordinals.length; i++) {
+            ordinals[i] = first + i;
+        }
+        if (ordinals.length > max) {
+            long[] ranked = new long[ordinals.length];
+            for (int i = 0; i < ordinals.length; i++) {
+                ranked[i] = ((long) docFreq(ordinals[i]) << 32) | ordinals[i];
+            }
+            Arrays.sort(ranked);
+            ordinals = new int[max];
+            for (int i = 0; i < max; i++) {
+                ordinals[i] = (int) ranked[ranked.length - 1 - i];
+            }
+        }
+        List<Cursor> cursors = new ArrayList<>(ordinals.length);
+        for (int ordinal : ordinals) {
+            cursors.add(postings(ordinal));
+        }
+        return cursors;
+    }
+
+    @Override
+    public long firstDoc() {
+        return firstDoc;
+    }
+
+    @Override
+    public long lastDoc() {
+        return lastDoc;
+    }
+
+    @Override
+    public int docCount() {
+        return docCount;
+    }
+
+    private int entry(int ordinal) {
+        return buffer.getInt(offsetsOffset + ordinal * Integer.BYTES);
+    }
+
+    private int docFreq(int ordinal) {
+        int entry = entry(ordinal);
+        return buffer.getInt(entry + Short.BYTES + buffer.getShort(entry) + Integer.BYTES);
+    }
+
+    private int lowerBound(byte[] key) {
+        int low = 0;
+        int high = termCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(middle, key, false) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Compares the term at {@code ordinal} with {@code key} as unsigned bytes; with {@code prefixOnly}
+     * a term that starts with the key compares equal.
+     */
+    private int compare(int ordinal, byte[] key, boolean prefixOnly) {
+        int entry = entry(ordinal);
+        int length = buffer.getShort(entry);
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int difference = (buffer.get(entry + Short.BYTES + i) & 0xFF) - (key[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        if (prefixOnly && length >= key.length) {
+            return 0;
+        }
+        return length - key.length;
+    }
+
+    @Override
+    public String toString() {
+        return "DiskSegment: " + file.getFileName() + " [" + firstDoc + ", " + lastDoc + "]";
+    }
+
+    private static class DiskCursor extends Cursor {
+        private final ByteBuffer buffer;
+        private final int cost;
+        private int position;
+        private int remaining;
+        private int pendingPositions;
+
+        DiskCursor(ByteBuffer buffer, int offset, int docFreq) {
+            this.buffer = buffer;
+            this.cost = docFreq;
+            this.position = offset;
+            this.remaining = readVInt();
+        }
+
+        @Override
+        boolean next() {
+            while (pendingPositions > 0) {
+                skipVarint();
+                pendingPositions--;
+            }
+            if (remaining == 0) {
+                return false;
+            }
+            long gap = readVLong();
+            doc = doc == Long.MAX_VALUE ? gap : doc - gap;
+            pendingPositions = readVInt();
+            remaining--;
+            return true;
+        }
+
+        @Override
+        int[] positions() {
+            int[] positions = new int[pendingPositions];
+            int last = 0;
+            for (int i = 0; i < positions.length; i++) {
+                last += readVInt();
+                positions[i] = last;
+            }
+            pendingPositions = 0;
+            return positions;
+        }
+
+        @Override
+        int cost() {
+            return cost;
+        }
+
+        private int readVInt() {
+            return (int) readVLong();
+        }
+
+        private long readVLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(position++);
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        private void skipVarint() {
+            while (buffer.get(position++) < 0) {
+                // continuation byte
+            }
+        }
+    }
+}
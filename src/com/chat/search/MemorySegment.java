@@ -0,0 +1,141 @@
+package com.chat.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The newest documents of an index, before they are flushed to a segment file. Documents must be added
+ * in ascending order; the owner serializes writers and readers while the segment is still growing.
+ */
+class MemorySegment implements Segment {
+    private final Map<String, TermPostings> terms;
+    private long firstDoc;
+    private long lastDoc;
+    private int docCount;
+
+    static class TermPostings {
+        private long[] docs = new long[4];
+        private int[] starts = new int[4];
+        private int[] positions = new int[4];
+        private int size;
+        private int positionCount;
+
+        private void add(long doc, int position) {
+            if (size == 0 || docs[size - 1] != doc) {
+                if (size == docs.length) {
+                    docs = Arrays.copyOf(docs, size * 2);
+                    starts = Arrays.copyOf(starts, size * 2);
+                }
+                docs[size] = doc;
+                starts[size] = positionCount;
+                size++;
+            }
+            if (positionCount == positions.length) {
+                positions = Arrays.copyOf(positions, positionCount * 2);
+            }
+            positions[positionCount++] = position;
+        }
+
+        void encode(PostingsEncoder encoder) {
+            for (int i = size - 1; i >= 0; i--) {
+                int end = i + 1 < size ? starts[i + 1] : positionCount;
+                encoder.add(docs[i], positions, starts[i], end - starts[i]);
+            }
+        }
+    }
+
+    MemorySegment() {
+        this.terms = new HashMap<>();
+    }
+
+    void add(long doc, List<String> tokens) {
+        for (int position = 0; position < tokens.size(); position++) {
+            terms.computeIfAbsent(tokens.get(position), term -> new TermPostings()).add(doc, position);
+        }
+        if (docCount == 0) {
+            firstDoc = doc;
+        }
+        lastDoc = doc;
+        docCount++;
+    }
+
+    Map<String, TermPostings> terms() {
+        return terms;
+    }
+
+    @Override
+    public Cursor term(String term) {
+        TermPostings postings = terms.get(term);
+        return postings == null ? null : new MemoryCursor(postings);
+    }
+
+    @Override
+    public List<Cursor> prefix(String prefix, int max) {
+        List<TermPostings> matches = new ArrayList<>();
+        for (Map.Entry<String, TermPostings> entry : terms.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                matches.add(entry.getValue());
+            }
+        }
+        if (matches.size() > max) {
+            matches.sort(Comparator.comparingInt((TermPostings postings) -> postings.size).reversed());
+            matches = matches.subList(0, max);
+        }
+        List<Cursor> cursors = new ArrayList<>(matches.size());
+        for (TermPostings postings : matches) {
+            cursors.add(new MemoryCursor(postings));
+        }
+        return cursors;
+    }
+
+    @Override
+    public long firstDoc() {
+        return firstDoc;
+    }
+
+    @Override
+    public long lastDoc() {
+        return lastDoc;
+    }
+
+    @Override
+    public int docCount() {
+        return docCount;
+    }
+
+    private static class MemoryCursor extends Cursor {
+        private final TermPostings postings;
+        private final int size;
+        private int index;
+
+        MemoryCursor(TermPostings postings) {
+            this.postings = postings;
+            this.size = postings.size;
+            this.index = size;
+        }
+
+        @Override
+        boolean next() {
+            if (index == 0) {
+                return false;
+            }
+            doc = postings.docs[--index];
+            return true;
+        }
+
+        @Override
+        int[] positions() {
+            int end = index + 1 < postings.size ? postings.starts[index + 1] : postings.positionCount;
+            return Arrays.copyOfRange(postings.positions, postings.starts[index], end);
+        }
+
+        @Override
+        int cost() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.chat.search;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Encodes one posting list the way segment files store it: the document count, then for each document,
+ * newest first, the gap to the previous document (the first one whole), the term frequency and the
+ * gaps between positions, all as variable-length integers.
+ */
+class PostingsEncoder {
+    private byte[] bytes = new byte[64];
+    private int length;
+    private int docFreq;
+    private long previous = -1;
+
+    void add(long doc, int[] positions, int offset, int count) {
+        writeVLong(previous < 0 ? doc : previous - doc);
+        writeVLong(count);
+        int last = 0;
+        for (int i = offset; i < offset + count; i++) {
+            writeVLong(positions[i] - last);
+            last = positions[i];
+        }
+        previous = doc;
+        docFreq++;
+    }
+
+    int docFreq() {
+        return docFreq;
+    }
+
+    /**
+     * Writes the list and returns its size in bytes.
+     */
+    int writeTo(DataOutput out) throws IOException {
+        int header = writeVInt(out, docFreq);
+        out.write(bytes, 0, length);
+        return header + length;
+    }
+
+    void reset() {
+        length = 0;
+        docFreq = 0;
+        previous = -1;
+    }
+
+    private void writeVLong(long value) {
+        if (length + 10 > bytes.length) {
+            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        }
+        while ((value & ~0x7FL) != 0) {
+            bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[length++] = (byte) value;
+    }
+
+    private static int writeVInt(DataOutput out, int value) throws IOException {
+        int written = 1;
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+            written++;
+        }
+        out.writeByte(value);
+        return written;
+    }
+}
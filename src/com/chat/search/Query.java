@@ -0,0 +1,67 @@
+package com.chat.search;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A parsed search: every clause must match. A bare word is a term, a word ending in {@code *} a prefix,
+ * and quoted words, or a word the tokenizer splits such as {@code e-mail}, a phrase.
+ */
+class Query {
+    static class Clause {
+        final String[] terms;
+        final boolean prefix;
+
+        Clause(String[] terms, boolean prefix) {
+            this.terms = terms;
+            this.prefix = prefix;
+        }
+    }
+
+    final List<Clause> clauses;
+
+    private Query(List<Clause> clauses) {
+        this.clauses = clauses;
+    }
+
+    static Query parse(String text) {
+        List<Clause> clauses = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '"') {
+                int end = text.indexOf('"', i + 1);
+                end = end < 0 ? text.length() : end;
+                addWords(clauses, text.substring(i + 1, end), false);
+                i = end + 1;
+            } else {
+                int end = i;
+                while (end < text.length() && !Character.isWhitespace(text.charAt(end)) && text.charAt(end) != '"') {
+                    end++;
+                }
+                String word = text.substring(i, end);
+                boolean prefix = word.endsWith("*");
+                addWords(clauses, prefix ? word.substring(0, word.length() - 1) : word, prefix);
+                i = end;
+            }
+        }
+        return new Query(clauses);
+    }
+
+    private static void addWords(List<Clause> clauses, String words, boolean prefix) {
+        List<String> tokens = Tokenizer.tokens(words);
+        if (tokens.isEmpty()) {
+            return;
+        }
+        if (prefix) {
+            if (tokens.size() > 1) {
+                clauses.add(new Clause(tokens.subList(0, tokens.size() - 1).toArray(new String[0]), false));
+            }
+            clauses.add(new Clause(new String[] {tokens.get(tokens.size() - 1)}, true));
+        } else {
+            clauses.add(new Clause(tokens.toArray(new String[0]), false));
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package com.chat.search;
+
+import com.chat.metrics.Counter;
+import com.chat.metrics.Histogram;
+import com.chat.metrics.Log;
+import com.chat.metrics.Metrics;
+import com.chat.network.NamedThreadFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+
+/**
+ * Incremental full-text index over chat messages. The caller numbers documents, with the history index
+ * or the journal sequence, and adds them in ascending order; numbers at or below {@link #lastDoc()} are
+ * ignored, so a feeder resumes from there after a restart. New documents collect in memory and are
+ * flushed every {@code chat.search.flushDocs} to a memory-mapped segment file; a background thread
+ * merges the smallest run of neighbouring segments while there are more than {@code chat.search.maxSegments}.
+ * Posting lists run from the newest document down, so a search stops as soon as it has enough hits.
+ */
+public class SearchIndex implements Closeable {
+    private final static Log LOG = Log.get("search");
+    private final static int FLUSH_DOCS = Integer.getInteger("chat.search.flushDocs", 16384);
+    private final static int MAX_SEGMENTS = Integer.getInteger("chat.search.maxSegments", 8);
+    private final static int MERGE_FACTOR = Math.max(2, Integer.getInteger("chat.search.mergeFactor", 4));
+    private final static long MAX_SEGMENT_BYTES = Long.getLong("chat.search.maxSegmentBytes", 1L << 30);
+    private final static int MAX_EXPANSIONS = Integer.getInteger("chat.search.maxExpansions", 256);
+    private final static Histogram QUERY_NANOS = Metrics.histogram("search.query.nanos");
+    private final static Counter INDEXED = Metrics.counter("search.docs.indexed");
+    private final static Counter FLUSHES = Metrics.counter("search.flushes");
+    private final static Counter MERGES = Metrics.counter("search.merges");
+
+    private final Path directory;
+    private final ExecutorService background;
+    private volatile List<DiskSegment> segments;
+    private volatile List<MemorySegment> flushing;
+    private volatile boolean closed;
+    private MemorySegment memory;
+    private long lastDoc;
+
+    public SearchIndex(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        this.segments = load(directory);
+        this.flushing = Collections.emptyList();
+        this.memory = new MemorySegment();
+        this.lastDoc = segments.isEmpty() ? 0 : segments.get(0).lastDoc();
+        this.background = Executors.newSingleThreadExecutor(new NamedThreadFactory("search-merge", false));
+        Metrics.gauge("search.segments", this::segmentCount);
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                merge();
+            }
+        });
+    }
+
+    /**
+     * Highest document number indexed so far; a feeder continues after it.
+     */
+    public synchronized long lastDoc() {
+        return lastDoc;
+    }
+
+    /**
+     * Indexes {@code text} as document {@code doc}; returns false when that number is already covered.
+     */
+    public boolean add(long doc, String text) {
+        List<String> tokens = Tokenizer.tokens(text);
+        synchronized (this) {
+            if (doc <= lastDoc || closed) {
+                return false;
+            }
+            memory.add(doc, tokens);
+            lastDoc = doc;
+            INDEXED.increment();
+            if (memory.docCount() >= FLUSH_DOCS) {
+                roll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns up to {@code limit} documents matching every word of {@code query}, newest first. Words
+     * ending in {@code *} match as prefixes and quoted words as phrases.
+     */
+    public List<Long> search(String query, int limit) {
+        return search(query, limit, null);
+    }
+
+    /**
+     * Like {@link #search(String, int)}, but only documents {@code filter} accepts are returned and count
+     * toward {@code limit}, so a caller that can use only some documents still gets a full page. The filter
+     * sees documents newest first and runs with the index locked while it searches the in-memory documents,
+     * so it must not call back into the index.
+     */
+    public List<Long> search(String query, int limit, LongPredicate filter) {
+        long start = System.nanoTime();
+        Query parsed = Query.parse(query);
+        List<Long> hits = new ArrayList<>();
+        if (parsed.clauses.isEmpty() || limit <= 0) {
+            return hits;
+        }
+        List<MemorySegment> frozen;
+        List<DiskSegment> disk;
+        synchronized (this) {
+            search(memory, parsed, limit, filter, hits);
+            frozen = flushing;
+            disk = segments;
+        }
+        for (MemorySegment segment : frozen) {
+            search(segment, parsed, limit, filter, hits);
+        }
+        for (DiskSegment segment : disk) {
+            search(segment, parsed, limit, filter, hits);
+        }
+        QUERY_NANOS.recordSince(start);
+        return hits;
+    }
+
+    /**
+     * Flushes the documents still in memory and waits for running merges.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (memory.docCount() > 0) {
+                roll();
+            }
+        }
+        background.shutdown();
+        try {
+            if (!background.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOG.warn("close.timeout", "directory", directory);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int segmentCount() {
+        return segments.size();
+    }
+
+    private static void search(Segment segment, Query query, int limit, LongPredicate filter, List<Long> hits) {
+        if (hits.size() >= limit || segment.docCount() == 0) {
+            return;
+        }
+        List<Cursor> cursors = new ArrayList<>();
+        List<Cursor[]> phrases = new ArrayList<>();
+        for (Query.Clause clause : query.clauses) {
+            if (clause.prefix) {
+                List<Cursor> expansions = segment.prefix(clause.terms[0], MAX_EXPANSIONS);
+                if (expansions.isEmpty()) {
+                    return;
+                }
+                cursors.add(expansions.size() == 1 ? expansions.get(0) : new UnionCursor(expansions));
+                continue;
+            }
+            Cursor[] phrase = new Cursor[clause.terms.length];
+            for (int i = 0; i < phrase.length; i++) {
+                phrase[i] = segment.term(clause.terms[i]);
+                if (phrase[i] == null) {
+                    return;
+                }
+                cursors.add(phrase[i]);
+            }
+            if (phrase.length > 1) {
+                phrases.add(phrase);
+            }
+        }
+        cursors.sort(Comparator.comparingInt(Cursor::cost));
+        Cursor lead = cursors.get(0);
+        if (!lead.next()) {
+            return;
+        }
+        while (hits.size() < limit) {
+            long candidate = lead.doc();
+            boolean matched = true;
+            for (int i = 1; i < cursors.size(); i++) {
+                Cursor cursor = cursors.get(i);
+                if (!cursor.advance(candidate)) {
+                    return;
+                }
+                if (cursor.doc() != candidate) {
+                    if (!lead.advance(cursor.doc())) {
+                        return;
+                    }
+                    matched = false;
+                    break;
+                }
+            }
+            if (matched) {
+                if (phrasesMatch(phrases) && (filter == null || filter.test(candidate))) {
+                    hits.add(candidate);
+                }
+                if (!lead.next()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static boolean phrasesMatch(List<Cursor[]> phrases) {
+        for (Cursor[] phrase : phrases) {
+            int[][] positions = new int[phrase.length][];
+            for (int i = 0; i < phrase.length; i++) {
+                positions[i] = phrase[i].positions();
+            }
+            boolean found = false;
+            for (int start : positions[0]) {
+                int i = 1;
+                while (i < phrase.length && Arrays.binarySearch(positions[i], start + i) >= 0) {
+                    i++;
+                }
+                if (i == phrase.length) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void roll() {
+        MemorySegment frozen = memory;
+        memory = new MemorySegment();
+        List<MemorySegment> updated = new ArrayList<>(flushing.size() + 1);
+        updated.add(frozen);
+        updated.addAll(flushing);
+        flushing = updated;
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush(frozen);
+            }
+        });
+    }
+
+    private void flush(MemorySegment frozen) {
+        long start = System.nanoTime();
+        DiskSegment segment;
+        try {
+            segment = write(frozen);
+        } catch (IOException e) {
+            LOG.warn("flush.failed", "directory", directory, "error", e);
+            return;
+        }
+        synchronized (this) {
+            List<DiskSegment> updated = new ArrayList<>(segments.size() + 1);
+            updated.add(segment);
+            updated.addAll(segments);
+            segments = updated;
+            List<MemorySegment> remaining = new ArrayList<>(flushing);
+            remaining.remove(frozen);
+            flushing = remaining;
+        }
+        FLUSHES.increment();
+        LOG.debug("flushed", "segment", segment, "docs", frozen.docCount(), "bytes", segment.bytes(),
+                "ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        merge();
+    }
+
+    private DiskSegment write(MemorySegment frozen) throws IOException {
+        TreeMap<byte[], MemorySegment.TermPostings> sorted = new TreeMap<>(Arrays::compareUnsigned);
+        for (Map.Entry<String, MemorySegment.TermPostings> entry : frozen.terms().entrySet()) {
+            sorted.put(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue());
+        }
+        try (SegmentWriter writer = new SegmentWriter(directory)) {
+            PostingsEncoder encoder = new PostingsEncoder();
+            for (Map.Entry<byte[], MemorySegment.TermPostings> entry : sorted.entrySet()) {
+                encoder.reset();
+                entry.getValue().encode(encoder);
+                writer.addTerm(entry.getKey(), encoder);
+            }
+            return writer.finish(directory, frozen.firstDoc(), frozen.lastDoc(), frozen.docCount());
+        }
+    }
+
+    /**
+     * Runs on the background thread only, which also installs flushed segments, so the list it reads
+     * cannot change underneath it except through itself.
+     */
+    private void merge() {
+        while (!closed) {
+            List<DiskSegment> current = segments;
+            if (current.size() <= MAX_SEGMENTS) {
+                return;
+            }
+            int best = -1;
+            long bestBytes = Long.MAX_VALUE;
+            for (int i = 0; i + MERGE_FACTOR <= current.size(); i++) {
+                long bytes = 0;
+                for (int j = i; j < i + MERGE_FACTOR; j++) {
+                    bytes += current.get(j).bytes();
+                }
+                if (bytes < bestBytes && bytes <= MAX_SEGMENT_BYTES) {
+                    best = i;
+                    bestBytes = bytes;
+                }
+            }
+            if (best < 0) {
+                return;
+            }
+            List<DiskSegment> inputs = new ArrayList<>(current.subList(best, best + MERGE_FACTOR));
+            long start = System.nanoTime();
+            DiskSegment merged;
+            try {
+                merged = merge(inputs);
+            } catch (IOException e) {
+                LOG.warn("merge.failed", "directory", directory, "error", e);
+                return;
+            }
+            synchronized (this) {
+                List<DiskSegment> updated = new ArrayList<>(segments);
+                int at = updated.indexOf(inputs.get(0));
+                updated.removeAll(inputs);
+                updated.add(at, merged);
+                segments = updated;
+            }
+            MERGES.increment();
+            LOG.debug("merged", "segment", merged, "inputs", inputs.size(), "bytes", merged.bytes(),
+                    "ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            for (DiskSegment input : inputs) {
+                try {
+                    Files.deleteIfExists(input.file());
+                } catch (IOException e) {
+                    LOG.debug("delete.deferred", "file", input.file(), "error", e);
+                }
+            }
+        }
+    }
+
+    private DiskSegment merge(List<DiskSegment> inputs) throws IOException {
+        PriorityQueue<TermSource> queue = new PriorityQueue<>();
+        long firstDoc = Long.MAX_VALUE;
+        long lastDoc = 0;
+        int docCount = 0;
+        for (int i = 0; i < inputs.size(); i++) {
+            DiskSegment input = inputs.get(i);
+            firstDoc = Math.min(firstDoc, input.firstDoc());
+            lastDoc = Math.max(lastDoc, input.lastDoc());
+            docCount += input.docCount();
+            TermSource source = new TermSource(input, i);
+            if (source.advance()) {
+                queue.add(source);
+            }
+        }
+        try (SegmentWriter writer = new SegmentWriter(directory)) {
+            PostingsEncoder encoder = new PostingsEncoder();
+            while (!queue.isEmpty()) {
+                byte[] term = queue.peek().term;
+                encoder.reset();
+                while (!queue.isEmpty() && Arrays.equals(queue.peek().term, term)) {
+                    TermSource source = queue.poll();
+                    Cursor cursor = source.segment.postings(source.ordinal);
+                    while (cursor.next()) {
+                        int[] positions = cursor.positions();
+                        encoder.add(cursor.doc(), positions, 0, positions.length);
+                    }
+                    if (source.advance()) {
+                        queue.add(source);
+                    }
+                }
+                writer.addTerm(term, encoder);
+            }
+            return writer.finish(directory, firstDoc, lastDoc, docCount);
+        }
+    }
+
+    /**
+     * Opens the segment files, dropping leftovers of an interrupted flush or merge: temporary files and
+     * segments whose documents a merged segment already covers. Returns them newest first.
+     */
+    private static List<DiskSegment> load(Path directory) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.tmp")) {
+            for (Path file : stream) {
+                Files.deleteIfExists(file);
+            }
+        }
+        List<long[]> ranges = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + DiskSegment.SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                String[] range = name.substring(0, name.length() - DiskSegment.SUFFIX.length()).split("-");
+                try {
+                    ranges.add(new long[] {Long.parseLong(range[0]), Long.parseLong(range[1]), files.size()});
+                    files.add(file);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    LOG.warn("segment.unknown", "file", file);
+                }
+            }
+        }
+        ranges.sort(Comparator.comparingLong((long[] range) -> range[0])
+                .thenComparing(Comparator.comparingLong((long[] range) -> range[1]).reversed()));
+        List<DiskSegment> loaded = new ArrayList<>();
+        long covered = 0;
+        for (long[] range : ranges) {
+            Path file = files.get((int) range[2]);
+            if (range[1] <= covered) {
+                Files.deleteIfExists(file);
+                continue;
+            }
+            try {
+                loaded.add(DiskSegment.open(file));
+                covered = range[1];
+            } catch (IOException e) {
+                LOG.warn("segment.corrupt", "file", file, "error", e);
+                Files.deleteIfExists(file);
+            }
+        }
+        Collections.reverse(loaded);
+        return loaded;
+    }
+
+    private static class TermSource implements Comparable<TermSource> {
+        private final DiskSegment segment;
+        private final int age;
+        private int ordinal = -1;
+        private byte[] term;
+
+        TermSource(DiskSegment segment, int age) {
+            this.segment = segment;
+            this.age = age;
+        }
+
+        boolean advance() {
+            if (++ordinal >= segment.termCount()) {
+                return false;
+            }
+            term = segment.termBytes(ordinal);
+            return true;
+        }
+
+        @Override
+        public int compareTo(TermSource other) {
+            int order = Arrays.compareUnsigned(term, other.term);
+            return order != 0 ? order : Integer.compare(age, other.age);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.chat.search;
+
+import java.util.List;
+
+/**
+ * A searchable run of documents: the in-memory tail of the index or a segment file.
+ */
+interface Segment {
+    /**
+     * Cursor over the documents containing {@code term}, or null when none does.
+     */
+    Cursor term(String term);
+
+    /**
+     * Cursors for the terms starting with {@code prefix}, at most {@code max} of the most frequent.
+     */
+    List<Cursor> prefix(String prefix, int max);
+
+    long firstDoc();
+
+    long lastDoc();
+
+    int docCount();
+}
@@ -0,0 +1,94 @@
+package com.chat.search;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes a {@link DiskSegment} term by term, in ascending UTF-8 byte order, into a temporary file that
+ * {@link #finish} forces to disk and renames into place, so a crash never leaves a half-written segment.
+ */
+class SegmentWriter implements Closeable {
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    private final Path temporary;
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream dictionaryBytes;
+    private final DataOutputStream dictionary;
+    private int[] entries;
+    private int termCount;
+    private long written;
+    private boolean finished;
+
+    SegmentWriter(Path directory) throws IOException {
+        this.temporary = Files.createTempFile(directory, "segment", ".tmp");
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), BUFFER_SIZE));
+        this.dictionaryBytes = new ByteArrayOutputStream();
+        this.dictionary = new DataOutputStream(dictionaryBytes);
+        this.entries = new int[1024];
+    }
+
+    /**
+     * Names a segment file after the documents it covers, which is how overlapping leftovers of an
+     * interrupted merge are recognized when the index is opened.
+     */
+    static Path fileFor(Path directory, long firstDoc, long lastDoc) {
+        return directory.resolve(firstDoc + "-" + lastDoc + DiskSegment.SUFFIX);
+    }
+
+    void addTerm(byte[] term, PostingsEncoder postings) throws IOException {
+        if (written > Integer.MAX_VALUE - BUFFER_SIZE) {
+            throw new IOException("Search segment exceeds 2 GB");
+        }
+        if (termCount == entries.length) {
+            entries = Arrays.copyOf(entries, termCount * 2);
+        }
+        entries[termCount++] = dictionary.size();
+        dictionary.writeShort(term.length);
+        dictionary.write(term);
+        dictionary.writeInt((int) written);
+        dictionary.writeInt(postings.docFreq());
+        written += postings.writeTo(out);
+    }
+
+    DiskSegment finish(Path directory, long firstDoc, long lastDoc, int docCount) throws IOException {
+        int dictionaryOffset = (int) written;
+        dictionaryBytes.writeTo(out);
+        int offsetsOffset = dictionaryOffset + dictionary.size();
+        for (int i = 0; i < termCount; i++) {
+            out.writeInt(dictionaryOffset + entries[i]);
+        }
+        out.writeInt(dictionaryOffset);
+        out.writeInt(offsetsOffset);
+        out.writeInt(termCount);
+        out.writeInt(docCount);
+        out.writeLong(firstDoc);
+        out.writeLong(lastDoc);
+        out.writeInt(DiskSegment.VERSION);
+        out.writeInt(DiskSegment.MAGIC);
+        out.close();
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Path file = fileFor(directory, firstDoc, lastDoc);
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        finished = true;
+        return DiskSegment.open(file);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!finished) {
+            out.close();
+            Files.deleteIfExists(temporary);
+        }
+    }
+}
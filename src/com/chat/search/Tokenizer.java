@@ -0,0 +1,36 @@
+package com.chat.search;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits text into lower-case runs of letters and digits, in any script. Terms longer than
+ * {@link #MAX_TERM_LENGTH} characters are cut; every run keeps its position so phrases stay adjacent.
+ */
+class Tokenizer {
+    final static int MAX_TERM_LENGTH = 64;
+
+    private Tokenizer() {
+    }
+
+    static List<String> tokens(String text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            i += Character.charCount(codePoint);
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (term.length() < MAX_TERM_LENGTH) {
+                    term.appendCodePoint(Character.toLowerCase(codePoint));
+                }
+            } else if (term.length() > 0) {
+                tokens.add(term.toString());
+                term.setLength(0);
+            }
+        }
+        if (term.length() > 0) {
+            tokens.add(term.toString());
+        }
+        return tokens;
+    }
+}
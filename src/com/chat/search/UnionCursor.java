@@ -0,0 +1,64 @@
+package com.chat.search;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Documents matching any of several cursors, which is how a prefix matches all of its expansions.
+ */
+class UnionCursor extends Cursor {
+    private final PriorityQueue<Cursor> heap;
+    private final int cost;
+
+    UnionCursor(List<Cursor> cursors) {
+        this.heap = new PriorityQueue<>(cursors.size(), Comparator.comparingLong(Cursor::doc).reversed());
+        int total = 0;
+        for (Cursor cursor : cursors) {
+            total += cursor.cost();
+            if (cursor.next()) {
+                heap.add(cursor);
+            }
+        }
+        this.cost = total;
+    }
+
+    @Override
+    boolean next() {
+        if (heap.isEmpty()) {
+            return false;
+        }
+        doc = heap.peek().doc();
+        while (!heap.isEmpty() && heap.peek().doc() == doc) {
+            Cursor cursor = heap.poll();
+            if (cursor.next()) {
+                heap.add(cursor);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    boolean advance(long target) {
+        if (doc <= target) {
+            return true;
+        }
+        while (!heap.isEmpty() && heap.peek().doc() > target) {
+            Cursor cursor = heap.poll();
+            if (cursor.advance(target)) {
+                heap.add(cursor);
+            }
+        }
+        return next();
+    }
+
+    @Override
+    int[] positions() {
+        throw new UnsupportedOperationException("A prefix has no positions");
+    }
+
+    @Override
+    int cost() {
+        return cost;
+    }
+}
@@ -0,0 +1,281 @@
+package com.chat.server;
+
+import com.chat.metrics.Log;
+import com.chat.network.NamedThreadFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allow/deny CIDR rules compiled into a binary prefix trie, plus a per-address token bucket.
+ * The longest matching prefix decides; an address no rule matches is denied. Rules come from
+ * the settings dialog and from an optional rules file which is reloaded when it changes; addresses
+ * in them must be literals, host names are rejected rather than looked up. Loopback connections
+ * are not rate limited unless {@code chat.access.limitLoopback} is set, so local load tests and
+ * tools get in at any rate.
+ */
+class AccessFilter implements Closeable {
+    private final static Log LOG = Log.get("access");
+    private final static byte NONE = 0;
+    private final static byte ALLOW = 1;
+    private final static byte DENY = 2;
+    private final static long RELOAD_INTERVAL_MS = 1000;
+    private final static int RATE_SLOTS = 4096;
+
+    private final Path rulesFile;
+    private final ScheduledExecutorService reloader;
+    private final long ratePerSecond;
+    private final long burst;
+    private final boolean limitLoopback;
+    private final Bucket[] buckets;
+    private volatile List<String> baseRules;
+    private volatile Trie rules;
+    private long rulesModified;
+
+    AccessFilter(Path rulesFile, long ratePerSecond, long burst, boolean limitLoopback) {
+        this.rulesFile = rulesFile;
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+        this.limitLoopback = limitLoopback;
+        this.buckets = new Bucket[RATE_SLOTS];
+        for (int i = 0; i < RATE_SLOTS; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.baseRules = List.of();
+        this.rules = new Trie();
+        this.rulesModified = -1;
+        reload();
+        this.reloader = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("access-reload", false));
+        reloader.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reload();
+            }
+        }, RELOAD_INTERVAL_MS, RELOAD_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    static AccessFilter fromProperties(Path rulesFile) {
+        long ratePerSecond = Long.getLong("chat.access.ratePerSecond", 5);
+        long burst = Long.getLong("chat.access.burst", 20);
+        return new AccessFilter(rulesFile, ratePerSecond, burst, Boolean.getBoolean("chat.access.limitLoopback"));
+    }
+
+    /**
+     * Replaces the rule taken from the settings dialog, given as a network address and a dotted mask.
+     */
+    synchronized void setNetwork(String network, String mask) throws UnknownHostException {
+        byte[] bytes = literal(mask).getAddress();
+        int prefix = 0;
+        for (byte b : bytes) {
+            prefix += Integer.bitCount(b & 0xFF);
+        }
+        baseRules = List.of("allow " + network + "/" + prefix);
+        rulesModified = -1;
+        reload();
+    }
+
+    /**
+     * Checks rules and the connection rate for an accepted address. IPv4 checks do not allocate.
+     */
+    boolean accept(InetAddress address) {
+        long hi;
+        long lo;
+        int width;
+        if (address instanceof Inet4Address) {
+            hi = (long) address.hashCode() << 32;
+            lo = 0;
+            width = 32;
+        } else {
+            byte[] bytes = address.getAddress();
+            hi = toLong(bytes, 0);
+            lo = toLong(bytes, 8);
+            width = 128;
+        }
+        return rules.match(hi, lo, width) == ALLOW
+                && ((!limitLoopback && address.isLoopbackAddress()) || acquireToken(hi ^ lo * 31 ^ width));
+    }
+
+    @Override
+    public void close() {
+        reloader.shutdown();
+    }
+
+    private boolean acquireToken(long key) {
+        Bucket bucket = buckets[(int) ((key ^ (key >>> 29)) * 0x9E3779B97F4A7C15L >>> 52) & (RATE_SLOTS - 1)];
+        long scale = 1_000_000_000L;
+        synchronized (bucket) {
+            long now = System.nanoTime();
+            if (bucket.key != key || bucket.stamp == 0) {
+                bucket.key = key;
+                bucket.tokens = burst * scale;
+            } else {
+                long refill = (now - bucket.stamp) * ratePerSecond;
+                bucket.tokens = Math.min(burst * scale, bucket.tokens + Math.max(0, refill));
+            }
+            bucket.stamp = now;
+            if (bucket.tokens < scale) {
+                return false;
+            }
+            bucket.tokens -= scale;
+            return true;
+        }
+    }
+
+    private synchronized void reload() {
+        long modified = 0;
+        List<String> lines = new ArrayList<>(baseRules);
+        try {
+            if (Files.isRegularFile(rulesFile)) {
+                modified = Files.getLastModifiedTime(rulesFile).toMillis();
+                if (modified == rulesModified) {
+                    return;
+                }
+                lines.addAll(Files.readAllLines(rulesFile));
+            } else if (rulesModified == 0) {
+                return;
+            }
+        } catch (IOException e) {
+            LOG.warn("rules.reload.failed", "error", e);
+            return;
+        }
+        Trie compiled = new Trie();
+        for (String line : lines) {
+            String rule = line.strip();
+            if (rule.isEmpty() || rule.startsWith("#")) {
+                continue;
+            }
+            try {
+                compiled.add(rule);
+            } catch (IOException | NumberFormatException e) {
+                LOG.warn("rule.ignored", "rule", rule, "reason", e.getMessage());
+            }
+        }
+        rules = compiled;
+        rulesModified = modified;
+        LOG.info("rules.loaded", "count", compiled.count);
+    }
+
+    /**
+     * Parses a numeric IPv4 or IPv6 address without ever resolving a host name.
+     */
+    private static InetAddress literal(String text) throws UnknownHostException {
+        if (text.indexOf(':') >= 0) {
+            return InetAddress.getByName(text);
+        }
+        String[] parts = text.split("\\.", -1);
+        if (parts.length != 4) {
+            throw new UnknownHostException(text + " is not an IP address");
+        }
+        byte[] bytes = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            if (parts[i].isEmpty() || parts[i].length() > 3 || !parts[i].chars().allMatch(Character::isDigit)) {
+                throw new UnknownHostException(text + " is not an IP address");
+            }
+            int value = Integer.parseInt(parts[i]);
+            if (value > 255) {
+                throw new UnknownHostException(text + " is not an IP address");
+            }
+            bytes[i] = (byte) value;
+        }
+        return InetAddress.getByAddress(bytes);
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Token bucket of the addresses hashing to one slot, locked on its own so concurrent accepts from
+     * different addresses do not wait for each other.
+     */
+    private static class Bucket {
+        private long key;
+        private long tokens;
+        private long stamp;
+    }
+
+    private static class Trie {
+        private int[] zero = new int[64];
+        private int[] one = new int[64];
+        private byte[] verdicts = new byte[64];
+        private int nodes = 2;
+        private int count;
+
+        // Node 0 is the IPv4 root, node 1 the IPv6 root.
+        private void add(String rule) throws IOException {
+            String[] parts = rule.split("\\s+");
+            if (parts.length != 2 || !(parts[0].equals("allow") || parts[0].equals("deny"))) {
+                throw new IOException("expected \"allow|deny address[/prefix]\"");
+            }
+            String[] cidr = parts[1].split("/");
+            byte[] bytes = literal(cidr[0]).getAddress();
+            int width = bytes.length * 8;
+            int prefix = cidr.length > 1 ? Integer.parseInt(cidr[1]) : width;
+            if (prefix < 0 || prefix > width) {
+                throw new IOException("prefix out of range");
+            }
+            byte[] padded = Arrays.copyOf(bytes, 16);
+            long hi = toLong(padded, 0);
+            long lo = toLong(padded, 8);
+            int node = width == 32 ? 0 : 1;
+            for (int bit = 0; bit < prefix; bit++) {
+                boolean set = bit(hi, lo, bit) != 0;
+                int child = set ? one[node] : zero[node];
+                if (child == 0) {
+                    child = allocate();
+                    if (set) {
+                        one[node] = child;
+                    } else {
+                        zero[node] = child;
+                    }
+                }
+                node = child;
+            }
+            verdicts[node] = parts[0].equals("allow") ? ALLOW : DENY;
+            count++;
+        }
+
+        private byte match(long hi, long lo, int width) {
+            int node = width == 32 ? 0 : 1;
+            byte verdict = verdicts[node];
+            for (int bit = 0; bit < width; bit++) {
+                node = bit(hi, lo, bit) == 0 ? zero[node] : one[node];
+                if (node == 0) {
+                    break;
+                }
+                if (verdicts[node] != NONE) {
+                    verdict = verdicts[node];
+                }
+            }
+            return verdict;
+        }
+
+        private int allocate() {
+            if (nodes == verdicts.length) {
+                zero = Arrays.copyOf(zero, nodes * 2);
+                one = Arrays.copyOf(one, nodes * 2);
+                verdicts = Arrays.copyOf(verdicts, nodes * 2);
+            }
+            return nodes++;
+        }
+
+        private static int bit(long hi, long lo, int bit) {
+            return (int) (bit < 64 ? hi >>> (63 - bit) : lo >>> (127 - bit)) & 1;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.chat.server;
+
+import com.chat.network.FileTransfer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uploaded files stored once per content. Blobs live under {@code blobs/xx/<sha-256>} and every
+ * shared name in the files directory is a hard link to its blob (a copy where links are not supported).
+ * Blobs are read-only, so editing a shared name in place fails instead of changing every name that
+ * shares the content; saving a new file over the name is fine. The names index maps names to hashes;
+ * a blob is deleted when its last name goes away.
+ */
+class BlobStore implements FileCatalog.DeletionHandler {
+    private final Path names;
+    private final Path blobs;
+    private final Path incoming;
+    private final Path indexFile;
+    private final Map<String, String> hashByName;
+    private final Map<String, Integer> references;
+
+    BlobStore(Path root, Path names) throws IOException {
+        this.names = names;
+        this.blobs = root.resolve("blobs");
+        this.incoming = root.resolve("incoming");
+        this.indexFile = root.resolve("names.index");
+        this.hashByName = new HashMap<>();
+        this.references = new HashMap<>();
+        Files.createDirectories(names);
+        Files.createDirectories(blobs);
+        Files.createDirectories(incoming);
+        if (Files.exists(indexFile)) {
+            for (String line : Files.readAllLines(indexFile, StandardCharsets.UTF_8)) {
+                int space = line.indexOf(' ');
+                if (space > 0) {
+                    hashByName.put(line.substring(space + 1), line.substring(0, space));
+                }
+            }
+        }
+        reconcile();
+    }
+
+    static boolean isValidHash(String hash) {
+        if (hash.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            if (Character.digit(hash.charAt(i), 16) < 0 || Character.isUpperCase(hash.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    synchronized boolean contains(String hash) {
+        return references.containsKey(hash) && Files.exists(blob(hash));
+    }
+
+    /**
+     * Staging path for an upload of {@code key} (a content hash, or a file name for clients that send none),
+     * so an interrupted upload of the same content resumes.
+     */
+    Path incomingFile(String key) {
+        return incoming.resolve(key);
+    }
+
+    /**
+     * Shares an existing blob under {@code name}. Returns the name actually used, which differs
+     * when another file already has that name.
+     */
+    synchronized String link(String name, String hash) throws IOException {
+        String existing = hashByName.get(name);
+        if (hash.equals(existing) && Files.exists(names.resolve(name))) {
+            return name;
+        }
+        String unique = uniqueName(name);
+        Path target = names.resolve(unique);
+        try {
+            Files.createLink(target, blob(hash));
+        } catch (FileAlreadyExistsException e) {
+            throw new IOException(unique + " was created by someone else while it was being shared", e);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Files.copy(blob(hash), target);
+        }
+        hashByName.put(unique, hash);
+        references.merge(hash, 1, Integer::sum);
+        saveIndex();
+        return unique;
+    }
+
+    /**
+     * Moves a completely received file into the store and shares it under {@code name}.
+     * {@code expectedHash} may be null for clients that do not send one.
+     */
+    String commit(Path received, String expectedHash, String name) throws IOException {
+        String hash = FileTransfer.sha256(received);
+        if (expectedHash != null && !expectedHash.equals(hash)) {
+            Files.deleteIfExists(received);
+            throw new IOException("Upload of " + name + " does not match its hash");
+        }
+        synchronized (this) {
+            Path blob = blob(hash);
+            if (Files.exists(blob)) {
+                Files.delete(received);
+            } else {
+                Files.createDirectories(blob.getParent());
+                Files.move(received, blob, StandardCopyOption.ATOMIC_MOVE);
+                blob.toFile().setReadOnly();
+            }
+            return link(name, hash);
+        }
+    }
+
+    /**
+     * Drops the reference of a name deleted from the files directory, and the blob with it when that
+     * was its last name. Names that exist again by the time this runs are kept.
+     */
+    @Override
+    public synchronized void onDeleted(String name) throws IOException {
+        String hash = hashByName.get(name);
+        if (hash == null || Files.exists(names.resolve(name))) {
+            return;
+        }
+        hashByName.remove(name);
+        if (references.merge(hash, -1, Integer::sum) <= 0) {
+            references.remove(hash);
+            deleteBlob(blob(hash));
+        }
+        saveIndex();
+    }
+
+    /**
+     * Drops index entries whose names were deleted from the files directory and removes
+     * blobs no name refers to anymore. Blobs stored before they were made read-only become read-only here.
+     */
+    synchronized void reconcile() throws IOException {
+        hashByName.keySet().removeIf(name -> !Files.exists(names.resolve(name)));
+        references.clear();
+        for (String hash : hashByName.values()) {
+            references.merge(hash, 1, Integer::sum);
+        }
+        List<Path> orphans = new ArrayList<>();
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(blobs)) {
+            for (Path prefix : prefixes) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(prefix)) {
+                    for (Path blob : stream) {
+                        if (!references.containsKey(blob.getFileName().toString())) {
+                            orphans.add(blob);
+                        } else {
+                            blob.toFile().setReadOnly();
+                        }
+                    }
+                }
+            }
+        }
+        for (Path orphan : orphans) {
+            deleteBlob(orphan);
+        }
+        saveIndex();
+    }
+
+    private String uniqueName(String name) {
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        String candidate = name;
+        for (int n = 1; hashByName.containsKey(candidate) || Files.exists(names.resolve(candidate)); n++) {
+            candidate = base + " (" + n + ")" + extension;
+        }
+        return candidate;
+    }
+
+    private static void deleteBlob(Path blob) throws IOException {
+        blob.toFile().setWritable(true);
+        Files.deleteIfExists(blob);
+    }
+
+    private Path blob(String hash) {
+        return blobs.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private void saveIndex() throws IOException {
+        StringBuilder index = new StringBuilder();
+        for (Map.Entry<String, String> entry : hashByName.entrySet()) {
+            index.append(entry.getValue()).append(' ').append(entry.getKey()).append('\n');
+        }
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        Files.writeString(temp, index, StandardCharsets.UTF_8);
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
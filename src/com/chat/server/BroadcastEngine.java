@@ -0,0 +1,68 @@
+package com.chat.server;
+
+import com.chat.metrics.Histogram;
+import com.chat.metrics.Metrics;
+import com.chat.network.Compression;
+import com.chat.network.Protocol;
+import com.chat.network.TCPConnection;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+class BroadcastEngine {
+    private final static Histogram FANOUT_NANOS = Metrics.histogram("broadcast.fanout.nanos");
+    private final static Histogram RECIPIENTS = Metrics.histogram("broadcast.recipients");
+
+    private final CopyOnWriteArrayList<TCPConnection> connections;
+
+    BroadcastEngine() {
+        this.connections = new CopyOnWriteArrayList<>();
+    }
+
+    void register(TCPConnection connection) {
+        connections.addIfAbsent(connection);
+    }
+
+    void unregister(TCPConnection connection) {
+        connections.remove(connection);
+    }
+
+    void broadcast(long sequence, String msg) {
+        long start = System.nanoTime();
+        int recipients = 0;
+        byte[] textFrame = null;
+        byte[] binaryFrame = null;
+        byte[] compressedFrame = null;
+        for (TCPConnection connection : connections) {
+            if (connection.protocol() == Protocol.BINARY) {
+                if (binaryFrame == null) {
+                    binaryFrame = sequence > 0 ? Protocol.BINARY.encodeSequenced(sequence, msg)
+                            : Protocol.BINARY.encodeText(msg);
+                }
+                byte[] wire = binaryFrame;
+                if (connection.compression()) {
+                    if (compressedFrame == null) {
+                        compressedFrame = Compression.compressFrame(binaryFrame);
+                    }
+                    wire = compressedFrame;
+                }
+                if (sequence > 0) {
+                    connection.sendSequenced(sequence, binaryFrame, wire);
+                } else {
+                    connection.sendFrame(wire);
+                }
+            } else {
+                if (textFrame == null) {
+                    textFrame = Protocol.TEXT.encodeText(msg);
+                }
+                connection.sendFrame(textFrame);
+            }
+            recipients++;
+        }
+        FANOUT_NANOS.recordSince(start);
+        RECIPIENTS.record(recipients);
+    }
+
+    int size() {
+        return connections.size();
+    }
+}
@@ -0,0 +1,898 @@
+package com.chat.server;
+
+import com.chat.metrics.Counter;
+import com.chat.metrics.Log;
+import com.chat.metrics.Metrics;
+import com.chat.network.Compression;
+import com.chat.network.EventLoopGroup;
+import com.chat.network.NamedThreadFactory;
+import com.chat.network.Protocol;
+import com.chat.network.TCPConnection;
+import com.chat.network.TCPConnectionListener;
+import com.chat.network.UnackedBuffer;
+import com.chat.network.WorkerPool;
+import com.chat.search.SearchIndex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The chat server without any user interface. {@link #start()} binds the listener first and accepts
+ * on its own thread; the blob store and file catalog, which scan the disk, load in the background and
+ * file commands are answered with "try again" until they are ready. {@link #stop(long)} stops accepting,
+ * waits for every outbound queue to drain and then closes connections and storage. An engine runs once;
+ * create a new one to start again.
+ */
+public class ChatEngine implements TCPConnectionListener {
+    private final static int MAX_REPLAY = 10000;
+    private final static int REPLAY_BATCH = 256;
+    private final static int LIST_PAGE = 200;
+    private final static int MAX_LIST_PAGE = 1000;
+    private final static long DRAIN_POLL_MS = 10;
+    private final static long RESUME_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("chat.ack.resumeSeconds", 60));
+    private final static int MAX_PARKED = Integer.getInteger("chat.ack.parked", 1024);
+    private final static int SEARCH_RESULTS = Integer.getInteger("chat.search.results", 50);
+    private final static int SEARCH_CHECKS = Integer.getInteger("chat.search.maxChecks", 100 * SEARCH_RESULTS);
+    private final static long SEARCH_FOLLOW_MS = Long.getLong("chat.search.followMillis", 500);
+    private final static Log LOG = Log.get("server");
+
+    private final Counter accepted = Metrics.counter("connections.accepted");
+    private final Counter rejected = Metrics.counter("connections.rejected");
+    private final Counter messagesIn = Metrics.counter("messages.in");
+    private final Counter commandsIn = Metrics.counter("commands.in");
+    private final Counter resumed = Metrics.counter("resume.hits");
+    private final Counter resumeMissed = Metrics.counter("resume.misses");
+    private final Counter resumedFrames = Metrics.counter("resume.frames");
+    private final Counter authThrottled = Metrics.counter("auth.throttled");
+
+    private final ServerConfig config;
+    private final RoomRegistry rooms;
+    private final SessionIndex sessions;
+    /**
+     * For each open connection and each room it is in, the sequence above which every message of the room
+     * has been queued to it: where it started receiving the room live, lowered once a replay filled the gap.
+     */
+    private final Map<TCPConnection, Map<String, Long>> coveredFrom;
+    private final Map<TCPConnection, String> clientIds;
+    private final Set<TCPConnection> replaying;
+    private final Map<String, Parked> parked;
+    private final WorkerPool replayWorkers;
+    private final WorkerPool authWorkers;
+    private final LoginThrottle loginThrottle;
+
+    private AccessFilter accessFilter;
+    private UserStore users;
+    private TransferServer transferServer;
+    private MessageJournal journal;
+    private SearchIndex searchIndex;
+    private ScheduledExecutorService searchFollower;
+    private volatile FileCatalog catalog;
+    private volatile BlobStore blobs;
+    private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
+    private EventLoopGroup eventLoops;
+    private Thread acceptThread;
+    private boolean started;
+    private volatile boolean running;
+
+    private static class Parked {
+        final UnackedBuffer buffer;
+        final Map<String, Long> covered;
+        final long parkedAt;
+
+        Parked(UnackedBuffer buffer, Map<String, Long> covered, long parkedAt) {
+            this.buffer = buffer;
+            this.covered = covered;
+            this.parkedAt = parkedAt;
+        }
+    }
+
+    public ChatEngine(ServerConfig config) {
+        this.config = config;
+        this.rooms = RoomRegistry.fromProperties();
+        this.sessions = new SessionIndex();
+        this.coveredFrom = new ConcurrentHashMap<>();
+        this.clientIds = new ConcurrentHashMap<>();
+        this.replaying = ConcurrentHashMap.newKeySet();
+        this.parked = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Parked> eldest) {
+                return size() > MAX_PARKED;
+            }
+        };
+        this.replayWorkers = WorkerPool.fromProperties("journal-replay", 16);
+        this.authWorkers = WorkerPool.fromProperties("auth", 4);
+        this.loginThrottle = LoginThrottle.fromProperties();
+    }
+
+    public synchronized void start() throws IOException {
+        if (started) {
+            throw new IllegalStateException("Engine was already started");
+        }
+        started = true;
+        long startNanos = System.nanoTime();
+        if (config.nioTransport) {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(config.port));
+            eventLoops = new EventLoopGroup();
+        } else {
+            serverSocket = new ServerSocket(config.port);
+        }
+        try {
+            accessFilter = AccessFilter.fromProperties(config.accessRules);
+            if (!config.network.isEmpty() && !config.mask.isEmpty()) {
+                accessFilter.setNetwork(config.network, config.mask);
+            }
+            journal = MessageJournal.fromProperties(config.journalDirectory);
+            searchIndex = new SearchIndex(config.indexDirectory);
+            users = new UserStore(config.usersFile);
+            transferServer = new TransferServer(config.transferPort, WorkerPool.fromProperties("file-transfer",
+                    64 * TransferServer.STREAMS_PER_TRANSFER),
+                    DownloadCache.fromProperties());
+        } catch (IOException e) {
+            closeQuietly();
+            throw e;
+        }
+        running = true;
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (config.nioTransport) {
+                    acceptNonBlocking();
+                } else {
+                    acceptBlocking();
+                }
+            }
+        }, "chat-accept");
+        acceptThread.start();
+        searchFollower = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("search-follow", false));
+        searchFollower.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                indexJournal();
+            }
+        }, 0, SEARCH_FOLLOW_MS, TimeUnit.MILLISECONDS);
+        long acceptingMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        Metrics.gauge("connections.open", coveredFrom::size);
+        Metrics.gauge("resume.parked", this::parkedCount);
+        Metrics.gauge("compression.raw.bytes", Compression::rawBytes);
+        Metrics.gauge("compression.wire.bytes", Compression::wireBytes);
+        Metrics.gauge("compression.cpu.nanos.per.mb", ChatEngine::compressionNanosPerMegabyte);
+        Metrics.export("server", config.metricsPort);
+        new NamedThreadFactory("storage-load", false).newThread(new Runnable() {
+            @Override
+            public void run() {
+                loadStorage();
+            }
+        }).start();
+        LOG.info("server.started", "port", port(), "transferPort", transferServer.port(),
+                "transport", config.nioTransport ? "nio" : "blocking",
+                "acceptingMs", acceptingMillis, "ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Stops accepting, tells every client, waits up to {@code timeoutMillis} for outbound queues to
+     * drain, then disconnects everyone and closes storage.
+     */
+    public void stop(long timeoutMillis) {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        closeListener();
+        try {
+            acceptThread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (TCPConnection connection : coveredFrom.keySet()) {
+            connection.sendText("Server is shutting down");
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        int pending = pendingConnections();
+        while (pending > 0 && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(DRAIN_POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            pending = pendingConnections();
+        }
+        for (TCPConnection connection : coveredFrom.keySet()) {
+            connection.disconnect();
+        }
+        closeQuietly();
+        LOG.info("server.stopped", "undrained", pending);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int port() {
+        return config.nioTransport ? serverChannel.socket().getLocalPort() : serverSocket.getLocalPort();
+    }
+
+    public int transferPort() throws IOException {
+        return transferServer.port();
+    }
+
+    /**
+     * Replaces the network allowed by the settings dialog.
+     */
+    public void setNetwork(String network, String mask) throws UnknownHostException {
+        accessFilter.setNetwork(network, mask);
+    }
+
+    private int pendingConnections() {
+        int pending = 0;
+        for (TCPConnection connection : coveredFrom.keySet()) {
+            if (connection.queueDepth() > 0) {
+                pending++;
+            }
+        }
+        return pending;
+    }
+
+    private void loadStorage() {
+        try {
+            long startNanos = System.nanoTime();
+            blobs = new BlobStore(config.storeDirectory, config.filesDirectory);
+            catalog = new FileCatalog(config.filesDirectory, blobs);
+            LOG.info("storage.loaded", "ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+            if (!running) {
+                catalog.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("storage.failed", "error", e);
+        }
+    }
+
+    private void closeListener() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("listener.close.failed", "error", e);
+        }
+    }
+
+    private void closeQuietly() {
+        closeListener();
+        try {
+            if (transferServer != null) {
+                transferServer.close();
+            }
+            if (catalog != null) {
+                catalog.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("close.failed", "error", e);
+        }
+        if (searchFollower != null) {
+            searchFollower.shutdown();
+            try {
+                searchFollower.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (searchIndex != null) {
+            try {
+                searchIndex.close();
+            } catch (IOException e) {
+                LOG.warn("search.close.failed", "error", e);
+            }
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        if (accessFilter != null) {
+            accessFilter.close();
+        }
+        if (eventLoops != null) {
+            eventLoops.shutdown();
+        }
+        replayWorkers.shutdown();
+        authWorkers.shutdown();
+    }
+
+    private void acceptBlocking() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (accessFilter.accept(socket.getInetAddress())) {
+                    accepted.increment();
+                    try {
+                        new TCPConnection(this, socket);
+                    } catch (IOException e) {
+                        socket.close();
+                        throw e;
+                    }
+                } else {
+                    rejected.increment();
+                    socket.close();
+                }
+            } catch (IOException e) {
+                if (running) {
+                    LOG.warn("accept.failed", "error", e);
+                }
+            }
+        }
+    }
+
+    private void acceptNonBlocking() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                if (accessFilter.accept(channel.socket().getInetAddress())) {
+                    accepted.increment();
+                    new TCPConnection(this, channel, eventLoops);
+                } else {
+                    rejected.increment();
+                    channel.close();
+                }
+            } catch (IOException e) {
+                if (running) {
+                    LOG.warn("accept.failed", "error", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onConnectionReady(TCPConnection connection) throws IOException {
+        coveredFrom.put(connection, new ConcurrentHashMap<>());
+        join(connection, RoomRegistry.DEFAULT_ROOM);
+        sendToRoom(RoomRegistry.DEFAULT_ROOM, "Client connected: " + connection);
+    }
+
+    @Override
+    public void onReceiveString(TCPConnection connection, String msg) {
+        messagesIn.increment();
+        if (!running) {
+            return;
+        }
+        String room = rooms.currentRoom(connection);
+        if (room == null) {
+            connection.sendMessage("You are not in any room, use /join <room>");
+            return;
+        }
+        String user = sessions.user(connection);
+        if (user == null && !users.isOpen()) {
+            connection.sendMessage("Log in before sending messages");
+            return;
+        }
+        sendToRoom(room, user == null ? msg : user + ": " + msg);
+    }
+
+    @Override
+    public void onDisconnect(TCPConnection connection) {
+        Map<String, Long> covered = coveredFrom.remove(connection);
+        String clientId = clientIds.remove(connection);
+        if (clientId != null && covered != null && running && !replaying.contains(connection)
+                && connection.unacked().size() > 0) {
+            park(clientId, connection.unacked(), covered);
+        }
+        sessions.unbind(connection);
+        for (String room : rooms.leaveAll(connection)) {
+            if (running) {
+                sendToRoom(room, "Client disconnected: " + connection);
+            }
+        }
+    }
+
+    @Override
+    public void onException(TCPConnection connection, Exception e) {
+        LOG.warn("connection.exception", "connection", connection, "error", e);
+    }
+
+    @Override
+    public void onReceiveCommand(TCPConnection connection, String command) {
+        commandsIn.increment();
+        if (!running) {
+            return;
+        }
+        try {
+            handleCommand(connection, command);
+        } catch (RejectedExecutionException e) {
+            LOG.warn("transfer.rejected", "connection", connection, "reason", e.getMessage());
+            connection.sendMessage("Server is busy, try again later");
+        } catch (IOException e) {
+            LOG.warn("command.failed", "connection", connection, "error", e);
+            connection.sendMessage("Command failed: " + e.getMessage());
+        } catch (RuntimeException e) {
+            LOG.warn("command.crashed", "connection", connection, "command", command, "error", e);
+            connection.sendMessage("Command failed: internal error");
+        }
+    }
+
+    private void handleCommand(TCPConnection connection, String command) throws IOException {
+        String[] commandByParts = command.split("`");
+        if (commandByParts.length < 2 || commandByParts[1].isEmpty()) {
+            throw new IOException("empty command");
+        }
+        switch (commandByParts[1]) {
+            case "UPLOAD" -> {
+                String path = part(commandByParts, 2, "`UPLOAD`path`size[`sha256]");
+                try {
+                    upload(connection, commandByParts, path);
+                } catch (IOException | RejectedExecutionException e) {
+                    transferFailed(connection, "`UPLOAD_FAILED`" + path, e);
+                }
+            }
+            case "AUTH" -> {
+                String[] parts = command.split("`", 4);
+                String user = parts.length > 2 ? parts[2] : "";
+                String password = parts.length > 3 ? parts[3] : "";
+                if (users.isOpen()) {
+                    connection.sendCommand("`AUTH_FAILED`" + user);
+                    connection.sendMessage("This server has no user accounts, log in is disabled");
+                    return;
+                }
+                authenticate(connection, user, password);
+            }
+            case "MSG" -> {
+                String[] parts = command.split("`", 4);
+                String sender = sessions.user(connection);
+                if (sender == null) {
+                    throw new IOException(users.isOpen()
+                            ? "this server has no user accounts, direct messages are disabled"
+                            : "log in before sending direct messages");
+                }
+                if (parts.length < 4 || parts[3].isEmpty()) {
+                    throw new IOException("usage: /msg <user> <text>");
+                }
+                Set<TCPConnection> targets = sessions.connections(parts[2]);
+                if (targets.isEmpty()) {
+                    connection.sendMessage("User " + parts[2] + " is not online");
+                    return;
+                }
+                String incoming = "[from " + sender + "] " + parts[3];
+                for (TCPConnection target : targets) {
+                    target.sendText(incoming);
+                }
+                String outgoing = "[to " + parts[2] + "] " + parts[3];
+                for (TCPConnection own : sessions.connections(sender)) {
+                    if (!targets.contains(own)) {
+                        own.sendText(outgoing);
+                    }
+                }
+            }
+            case "JOIN" -> {
+                String room = commandByParts.length > 2 ? commandByParts[2] : "";
+                if (!RoomRegistry.isValidName(room)) {
+                    throw new IOException("Invalid room name \"" + room + "\"");
+                }
+                if (join(connection, room)) {
+                    sendToRoom(room, "Client joined " + room + ": " + connection);
+                }
+                connection.sendCommand("`JOIN`" + room);
+            }
+            case "LEAVE" -> {
+                String room = commandByParts.length > 2 ? commandByParts[2] : "";
+                if (!RoomRegistry.isValidName(room)) {
+                    throw new IOException("Invalid room name \"" + room + "\"");
+                }
+                if (rooms.leave(room, connection)) {
+                    Map<String, Long> covered = coveredFrom.get(connection);
+                    if (covered != null) {
+                        covered.remove(room);
+                    }
+                    sendToRoom(room, "Client left " + room + ": " + connection);
+                }
+                connection.sendCommand("`LEAVE`" + room);
+            }
+            case "SYNC" -> {
+                long lastSeen = number(part(commandByParts, 2, "`SYNC`lastSeen[`clientId]"), "sequence");
+                String clientId = commandByParts.length > 3 ? commandByParts[3] : null;
+                if (clientId != null) {
+                    clientIds.put(connection, clientId);
+                }
+                replaying.add(connection);
+                try {
+                    replayWorkers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                replay(connection, lastSeen, clientId);
+                            } finally {
+                                replaying.remove(connection);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    replaying.remove(connection);
+                    throw e;
+                }
+            }
+            case "SEARCH" -> {
+                String[] parts = command.split("`", 3);
+                List<MessageJournal.Entry> results = new ArrayList<>();
+                int[] checked = new int[1];
+                searchIndex.search(parts.length > 2 ? parts[2] : "", SEARCH_RESULTS, sequence -> {
+                    if (++checked[0] > SEARCH_CHECKS) {
+                        return false;
+                    }
+                    List<MessageJournal.Entry> entries = journal.read(sequence - 1, 1);
+                    if (entries.isEmpty() || entries.get(0).sequence != sequence
+                            || !rooms.isMember(entries.get(0).room, connection)) {
+                        return false;
+                    }
+                    results.add(entries.get(0));
+                    return true;
+                });
+                for (MessageJournal.Entry entry : results) {
+                    connection.sendCommand("`SEARCH_RESULT`" + entry.sequence + "`" + entry.room + "`" + entry.text);
+                }
+                connection.sendCommand("`SEARCH_DONE`" + results.size());
+            }
+            case "GET_LIST" -> {
+                FileCatalog catalog = catalog();
+                String[] parts = command.split("`", 5);
+                long offset = parts.length > 2 && !parts[2].isEmpty() ? number(parts[2], "offset") : 0;
+                long limit = parts.length > 3 && !parts[3].isEmpty() ? number(parts[3], "limit") : LIST_PAGE;
+                String filter = parts.length > 4 ? parts[4] : "";
+                int[] total = new int[1];
+                long version = catalog.version();
+                List<FileCatalog.Entry> page = catalog.list((int) Math.min(offset, Integer.MAX_VALUE),
+                        (int) Math.max(1, Math.min(limit, MAX_LIST_PAGE)), filter, total);
+                StringBuilder list = new StringBuilder("`GET_LIST`").append(version).append("`").append(total[0])
+                        .append("`").append(offset);
+                for (FileCatalog.Entry entry : page) {
+                    list.append("`").append(entry);
+                }
+                connection.sendCommand(list.toString());
+            }
+            case "LIST_CHANGES" -> {
+                long since = number(part(commandByParts, 2, "`LIST_CHANGES`version"), "version");
+                FileCatalog.Changes changes = catalog().changesSince(since, MAX_LIST_PAGE);
+                String state = changes.reset ? "reset" : changes.more ? "more" : "done";
+                StringBuilder list = new StringBuilder("`LIST_CHANGES`").append(changes.version).append("`").append(state);
+                for (FileCatalog.Entry entry : changes.entries) {
+                    list.append("`").append(entry);
+                }
+                connection.sendCommand(list.toString());
+            }
+            case "DOWNLOAD" -> {
+                String name = part(commandByParts, 2, "`DOWNLOAD`name");
+                try {
+                    download(connection, name);
+                } catch (IOException | RejectedExecutionException e) {
+                    transferFailed(connection, "`DOWNLOAD_FAILED`" + name, e);
+                }
+            }
+            default -> throw new IOException("unknown command " + commandByParts[1]);
+        }
+    }
+
+    private static String part(String[] parts, int index, String usage) throws IOException {
+        if (parts.length <= index || parts[index].isEmpty()) {
+            throw new IOException("usage: " + usage);
+        }
+        return parts[index];
+    }
+
+    private static long number(String value, String name) throws IOException {
+        try {
+            long number = Long.parseLong(value.trim());
+            if (number < 0) {
+                throw new IOException("negative " + name + " " + number);
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid " + name + " \"" + value + "\"");
+        }
+    }
+
+    private BlobStore blobs() throws IOException {
+        BlobStore loaded = blobs;
+        if (loaded == null) {
+            throw new IOException("file storage is still loading, try again later");
+        }
+        return loaded;
+    }
+
+    private FileCatalog catalog() throws IOException {
+        FileCatalog loaded = catalog;
+        if (loaded == null) {
+            throw new IOException("file list is still loading, try again later");
+        }
+        return loaded;
+    }
+
+    /**
+     * Journals and broadcasts a message. Both happen under the journal lock, so every connection is queued
+     * frames in sequence order; the broadcast only queues frames and does not block on sockets.
+     */
+    private void sendToRoom(String room, String msg) {
+        String text = room.equals(RoomRegistry.DEFAULT_ROOM) ? msg : "[" + room + "] " + msg;
+        LOG.debug("message", "room", room, "text", text);
+        synchronized (journal) {
+            long sequence = 0;
+            try {
+                sequence = journal.append(room, text);
+            } catch (IOException e) {
+                LOG.warn("journal.failed", "error", e);
+            }
+            rooms.broadcast(room, sequence, text);
+        }
+    }
+
+    /**
+     * Adds {@code connection} to {@code room} under the journal lock, so it receives live exactly the messages
+     * of the room above the sequence recorded for it.
+     */
+    private void upload(TCPConnection connection, String[] commandByParts, String path) throws IOException {
+        BlobStore blobs = blobs();
+        String fileName = new File(path).getName();
+        long size = number(part(commandByParts, 3, "`UPLOAD`path`size[`sha256]"), "size");
+        String hash = commandByParts.length > 4 && BlobStore.isValidHash(commandByParts[4]) ? commandByParts[4] : null;
+        if (hash != null && blobs.contains(hash)) {
+            String stored = blobs.link(fileName, hash);
+            LOG.info("upload.deduplicated", "file", stored, "bytes", size);
+            connection.sendCommand("`UPLOAD_DONE`" + path + "`" + stored);
+            return;
+        }
+        Path staging = blobs.incomingFile(hash != null ? hash : fileName);
+        long id = transferServer.open(TransferServer.Direction.UPLOAD, staging, size, false,
+                new TransferServer.UploadHandler() {
+                    @Override
+                    public void onUploaded(Path received) throws IOException {
+                        try {
+                            String stored = blobs.commit(received, hash, fileName);
+                            LOG.info("upload.stored", "file", stored, "bytes", size);
+                            connection.sendCommand("`UPLOAD_DONE`" + path + "`" + stored);
+                        } catch (IOException e) {
+                            connection.sendCommand("`UPLOAD_FAILED`" + path + "`" + e.getMessage());
+                            throw e;
+                        }
+                    }
+                });
+        connection.sendMessage("`UPLOAD`" + id + "`" + path + "`" + transferServer.resumeOffset(id));
+    }
+
+    private void download(TCPConnection connection, String name) throws IOException {
+        File fileToSend = new File(config.filesDirectory.toFile(), name);
+        if (!fileToSend.isFile()) {
+            throw new FileNotFoundException("no such file " + name);
+        }
+        long size = fileToSend.length();
+        boolean compress = connection.compression() && Compression.isCompressible(fileToSend.getName());
+        long id = transferServer.open(TransferServer.Direction.DOWNLOAD, fileToSend.toPath(), size, compress, null);
+        LOG.info("download.opened", "id", id, "file", name, "bytes", size, "compress", compress);
+        connection.sendMessage("`DOWNLOAD`" + id + "`" + name + "`" + size);
+    }
+
+    /**
+     * Answers a refused UPLOAD or DOWNLOAD with its failure command, so the client fails the transfer it
+     * waits on rather than only printing why.
+     */
+    private void transferFailed(TCPConnection connection, String reply, Exception e) {
+        if (e instanceof RejectedExecutionException) {
+            LOG.warn("transfer.rejected", "connection", connection, "reason", e.getMessage());
+            connection.sendCommand(reply + "`server is busy, try again later");
+        } else {
+            LOG.warn("command.failed", "connection", connection, "error", e);
+            connection.sendCommand(reply + "`" + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks the password on an auth worker, since a PBKDF2 hash takes milliseconds and would stall every
+     * connection on the event loop, and replies from there. An address that failed too often is refused
+     * without hashing anything.
+     */
+    private void authenticate(TCPConnection connection, String user, String password) {
+        InetAddress address = connection.remoteAddress();
+        if (!loginThrottle.allows(address)) {
+            authThrottled.increment();
+            LOG.warn("auth.throttled", "user", user, "connection", connection);
+            connection.sendCommand("`AUTH_FAILED`" + user);
+            connection.sendMessage("Too many failed logins, try again later");
+            return;
+        }
+        try {
+            authWorkers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!users.authenticate(user, password)) {
+                        loginThrottle.failed(address);
+                        LOG.warn("auth.failed", "user", user, "connection", connection);
+                        connection.sendCommand("`AUTH_FAILED`" + user);
+                        return;
+                    }
+                    sessions.bind(user, connection);
+                    if (connection.isClosed()) {
+                        sessions.unbind(connection);
+                        return;
+                    }
+                    connection.sendCommand("`AUTH`" + user);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warn("auth.rejected", "user", user, "connection", connection, "reason", e.getMessage());
+            connection.sendCommand("`AUTH_FAILED`" + user);
+            connection.sendMessage("Server is busy, try again later");
+        }
+    }
+
+    private boolean join(TCPConnection connection, String room) {
+        synchronized (journal) {
+            boolean joined = rooms.join(room, connection);
+            Map<String, Long> covered = coveredFrom.get(connection);
+            if (covered != null) {
+                covered.putIfAbsent(room, journal.lastSequence());
+            }
+            return joined;
+        }
+    }
+
+    /**
+     * Indexes the journal entries written since the last run. Search hits the journal has since dropped by
+     * retention, or that are in rooms the asking connection is not in, are skipped when answering SEARCH.
+     */
+    private void indexJournal() {
+        long from = searchIndex.lastDoc();
+        while (running) {
+            List<MessageJournal.Entry> entries = journal.read(from, REPLAY_BATCH);
+            if (entries.isEmpty()) {
+                return;
+            }
+            for (MessageJournal.Entry entry : entries) {
+                searchIndex.add(entry.sequence, entry.text);
+                from = entry.sequence;
+            }
+        }
+    }
+
+    private static long compressionNanosPerMegabyte() {
+        long raw = Compression.rawBytes();
+        return raw == 0 ? 0 : Compression.compressNanos() * (1 << 20) / raw;
+    }
+
+    private int parkedCount() {
+        synchronized (parked) {
+            return parked.size();
+        }
+    }
+
+    /**
+     * Keeps the unacknowledged frames of a dropped connection, so that a client reconnecting with the same
+     * id gets them from memory instead of the journal.
+     */
+    private void park(String clientId, UnackedBuffer buffer, Map<String, Long> covered) {
+        long now = System.currentTimeMillis();
+        synchronized (parked) {
+            parked.values().removeIf(entry -> now - entry.parkedAt > RESUME_MILLIS);
+            parked.put(clientId, new Parked(buffer, covered, now));
+        }
+    }
+
+    private Parked unpark(String clientId) {
+        Parked entry;
+        synchronized (parked) {
+            entry = parked.remove(clientId);
+        }
+        if (entry == null || System.currentTimeMillis() - entry.parkedAt > RESUME_MILLIS) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Resends the parked frames above {@code from} and returns the sequence the journal replay can continue
+     * from, or {@code from} when the parked frames have a gap above it: frames were acknowledged or evicted
+     * above it, or the dropped connection was not in exactly {@code live}'s rooms since {@code from}.
+     */
+    private long resume(TCPConnection connection, long from, String clientId, Map<String, Long> live) {
+        Parked entry = clientId == null ? null : unpark(clientId);
+        if (entry == null || !entry.buffer.coversAfter(from) || !entry.covered.keySet().equals(live.keySet())) {
+            resumeMissed.increment();
+            return from;
+        }
+        for (long covered : entry.covered.values()) {
+            if (covered > from) {
+                resumeMissed.increment();
+                return from;
+            }
+        }
+        UnackedBuffer previous = entry.buffer;
+        List<byte[]> frames = previous.framesAfter(from);
+        List<Long> sequences = new ArrayList<>(frames.size());
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            sequences.add(ByteBuffer.wrap(frame, Protocol.HEADER_SIZE, Long.BYTES).getLong());
+            batch.writeBytes(connection.compression() ? Compression.compressFrame(frame) : frame);
+        }
+        if (!frames.isEmpty()) {
+            connection.sendSequenced(sequences, frames, batch.toByteArray());
+        }
+        resumed.increment();
+        resumedFrames.add(frames.size());
+        return Math.max(from, previous.lastSequence());
+    }
+
+    /**
+     * Sends {@code connection} the messages above {@code lastSeen} of each room it is in that it did not get
+     * live, which for a room joined after connecting includes those sent between connecting and joining.
+     */
+    private void replay(TCPConnection connection, long lastSeen, String clientId) {
+        Map<String, Long> covered = coveredFrom.get(connection);
+        if (covered == null) {
+            return;
+        }
+        Map<String, Long> live = new HashMap<>(covered);
+        long upTo = 0;
+        for (long sequence : live.values()) {
+            upTo = Math.max(upTo, sequence);
+        }
+        long floor = Math.max(lastSeen, upTo - MAX_REPLAY);
+        long from = resume(connection, floor, clientId, live);
+        Protocol protocol = connection.protocol();
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        List<Long> sequences = new ArrayList<>(REPLAY_BATCH);
+        List<byte[]> frames = new ArrayList<>(REPLAY_BATCH);
+        while (from < upTo) {
+            List<MessageJournal.Entry> entries = journal.read(from, REPLAY_BATCH);
+            if (entries.isEmpty()) {
+                break;
+            }
+            batch.reset();
+            sequences.clear();
+            frames.clear();
+            for (MessageJournal.Entry entry : entries) {
+                if (entry.sequence > upTo) {
+                    break;
+                }
+                from = entry.sequence;
+                Long liveFrom = live.get(entry.room);
+                if (liveFrom == null || entry.sequence > liveFrom || !rooms.isMember(entry.room, connection)) {
+                    continue;
+                }
+                byte[] frame = protocol.encodeSequenced(entry.sequence, entry.text);
+                batch.writeBytes(connection.compression() ? Compression.compressFrame(frame) : frame);
+                sequences.add(entry.sequence);
+                frames.add(frame);
+            }
+            if (batch.size() > 0) {
+                connection.sendSequenced(sequences, frames, batch.toByteArray());
+            }
+            if (entries.get(entries.size() - 1).sequence > upTo) {
+                break;
+            }
+        }
+        for (Map.Entry<String, Long> room : live.entrySet()) {
+            covered.replace(room.getKey(), room.getValue(), Math.min(room.getValue(), floor));
+        }
+    }
+}
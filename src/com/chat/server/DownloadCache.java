@@ -0,0 +1,169 @@
+package com.chat.server;
+
+import com.chat.metrics.Counter;
+import com.chat.metrics.Log;
+import com.chat.metrics.Metrics;
+import com.chat.network.ResidentFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps recently downloaded shared files resident off-heap, least recently used first out, within
+ * {@code chat.download.cache.bytes}. A file is loaded only once {@code chat.download.cache.admitAfter}
+ * different downloads asked for it; until then it is sent from disk, so files fetched once never push
+ * out ones fetched often. Concurrent downloads of a file being loaded wait for a single load. A file whose size or modification time changed is loaded again. Evicted copies that are
+ * still being sent stay alive until those downloads finish, so the bound can be exceeded briefly.
+ */
+class DownloadCache {
+    private final static Log LOG = Log.get("transfer");
+    private final static int MAX_CANDIDATES = 4096;
+
+    private final Counter hits = Metrics.counter("download.cache.hits");
+    private final Counter misses = Metrics.counter("download.cache.misses");
+    private final Counter evictions = Metrics.counter("download.cache.evictions");
+    private final Counter bypassed = Metrics.counter("download.cache.bypassed");
+    private final Counter deferred = Metrics.counter("download.cache.deferred");
+
+    private final long capacity;
+    private final long maxFileBytes;
+    private final int admitAfter;
+    private final LinkedHashMap<Path, Slot> slots;
+    private final LinkedHashMap<Path, Candidate> candidates;
+    private long residentBytes;
+
+    private static class Slot {
+        final long size;
+        final long modified;
+        final CompletableFuture<ResidentFile> file;
+
+        Slot(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+            this.file = new CompletableFuture<>();
+        }
+    }
+
+    /**
+     * Downloads seen of a file that is not resident. The last download is kept so the parallel streams of
+     * one download count once.
+     */
+    private static class Candidate {
+        Object lastDownload;
+        int downloads;
+    }
+
+    DownloadCache(long capacity, long maxFileBytes, int admitAfter) {
+        this.capacity = capacity;
+        this.maxFileBytes = Math.min(maxFileBytes, Integer.MAX_VALUE);
+        this.admitAfter = admitAfter;
+        this.slots = new LinkedHashMap<>(16, 0.75f, true);
+        this.candidates = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Candidate> eldest) {
+                return size() > MAX_CANDIDATES;
+            }
+        };
+        Metrics.gauge("download.cache.bytes", this::residentBytes);
+        Metrics.gauge("download.cache.files", this::residentFiles);
+    }
+
+    static DownloadCache fromProperties() {
+        long capacity = Long.getLong("chat.download.cache.bytes", 256L * 1024 * 1024);
+        return new DownloadCache(capacity, Long.getLong("chat.download.cache.maxFileBytes", capacity / 4),
+                Integer.getInteger("chat.download.cache.admitAfter", 2));
+    }
+
+    /**
+     * Returns the resident copy of {@code file}, loading it on a miss once it was asked for often enough,
+     * or null when the file should be sent from disk. {@code download} identifies the download asking,
+     * one object for all its streams.
+     */
+    ResidentFile get(Path file, long size, Object download) throws IOException {
+        if (size > maxFileBytes || size > capacity) {
+            bypassed.increment();
+            return null;
+        }
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        Slot slot;
+        boolean load = false;
+        synchronized (this) {
+            slot = slots.get(file);
+            if (slot != null && (slot.size != size || slot.modified != modified)) {
+                remove(file, slot);
+                slot = null;
+            }
+            if (slot == null) {
+                if (!admit(file, download)) {
+                    deferred.increment();
+                    return null;
+                }
+                slot = new Slot(size, modified);
+                slots.put(file, slot);
+                residentBytes += size;
+                evict(file);
+                load = true;
+            }
+        }
+        if (load) {
+            misses.increment();
+            try {
+                slot.file.complete(ResidentFile.load(file, size));
+            } catch (IOException | OutOfMemoryError e) {
+                LOG.warn("cache.load.failed", "file", file, "error", e);
+                synchronized (this) {
+                    remove(file, slot);
+                }
+                slot.file.complete(null);
+            }
+        } else {
+            hits.increment();
+        }
+        return slot.file.join();
+    }
+
+    synchronized long residentBytes() {
+        return residentBytes;
+    }
+
+    synchronized int residentFiles() {
+        return slots.size();
+    }
+
+    private boolean admit(Path file, Object download) {
+        Candidate candidate = candidates.computeIfAbsent(file, key -> new Candidate());
+        if (candidate.lastDownload != download) {
+            candidate.lastDownload = download;
+            candidate.downloads++;
+        }
+        if (candidate.downloads < admitAfter) {
+            return false;
+        }
+        candidates.remove(file);
+        return true;
+    }
+
+    private void evict(Path keep) {
+        Iterator<Map.Entry<Path, Slot>> iterator = slots.entrySet().iterator();
+        while (residentBytes > capacity && iterator.hasNext()) {
+            Map.Entry<Path, Slot> eldest = iterator.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            iterator.remove();
+            residentBytes -= eldest.getValue().size;
+            evictions.increment();
+        }
+    }
+
+    private void remove(Path file, Slot slot) {
+        if (slots.remove(file, slot)) {
+            residentBytes -= slot.size;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.chat.server;
+
+import com.chat.metrics.Log;
+import com.chat.network.FileTransfer;
+import com.chat.network.NamedThreadFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-memory view of the shared directory, kept current by a {@link WatchService}.
+ * Every change gets a new catalog version, so clients can page through the listing
+ * once and afterwards ask only for what changed since the version they last saw.
+ */
+class FileCatalog implements Closeable {
+    /**
+     * Told about every shared name that disappears, on the watcher thread.
+     */
+    interface DeletionHandler {
+        void onDeleted(String name) throws IOException;
+    }
+
+    private final static Log LOG = Log.get("file-catalog");
+    private final static int MAX_TOMBSTONES = 10000;
+
+    static class Entry {
+        final String name;
+        final long size;
+        final long modified;
+        final String hash;
+        final long version;
+
+        private Entry(String name, long size, long modified, String hash, long version) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.version = version;
+        }
+
+        boolean isDeleted() {
+            return size < 0;
+        }
+
+        @Override
+        public String toString() {
+            return name + "|" + size + "|" + modified + "|" + hash;
+        }
+    }
+
+    static class Changes {
+        final long version;
+        final boolean reset;
+        final boolean more;
+        final List<Entry> entries;
+
+        private Changes(long version, boolean reset, boolean more, List<Entry> entries) {
+            this.version = version;
+            this.reset = reset;
+            this.more = more;
+            this.entries = entries;
+        }
+    }
+
+    private final Path directory;
+    private final ConcurrentSkipListMap<String, Entry> byName;
+    private final ConcurrentSkipListMap<Long, Entry> byVersion;
+    private final WatchService watcher;
+    private final ExecutorService hasher;
+    private final DeletionHandler deletions;
+    private volatile long version;
+    private volatile long oldestTombstone;
+    private int tombstones;
+
+    FileCatalog(Path directory, DeletionHandler deletions) throws IOException {
+        this.directory = directory;
+        this.deletions = deletions;
+        this.byName = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder()));
+        this.byVersion = new ConcurrentSkipListMap<>();
+        Files.createDirectories(directory);
+        this.watcher = directory.getFileSystem().newWatchService();
+        directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        this.hasher = Executors.newSingleThreadExecutor(new NamedThreadFactory("file-catalog-hash", false));
+        rescan();
+        new NamedThreadFactory("file-catalog", false).newThread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }).start();
+    }
+
+    long version() {
+        return version;
+    }
+
+    Entry get(String name) {
+        Entry entry = byName.get(name);
+        return entry == null || entry.isDeleted() ? null : entry;
+    }
+
+    /**
+     * Returns up to {@code limit} live entries whose names contain {@code filter}, ignoring case,
+     * skipping the first {@code offset} matches. The total number of matches is stored in {@code total[0]}.
+     */
+    List<Entry> list(int offset, int limit, String filter, int[] total) {
+        String needle = filter.toLowerCase();
+        List<Entry> page = new ArrayList<>(Math.min(limit, 1024));
+        int matches = 0;
+        for (Entry entry : byName.values()) {
+            if (entry.isDeleted() || (!needle.isEmpty() && !entry.name.toLowerCase().contains(needle))) {
+                continue;
+            }
+            if (matches >= offset && page.size() < limit) {
+                page.add(entry);
+            }
+            matches++;
+        }
+        total[0] = matches;
+        return page;
+    }
+
+    Changes changesSince(long since, int limit) {
+        if (since < oldestTombstone) {
+            return new Changes(version, true, false, List.of());
+        }
+        List<Entry> entries = new ArrayList<>();
+        long last = since;
+        for (Entry entry : byVersion.tailMap(since, false).values()) {
+            if (entries.size() == limit) {
+                return new Changes(last, false, true, entries);
+            }
+            entries.add(entry);
+            last = entry.version;
+        }
+        return new Changes(Math.max(last, since), false, false, entries);
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+        hasher.shutdownNow();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan();
+                    } else {
+                        refresh((Path) event.context());
+                    }
+                }
+                if (!key.reset()) {
+                    LOG.warn("watch.stopped", "directory", directory);
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        } catch (IOException e) {
+            LOG.warn("watch.failed", "error", e);
+        }
+    }
+
+    private void rescan() throws IOException {
+        Set<String> seen = new HashSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                refresh(file.getFileName());
+                seen.add(file.getFileName().toString());
+            }
+        }
+        for (Entry entry : byName.values()) {
+            if (!entry.isDeleted() && !seen.contains(entry.name)) {
+                refresh(directory.getFileSystem().getPath(entry.name));
+            }
+        }
+    }
+
+    private void refresh(Path name) {
+        String fileName = name.toString();
+        if (fileName.endsWith(".part") || fileName.endsWith(".chunks")) {
+            return;
+        }
+        Path file = directory.resolve(name);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return;
+            }
+            long size = attributes.size();
+            long modified = attributes.lastModifiedTime().toMillis();
+            Entry current = byName.get(fileName);
+            if (current != null && current.size == size && current.modified == modified) {
+                return;
+            }
+            publish(fileName, size, modified, "");
+            hasher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    hash(file, fileName, size, modified);
+                }
+            });
+        } catch (IOException e) {
+            Entry current = byName.get(fileName);
+            if (current != null && !current.isDeleted()) {
+                publish(fileName, -1, 0, "");
+                try {
+                    deletions.onDeleted(fileName);
+                } catch (IOException | RuntimeException failure) {
+                    LOG.warn("deletion.failed", "file", fileName, "error", failure);
+                }
+            }
+        }
+    }
+
+    private void hash(Path file, String fileName, long size, long modified) {
+        Entry current = byName.get(fileName);
+        if (current == null || current.size != size || current.modified != modified) {
+            return;
+        }
+        try {
+            String hash = FileTransfer.sha256(file);
+            synchronized (this) {
+                current = byName.get(fileName);
+                if (current != null && current.size == size && current.modified == modified) {
+                    publish(fileName, size, modified, hash);
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("hash.failed", "file", fileName, "error", e);
+        }
+    }
+
+    private synchronized void publish(String name, long size, long modified, String hash) {
+        Entry entry = new Entry(name, size, modified, hash, version + 1);
+        Entry previous = byName.put(name, entry);
+        if (previous != null) {
+            byVersion.remove(previous.version);
+            if (previous.isDeleted()) {
+                tombstones--;
+            }
+        }
+        byVersion.put(entry.version, entry);
+        version = entry.version;
+        if (entry.isDeleted() && ++tombstones > MAX_TOMBSTONES) {
+            Iterator<Map.Entry<Long, Entry>> iterator = byVersion.entrySet().iterator();
+            while (tombstones > MAX_TOMBSTONES / 2 && iterator.hasNext()) {
+                Entry oldest = iterator.next().getValue();
+                if (oldest.isDeleted()) {
+                    iterator.remove();
+                    byName.remove(oldest.name, oldest);
+                    oldestTombstone = oldest.version;
+                    tombstones--;
+                }
+            }
+        }
+    }
+}
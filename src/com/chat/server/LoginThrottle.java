@@ -0,0 +1,68 @@
+package com.chat.server;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts failed logins per remote address in a fixed window. Once an address reaches
+ * {@code chat.auth.maxFailures} failures it is refused without checking the password until the
+ * window it started ends, so a password is guessed at that rate at most. Only the most recently
+ * failing addresses are remembered.
+ */
+class LoginThrottle {
+    private final static int MAX_ADDRESSES = 4096;
+
+    private final int maxFailures;
+    private final long windowNanos;
+    private final Map<InetAddress, Window> failures;
+
+    private static class Window {
+        final long startedAt;
+        int count;
+
+        Window(long startedAt) {
+            this.startedAt = startedAt;
+        }
+    }
+
+    LoginThrottle(int maxFailures, long windowMillis) {
+        this.maxFailures = maxFailures;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.failures = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<InetAddress, Window> eldest) {
+                return size() > MAX_ADDRESSES;
+            }
+        };
+    }
+
+    static LoginThrottle fromProperties() {
+        return new LoginThrottle(Integer.getInteger("chat.auth.maxFailures", 5),
+                TimeUnit.SECONDS.toMillis(Long.getLong("chat.auth.windowSeconds", 60)));
+    }
+
+    synchronized boolean allows(InetAddress address) {
+        Window window = current(address);
+        return window == null || window.count < maxFailures;
+    }
+
+    synchronized void failed(InetAddress address) {
+        Window window = current(address);
+        if (window == null) {
+            window = new Window(System.nanoTime());
+            failures.put(address, window);
+        }
+        window.count++;
+    }
+
+    private Window current(InetAddress address) {
+        Window window = failures.get(address);
+        if (window != null && System.nanoTime() - window.startedAt > windowNanos) {
+            failures.remove(address);
+            return null;
+        }
+        return window;
+    }
+}
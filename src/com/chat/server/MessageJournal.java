@@ -0,0 +1,268 @@
+package com.chat.server;
+
+import com.chat.metrics.Log;
+import com.chat.network.NamedThreadFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+class MessageJournal implements Closeable {
+    private final static Log LOG = Log.get("journal");
+    private final static int SEGMENT_SIZE = 16 * 1024 * 1024;
+    private final static int RECORD_HEADER_SIZE = Integer.BYTES + 2 * Long.BYTES;
+    private final static int INDEX_INTERVAL = 128;
+    private final static long FORCE_INTERVAL_MS = 1000;
+    private final static char ROOM_SEPARATOR = '\0';
+
+    static class Entry {
+        final long sequence;
+        final long timestamp;
+        final String room;
+        final String text;
+
+        private Entry(long sequence, long timestamp, String record) {
+            int separator = record.indexOf(ROOM_SEPARATOR);
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.room = separator < 0 ? RoomRegistry.DEFAULT_ROOM : record.substring(0, separator);
+            this.text = separator < 0 ? record : record.substring(separator + 1);
+        }
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final ConcurrentSkipListMap<Long, Segment> segments;
+    private final ScheduledExecutorService maintenance;
+    private final List<Path> undeleted;
+    private volatile Segment active;
+    private volatile long lastSequence;
+
+    MessageJournal(Path directory, long maxBytes, long maxAgeMillis) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.segments = new ConcurrentSkipListMap<>();
+        this.undeleted = new ArrayList<>();
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.journal")) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                long first = Long.parseLong(name.substring(0, name.length() - ".journal".length()));
+                Segment segment = new Segment(file, first);
+                if (segment.count == 0 && segment.first > 0) {
+                    retire(segment);
+                } else {
+                    segments.put(first, segment);
+                }
+            }
+        }
+        this.active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        this.lastSequence = active == null ? 0 : active.first + active.count - 1;
+        if (active == null) {
+            active = roll(1);
+        }
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("journal-maintenance", false));
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                active.buffer.force();
+                enforceRetention();
+            }
+        }, FORCE_INTERVAL_MS, FORCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    static MessageJournal fromProperties(Path directory) throws IOException {
+        long maxBytes = Long.getLong("chat.journal.maxBytes", 1024L * 1024 * 1024);
+        long maxAgeHours = Long.getLong("chat.journal.maxAgeHours", 24 * 7);
+        return new MessageJournal(directory, maxBytes, TimeUnit.HOURS.toMillis(maxAgeHours));
+    }
+
+    long lastSequence() {
+        return lastSequence;
+    }
+
+    synchronized long append(String room, String text) throws IOException {
+        byte[] bytes = (room + ROOM_SEPARATOR + text).getBytes(StandardCharsets.UTF_8);
+        if (RECORD_HEADER_SIZE + bytes.length + Integer.BYTES > SEGMENT_SIZE) {
+            throw new IOException("Message of " + bytes.length + " bytes does not fit into a journal segment");
+        }
+        long sequence = lastSequence + 1;
+        if (active.buffer.remaining() < RECORD_HEADER_SIZE + bytes.length + Integer.BYTES) {
+            active.buffer.force();
+            active = roll(sequence);
+        }
+        active.append(sequence, System.currentTimeMillis(), bytes);
+        lastSequence = sequence;
+        return sequence;
+    }
+
+    List<Entry> read(long afterSequence, int max) {
+        List<Entry> entries = new ArrayList<>(Math.min(max, 1024));
+        long next = Math.max(afterSequence + 1, firstSequence());
+        long last = lastSequence;
+        while (next <= last && entries.size() < max) {
+            Map.Entry<Long, Segment> floor = segments.floorEntry(next);
+            if (floor == null) {
+                break;
+            }
+            int before = entries.size();
+            next = floor.getValue().read(next, last, max, entries);
+            if (entries.size() == before && next <= last && segments.higherKey(floor.getKey()) == null) {
+                break;
+            }
+        }
+        return entries;
+    }
+
+    long firstSequence() {
+        Map.Entry<Long, Segment> first = segments.firstEntry();
+        return first == null ? lastSequence + 1 : first.getKey();
+    }
+
+    @Override
+    public synchronized void close() {
+        maintenance.shutdown();
+        active.buffer.force();
+    }
+
+    private Segment roll(long first) throws IOException {
+        Segment segment = new Segment(directory.resolve(String.format("%020d.journal", first)), first);
+        segments.put(first, segment);
+        return segment;
+    }
+
+    private void enforceRetention() {
+        undeleted.removeIf(MessageJournal::delete);
+        long now = System.currentTimeMillis();
+        long total = (long) segments.size() * SEGMENT_SIZE;
+        Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment == active) {
+                break;
+            }
+            boolean tooBig = total > maxBytes;
+            boolean tooOld = now - segment.lastTimestamp > maxAgeMillis;
+            if (!tooBig && !tooOld) {
+                break;
+            }
+            iterator.remove();
+            total -= SEGMENT_SIZE;
+            retire(segment);
+        }
+    }
+
+    /**
+     * Deletes the file of a segment that is no longer in {@link #segments}. Windows refuses to delete a file
+     * while it is mapped, and the mapping only goes away once the buffer is collected, so a file that cannot
+     * be deleted yet is kept by name, not by segment, and retried on every maintenance run.
+     */
+    private void retire(Segment segment) {
+        if (!delete(segment.file)) {
+            undeleted.add(segment.file);
+        }
+    }
+
+    private static boolean delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+            return true;
+        } catch (IOException e) {
+            LOG.debug("segment.delete.deferred", "file", file, "error", e);
+            return false;
+        }
+    }
+
+    private static class Segment {
+        private final Path file;
+        private final long first;
+        private final MappedByteBuffer buffer;
+        private final List<Integer> index;
+        private volatile int count;
+        private volatile long lastTimestamp;
+
+        private Segment(Path file, long first) throws IOException {
+            this.file = file;
+            this.first = first;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            }
+            this.index = new ArrayList<>();
+            int position = 0;
+            int recovered = 0;
+            while (position + RECORD_HEADER_SIZE <= SEGMENT_SIZE) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + RECORD_HEADER_SIZE + length > SEGMENT_SIZE
+                        || buffer.getLong(position + Integer.BYTES) != first + recovered) {
+                    break;
+                }
+                if (recovered % INDEX_INTERVAL == 0) {
+                    index.add(position);
+                }
+                lastTimestamp = buffer.getLong(position + Integer.BYTES + Long.BYTES);
+                position += RECORD_HEADER_SIZE + length;
+                recovered++;
+            }
+            buffer.putInt(position, 0);
+            buffer.position(position);
+            this.count = recovered;
+        }
+
+        private void append(long sequence, long timestamp, byte[] bytes) {
+            int position = buffer.position();
+            if (count % INDEX_INTERVAL == 0) {
+                synchronized (index) {
+                    index.add(position);
+                }
+            }
+            buffer.putInt(position + RECORD_HEADER_SIZE + bytes.length, 0);
+            buffer.position(position + Integer.BYTES);
+            buffer.putLong(sequence).putLong(timestamp).put(bytes);
+            buffer.putInt(position, bytes.length);
+            lastTimestamp = timestamp;
+            count++;
+        }
+
+        private long read(long from, long last, int max, List<Entry> entries) {
+            long end = Math.min(last, first + count - 1);
+            int slot = (int) ((from - first) / INDEX_INTERVAL);
+            int position;
+            synchronized (index) {
+                if (slot >= index.size()) {
+                    return end + 1;
+                }
+                position = index.get(slot);
+            }
+            long sequence = first + (long) slot * INDEX_INTERVAL;
+            while (sequence <= end && entries.size() < max) {
+                int length = buffer.getInt(position);
+                if (sequence >= from) {
+                    byte[] bytes = new byte[length];
+                    buffer.get(position + RECORD_HEADER_SIZE, bytes);
+                    entries.add(new Entry(sequence, buffer.getLong(position + Integer.BYTES + Long.BYTES),
+                            new String(bytes, StandardCharsets.UTF_8)));
+                }
+                position += RECORD_HEADER_SIZE + length;
+                sequence++;
+            }
+            return sequence;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.chat.server;
+
+import com.chat.network.TCPConnection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Room membership split over independent shards. Each room owns its own {@link BroadcastEngine},
+ * so a broadcast only visits the members of that room and rooms on different shards never share a lock.
+ */
+class RoomRegistry {
+    final static String DEFAULT_ROOM = "general";
+    private final static int MAX_NAME_LENGTH = 32;
+
+    private final Map<String, BroadcastEngine>[] shards;
+    private final Map<TCPConnection, Set<String>> memberships;
+    private final Map<TCPConnection, String> currentRooms;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    RoomRegistry(int shardCount) {
+        int size = Integer.highestOneBit(Math.max(1, shardCount - 1) << 1);
+        this.shards = new Map[size];
+        for (int i = 0; i < size; i++) {
+            shards[i] = new ConcurrentHashMap<>();
+        }
+        this.memberships = new ConcurrentHashMap<>();
+        this.currentRooms = new ConcurrentHashMap<>();
+    }
+
+    static RoomRegistry fromProperties() {
+        return new RoomRegistry(Integer.getInteger("chat.rooms.shards", 16));
+    }
+
+    static boolean isValidName(String room) {
+        if (room.isEmpty() || room.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < room.length(); i++) {
+            char c = room.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean join(String room, TCPConnection connection) {
+        boolean joined = memberships.computeIfAbsent(connection, c -> ConcurrentHashMap.newKeySet()).add(room);
+        shard(room).compute(room, (name, engine) -> {
+            BroadcastEngine members = engine == null ? new BroadcastEngine() : engine;
+            members.register(connection);
+            return members;
+        });
+        currentRooms.put(connection, room);
+        return joined;
+    }
+
+    boolean leave(String room, TCPConnection connection) {
+        Set<String> rooms = memberships.get(connection);
+        if (rooms == null || !rooms.remove(room)) {
+            return false;
+        }
+        unregister(room, connection);
+        currentRooms.computeIfPresent(connection, (c, current) -> {
+            if (!current.equals(room)) {
+                return current;
+            }
+            return rooms.contains(DEFAULT_ROOM) ? DEFAULT_ROOM : rooms.stream().findAny().orElse(null);
+        });
+        return true;
+    }
+
+    List<String> leaveAll(TCPConnection connection) {
+        currentRooms.remove(connection);
+        Set<String> rooms = memberships.remove(connection);
+        if (rooms == null) {
+            return List.of();
+        }
+        List<String> left = new ArrayList<>(rooms);
+        for (String room : left) {
+            unregister(room, connection);
+        }
+        return left;
+    }
+
+    boolean isMember(String room, TCPConnection connection) {
+        Set<String> rooms = memberships.get(connection);
+        return rooms != null && rooms.contains(room);
+    }
+
+    String currentRoom(TCPConnection connection) {
+        return currentRooms.get(connection);
+    }
+
+    void broadcast(String room, long sequence, String msg) {
+        BroadcastEngine members = shard(room).get(room);
+        if (members != null) {
+            members.broadcast(sequence, msg);
+        }
+    }
+
+    int size(String room) {
+        BroadcastEngine members = shard(room).get(room);
+        return members == null ? 0 : members.size();
+    }
+
+    private void unregister(String room, TCPConnection connection) {
+        shard(room).computeIfPresent(room, (name, members) -> {
+            members.unregister(connection);
+            return members.size() == 0 ? null : members;
+        });
+    }
+
+    private Map<String, BroadcastEngine> shard(String room) {
+        int hash = room.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & (shards.length - 1)];
+    }
+}
@@ -0,0 +1,109 @@
+package com.chat.server;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Settings of a {@link ChatEngine}. Every setting is a {@code chat.*} property; directories default to
+ * subdirectories of {@code chat.home}. {@link #fromArgs(String[])} merges, from lowest to highest priority,
+ * a properties file given with {@code --config}, {@code -D} system properties and {@code --name value}
+ * options, and publishes the result as system properties so component tunables in the file apply too.
+ */
+public class ServerConfig {
+    public final static String USAGE = "usage: ChatServer [--headless] [--config file] [--<setting> value]..."
+            + " (settings: home, port, transferPort, files, journal, index, access.rules, users, store, transport,"
+            + " metrics.port, network, mask, shutdown.timeoutMillis)";
+
+    public final Path home;
+    public final int port;
+    public final int transferPort;
+    public final Path filesDirectory;
+    public final Path journalDirectory;
+    public final Path indexDirectory;
+    public final Path accessRules;
+    public final Path usersFile;
+    public final Path storeDirectory;
+    public final boolean nioTransport;
+    public final int metricsPort;
+    public final String network;
+    public final String mask;
+    public final long shutdownTimeoutMillis;
+    public final boolean headless;
+
+    private ServerConfig(Properties properties, boolean headless) {
+        this.home = Paths.get(properties.getProperty("chat.home", "D:/LocalUserChat"));
+        this.port = Integer.parseInt(properties.getProperty("chat.port", "7777"));
+        this.transferPort = Integer.parseInt(properties.getProperty("chat.transferPort", "11111"));
+        this.filesDirectory = path(properties, "chat.files", "Files");
+        this.journalDirectory = path(properties, "chat.journal", "Journal");
+        this.indexDirectory = path(properties, "chat.index", "Index");
+        this.accessRules = path(properties, "chat.access.rules", "access.rules");
+        this.usersFile = path(properties, "chat.users", "users.txt");
+        this.storeDirectory = path(properties, "chat.store", "Store");
+        this.nioTransport = "nio".equals(properties.getProperty("chat.transport"));
+        this.metricsPort = Integer.parseInt(properties.getProperty("chat.metrics.port", "9404"));
+        this.network = properties.getProperty("chat.network", "");
+        this.mask = properties.getProperty("chat.mask", "");
+        this.shutdownTimeoutMillis = Long.parseLong(properties.getProperty("chat.shutdown.timeoutMillis", "10000"));
+        this.headless = headless;
+    }
+
+    /**
+     * Builds a configuration from explicit properties, for embedding the engine in tests and benchmarks.
+     */
+    public static ServerConfig fromProperties(Properties properties) {
+        return new ServerConfig(properties, true);
+    }
+
+    public static ServerConfig fromArgs(String[] args) throws IOException {
+        boolean headless = false;
+        Properties options = new Properties();
+        Path configFile = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--headless")) {
+                headless = true;
+            } else if (args[i].startsWith("--") && i + 1 < args.length) {
+                if (args[i].equals("--config")) {
+                    configFile = Paths.get(args[++i]);
+                } else {
+                    options.setProperty("chat." + args[i].substring(2), args[++i]);
+                }
+            } else {
+                throw new IllegalArgumentException(USAGE);
+            }
+        }
+        if (configFile == null && System.getProperty("chat.config") != null) {
+            configFile = Paths.get(System.getProperty("chat.config"));
+        }
+        if (configFile != null) {
+            Properties file = new Properties();
+            try (Reader reader = Files.newBufferedReader(configFile, StandardCharsets.UTF_8)) {
+                file.load(reader);
+            }
+            for (Map.Entry<Object, Object> entry : file.entrySet()) {
+                if (System.getProperty((String) entry.getKey()) == null) {
+                    System.setProperty((String) entry.getKey(), (String) entry.getValue());
+                }
+            }
+        }
+        for (Map.Entry<Object, Object> entry : options.entrySet()) {
+            System.setProperty((String) entry.getKey(), (String) entry.getValue());
+        }
+        try {
+            return new ServerConfig(System.getProperties(), headless);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number in configuration: " + e.getMessage(), e);
+        }
+    }
+
+    private Path path(Properties properties, String key, String defaultName) {
+        String value = properties.getProperty(key);
+        return value != null ? Paths.get(value) : home.resolve(defaultName);
+    }
+}
@@ -0,0 +1,72 @@
+package com.chat.server;
+
+import com.chat.network.TCPConnection;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Authenticated users and their connections, indexed both ways so direct messages
+ * cost one lookup plus one send per device of the recipient.
+ */
+class SessionIndex {
+    private final static int MAX_NAME_LENGTH = 32;
+
+    private final Map<String, Set<TCPConnection>> connectionsByUser;
+    private final Map<TCPConnection, String> usersByConnection;
+
+    SessionIndex() {
+        this.connectionsByUser = new ConcurrentHashMap<>();
+        this.usersByConnection = new ConcurrentHashMap<>();
+    }
+
+    static boolean isValidName(String user) {
+        if (user.isEmpty() || user.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < user.length(); i++) {
+            char c = user.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void bind(String user, TCPConnection connection) {
+        String previous = usersByConnection.put(connection, user);
+        if (previous != null && !previous.equals(user)) {
+            remove(previous, connection);
+        }
+        connectionsByUser.compute(user, (name, connections) -> {
+            Set<TCPConnection> devices = connections == null ? ConcurrentHashMap.newKeySet() : connections;
+            devices.add(connection);
+            return devices;
+        });
+    }
+
+    String unbind(TCPConnection connection) {
+        String user = usersByConnection.remove(connection);
+        if (user != null) {
+            remove(user, connection);
+        }
+        return user;
+    }
+
+    String user(TCPConnection connection) {
+        return usersByConnection.get(connection);
+    }
+
+    Set<TCPConnection> connections(String user) {
+        Set<TCPConnection> connections = connectionsByUser.get(user);
+        return connections == null ? Set.of() : connections;
+    }
+
+    private void remove(String user, TCPConnection connection) {
+        connectionsByUser.computeIfPresent(user, (name, devices) -> {
+            devices.remove(connection);
+            return devices.isEmpty() ? null : devices;
+        });
+    }
+}
@@ -0,0 +1,371 @@
+package com.chat.server;
+
+import com.chat.metrics.Log;
+import com.chat.network.ChunkLog;
+import com.chat.network.FileTransfer;
+import com.chat.network.NamedThreadFactory;
+import com.chat.network.ResidentFile;
+import com.chat.network.WorkerPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Listener for file transfer connections. Each connection names a session opened with {@link #open} and one
+ * range of it; a download may use up to {@code chat.transfer.streams} range connections at once, so the
+ * worker pool must hold that many threads per transfer slot. A watchdog closes connections that read
+ * nothing for {@code chat.transfer.readTimeoutMillis}, or whose download falls below
+ * {@code chat.transfer.minBytesPerSecond}. Uploads to one staging file are refused while another is in
+ * flight, and a download gives back its slot once its ranges have covered the file.
+ */
+class TransferServer implements Runnable {
+    enum Direction { UPLOAD, DOWNLOAD }
+
+    interface UploadHandler {
+        void onUploaded(Path received) throws IOException;
+    }
+
+    private final static long SESSION_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+    private final static long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+    final static int STREAMS_PER_TRANSFER = Math.max(1, Integer.getInteger("chat.transfer.streams", 4));
+    private final static long READ_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(
+            Long.getLong("chat.transfer.readTimeoutMillis", 30000));
+    private final static long MIN_SEND_RATE = Math.max(1, Long.getLong("chat.transfer.minBytesPerSecond", 32 * 1024));
+    private final static long WATCHDOG_INTERVAL_MS = 1000;
+    private final static Log LOG = Log.get("transfer");
+
+    private final ServerSocketChannel serverChannel;
+    private final WorkerPool workers;
+    private final DownloadCache cache;
+    private final Semaphore slots;
+    private final Map<Long, Session> sessions;
+    private final Set<Path> staging;
+    private final SecureRandom random;
+    private final Set<Watch> active;
+    private final ScheduledExecutorService watchdog;
+    private final Thread acceptThread;
+
+    TransferServer(int port, WorkerPool workers, DownloadCache cache) throws IOException {
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        this.workers = workers;
+        this.cache = cache;
+        this.slots = new Semaphore(Math.max(1, workers.maxConcurrency() / STREAMS_PER_TRANSFER));
+        this.sessions = new ConcurrentHashMap<>();
+        this.staging = ConcurrentHashMap.newKeySet();
+        this.random = new SecureRandom();
+        this.active = ConcurrentHashMap.newKeySet();
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("transfer-watchdog", false));
+        watchdog.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                closeStalled();
+                expireSessions();
+            }
+        }, WATCHDOG_INTERVAL_MS, WATCHDOG_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        this.acceptThread = new Thread(this, "file-transfer-acceptor");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Opens a transfer session. For uploads with a {@code handler} the completed file is handed to it
+     * instead of being moved to {@code file}, which then only names the partial file. Downloads are
+     * sent with compressed chunks when {@code compress} is set. Uploads staged at the same {@code file}
+     * share its partial file and chunk log, so only one may be open at a time.
+     */
+    long open(Direction direction, Path file, long size, boolean compress, UploadHandler handler) throws IOException {
+        expireSessions();
+        if (!slots.tryAcquire()) {
+            throw new RejectedExecutionException("too many concurrent transfers");
+        }
+        if (direction == Direction.UPLOAD && !staging.add(file)) {
+            slots.release();
+            throw new IOException("an upload of " + file.getFileName() + " is already in progress");
+        }
+        Session session;
+        try {
+            session = new Session(direction, file, size, compress, handler);
+        } catch (IOException e) {
+            if (direction == Direction.UPLOAD) {
+                staging.remove(file);
+            }
+            slots.release();
+            throw e;
+        }
+        long id;
+        do {
+            id = random.nextLong();
+        } while (id == 0 || sessions.putIfAbsent(id, session) != null);
+        return id;
+    }
+
+    long resumeOffset(long id) {
+        Session session = sessions.get(id);
+        return session == null || session.log == null ? 0 : session.log.verifiedPrefix();
+    }
+
+    @Override
+    public void run() {
+        while (serverChannel.isOpen()) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    LOG.warn("accept.failed", "error", e);
+                }
+                continue;
+            }
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(channel);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                LOG.warn("rejected", "reason", e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException closeFailure) {
+                    LOG.warn("close.failed", "error", closeFailure);
+                }
+            }
+        }
+    }
+
+    int port() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    void close() throws IOException {
+        serverChannel.close();
+        watchdog.shutdown();
+        workers.shutdown();
+    }
+
+    private void serve(SocketChannel channel) {
+        Watch watch = new Watch(channel);
+        active.add(watch);
+        try (channel) {
+            long[] header = FileTransfer.readHeader(watch);
+            Session session = sessions.get(header[0]);
+            if (session == null) {
+                LOG.warn("unknown.session", "remote", channel.getRemoteAddress());
+                return;
+            }
+            long offset = header[1];
+            long length = header[2];
+            if (offset < 0 || length < 0 || offset + length > session.size) {
+                LOG.warn("range.invalid", "offset", offset, "length", length);
+                return;
+            }
+            session.attach();
+            try {
+                if (session.direction == Direction.UPLOAD) {
+                    try (FileChannel file = session.openFile()) {
+                        FileTransfer.receiveRange(file, offset, length, watch, session.log);
+                    }
+                } else {
+                    watch.allowSend(length);
+                    send(session, offset, length, channel);
+                }
+            } finally {
+                session.detach();
+            }
+            if (session.direction == Direction.UPLOAD ? session.log.isComplete() : session.sent(length)) {
+                finish(header[0], session);
+            }
+        } catch (IOException e) {
+            LOG.warn("exception", "error", e);
+        } finally {
+            active.remove(watch);
+        }
+    }
+
+    private void send(Session session, long offset, long length, SocketChannel channel) throws IOException {
+        ResidentFile resident = cache.get(session.file, session.size, session);
+        if (resident != null) {
+            FileTransfer.sendRange(resident, offset, length, channel, session.compress);
+            return;
+        }
+        try (FileChannel file = session.openFile()) {
+            FileTransfer.sendRange(file, offset, length, channel, session.compress);
+        }
+    }
+
+    private void finish(long id, Session session) throws IOException {
+        if (!sessions.remove(id, session)) {
+            return;
+        }
+        release(session);
+        if (session.direction == Direction.UPLOAD) {
+            session.log.delete();
+            if (session.handler != null) {
+                session.handler.onUploaded(session.partFile());
+                return;
+            }
+            Files.move(session.partFile(), session.file, StandardCopyOption.REPLACE_EXISTING);
+            LOG.info("upload.stored", "file", session.file, "bytes", session.size);
+        }
+    }
+
+    private void closeStalled() {
+        long now = System.nanoTime();
+        for (Watch watch : active) {
+            if (now - watch.deadline > 0) {
+                active.remove(watch);
+                try {
+                    LOG.warn("timeout", "remote", watch.channel.getRemoteAddress());
+                    watch.channel.close();
+                } catch (IOException e) {
+                    LOG.warn("close.failed", "error", e);
+                }
+            }
+        }
+    }
+
+    private void expireSessions() {
+        long now = System.nanoTime();
+        for (Map.Entry<Long, Session> entry : sessions.entrySet()) {
+            Session session = entry.getValue();
+            if (session.isIdle(now) && sessions.remove(entry.getKey(), session)) {
+                release(session);
+                if (session.log != null) {
+                    try {
+                        session.log.close();
+                    } catch (IOException e) {
+                        LOG.warn("exception", "error", e);
+                    }
+                }
+            }
+        }
+    }
+
+    private void release(Session session) {
+        if (session.direction == Direction.UPLOAD) {
+            staging.remove(session.file);
+        }
+        slots.release();
+    }
+
+    /**
+     * Reads from a transfer connection, pushing its deadline back whenever bytes arrive. Downloads write
+     * to the socket directly so {@code transferTo} stays zero-copy; they get a deadline from their length.
+     */
+    private static class Watch implements ReadableByteChannel {
+        private final SocketChannel channel;
+        private volatile long deadline;
+
+        private Watch(SocketChannel channel) {
+            this.channel = channel;
+            this.deadline = System.nanoTime() + READ_TIMEOUT;
+        }
+
+        private void allowSend(long length) {
+            deadline = System.nanoTime() + READ_TIMEOUT + length / MIN_SEND_RATE * 1_000_000_000L;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            int read = channel.read(buffer);
+            if (read > 0) {
+                deadline = System.nanoTime() + READ_TIMEOUT;
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static class Session {
+        private final Direction direction;
+        private final Path file;
+        private final long size;
+        private final ChunkLog log;
+        private final boolean compress;
+        private final UploadHandler handler;
+        private final AtomicInteger attached;
+        private final AtomicLong sent;
+        private volatile boolean started;
+        private volatile long lastActivity;
+
+        private Session(Direction direction, Path file, long size, boolean compress, UploadHandler handler)
+                throws IOException {
+            this.direction = direction;
+            this.file = file;
+            this.size = size;
+            this.log = direction == Direction.UPLOAD ? ChunkLog.open(partFile(), size) : null;
+            this.compress = compress;
+            this.handler = handler;
+            this.attached = new AtomicInteger();
+            this.sent = new AtomicLong();
+            this.lastActivity = System.nanoTime();
+        }
+
+        private Path partFile() {
+            return Paths.get(file + ".part");
+        }
+
+        private FileChannel openFile() throws IOException {
+            if (direction == Direction.UPLOAD) {
+                return FileChannel.open(partFile(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.READ);
+            }
+            return FileChannel.open(file, StandardOpenOption.READ);
+        }
+
+        private void attach() {
+            started = true;
+            attached.incrementAndGet();
+            lastActivity = System.nanoTime();
+        }
+
+        private void detach() {
+            attached.decrementAndGet();
+            lastActivity = System.nanoTime();
+        }
+
+        /**
+         * Counts a range sent in full and tells whether the ranges sent so far add up to the whole file.
+         */
+        private boolean sent(long length) {
+            return sent.addAndGet(length) >= size;
+        }
+
+        private boolean isIdle(long now) {
+            long timeout = started ? IDLE_TIMEOUT : SESSION_TIMEOUT;
+            return attached.get() == 0 && now - lastActivity > timeout;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.chat.server;
+
+import com.chat.metrics.Log;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Users file with one {@code name:iterations:salt:hash} line per user, hashed with PBKDF2.
+ * Without a users file the server runs open: anyone may talk in rooms as a guest, but since no name can
+ * be verified every login is refused, and with it direct messages.
+ */
+class UserStore {
+    private final static Log LOG = Log.get("users");
+    private final static String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private final static int ITERATIONS = 65536;
+    private final static int KEY_BITS = 256;
+    private final static int SALT_BYTES = 16;
+
+    private final Map<String, String[]> users;
+    private final boolean open;
+
+    UserStore(Path file) throws IOException {
+        this.users = new ConcurrentHashMap<>();
+        this.open = !Files.isRegularFile(file);
+        if (!open) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String[] fields = line.strip().split(":");
+                if (fields.length == 4) {
+                    users.put(fields[0], fields);
+                }
+            }
+        }
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    boolean authenticate(String user, String password) {
+        if (open || !SessionIndex.isValidName(user)) {
+            return false;
+        }
+        String[] fields = users.get(user);
+        if (fields == null) {
+            return false;
+        }
+        try {
+            Base64.Decoder decoder = Base64.getDecoder();
+            byte[] expected = decoder.decode(fields[3]);
+            byte[] actual = hash(password, decoder.decode(fields[2]), Integer.parseInt(fields[1]));
+            return MessageDigest.isEqual(expected, actual);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            LOG.warn("entry.broken", "user", user, "error", e);
+            return false;
+        }
+    }
+
+    static void addUser(Path file, String user, String password) throws IOException, GeneralSecurityException {
+        if (!SessionIndex.isValidName(user)) {
+            throw new IllegalArgumentException("Invalid user name " + user);
+        }
+        byte[] salt = new byte[SALT_BYTES];
+        new SecureRandom().nextBytes(salt);
+        Base64.Encoder encoder = Base64.getEncoder();
+        String line = user + ":" + ITERATIONS + ":" + encoder.encodeToString(salt) + ":"
+                + encoder.encodeToString(hash(password, salt, ITERATIONS)) + System.lineSeparator();
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Files.writeString(file, line, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private static byte[] hash(String password, byte[] salt, int iterations) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,502 @@
+package com.chat.tools;
+
+import com.chat.client.HeadlessClient;
+import com.chat.metrics.Histogram;
+import com.chat.network.EventLoopGroup;
+import com.chat.network.NamedThreadFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives a running ChatServer with simulated users: every user joins one of the load rooms and chats at a
+ * fixed rate, while a few transfer users upload and download files in a loop. Each message carries its send
+ * time, so every delivery yields an end-to-end latency. Reports latency percentiles, throughput and errors
+ * per interval and at the end. Soak mode runs for hours and also watches thread counts and heap after GC,
+ * locally and through the server's metrics endpoint, and exits with status 1 when either keeps growing.
+ * <p>
+ * The server must let the generator in: allow 127.0.0.1 in the access rules. Loopback connections are not
+ * rate limited; from another host, raise {@code chat.access.ratePerSecond} and {@code chat.access.burst}.
+ */
+public class LoadGenerator implements HeadlessClient.Listener {
+    private final static String MARKER = "#lg ";
+    private final static String ROOM_PREFIX = "load-";
+    private final static double[] PERCENTILES = {50, 90, 99, 99.9};
+    private final static long DRAIN_MILLIS = 2000;
+
+    private final String host;
+    private final int port;
+    private final int transferPort;
+    private final int users;
+    private final int rooms;
+    private final double messagesPerSecond;
+    private final int messageBytes;
+    private final long rampMillis;
+    private final long durationMillis;
+    private final long reportMillis;
+    private final int transferUsers;
+    private final int transferBytes;
+    private final long transferTimeoutMillis;
+    private final boolean soak;
+    private final String serverMetrics;
+    private final double leakThreshold;
+
+    private final EventLoopGroup eventLoops;
+    private final ScheduledExecutorService scheduler;
+    private final Map<HeadlessClient, Integer> joined;
+    private final Set<HeadlessClient> clients;
+    private final AtomicInteger[] roomMembers;
+    private final AtomicReference<Histogram> intervalLatency;
+    private final Histogram latency;
+    private final Histogram uploadLatency;
+    private final Histogram downloadLatency;
+    private final LongAdder sent;
+    private final LongAdder expected;
+    private final LongAdder received;
+    private final LongAdder transfers;
+    private final Map<String, LongAdder> errors;
+    private final List<Map<String, Long>> samples;
+    private final Path scratch;
+    private volatile boolean running;
+
+    LoadGenerator(String host, int port, int transferPort, int users, int rooms, double messagesPerSecond,
+                  int messageBytes, long rampMillis, long durationMillis, long reportMillis, int transferUsers,
+                  int transferBytes, long transferTimeoutMillis, boolean soak, String serverMetrics,
+                  double leakThreshold) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.transferPort = transferPort;
+        this.users = users;
+        this.rooms = Math.max(1, rooms);
+        this.messagesPerSecond = messagesPerSecond;
+        this.messageBytes = messageBytes;
+        this.rampMillis = rampMillis;
+        this.durationMillis = durationMillis;
+        this.reportMillis = reportMillis;
+        this.transferUsers = transferUsers;
+        this.transferBytes = transferBytes;
+        this.transferTimeoutMillis = transferTimeoutMillis;
+        this.soak = soak;
+        this.serverMetrics = serverMetrics;
+        this.leakThreshold = leakThreshold;
+        this.eventLoops = new EventLoopGroup(Integer.getInteger("chat.load.eventLoops",
+                Runtime.getRuntime().availableProcessors()));
+        this.scheduler = Executors.newScheduledThreadPool(Integer.getInteger("chat.load.senderThreads", 4),
+                new NamedThreadFactory("load-scheduler", false));
+        this.joined = new ConcurrentHashMap<>();
+        this.clients = ConcurrentHashMap.newKeySet();
+        this.roomMembers = new AtomicInteger[this.rooms];
+        for (int i = 0; i < this.rooms; i++) {
+            roomMembers[i] = new AtomicInteger();
+        }
+        this.intervalLatency = new AtomicReference<>(new Histogram());
+        this.latency = new Histogram();
+        this.uploadLatency = new Histogram();
+        this.downloadLatency = new Histogram();
+        this.sent = new LongAdder();
+        this.expected = new LongAdder();
+        this.received = new LongAdder();
+        this.transfers = new LongAdder();
+        this.errors = new ConcurrentHashMap<>();
+        this.samples = new ArrayList<>();
+        this.scratch = Files.createTempDirectory("chat-load");
+    }
+
+    static LoadGenerator fromProperties() throws IOException {
+        boolean soak = Boolean.getBoolean("chat.load.soak");
+        int users = Integer.getInteger("chat.load.users", 1000);
+        return new LoadGenerator(
+                System.getProperty("chat.load.host", "127.0.0.1"),
+                Integer.getInteger("chat.load.port", 7777),
+                Integer.getInteger("chat.load.transferPort", 11111),
+                users,
+                Integer.getInteger("chat.load.rooms", Math.max(1, users / 50)),
+                Double.parseDouble(System.getProperty("chat.load.messagesPerSecond", "1")),
+                Integer.getInteger("chat.load.messageBytes", 64),
+                TimeUnit.SECONDS.toMillis(Long.getLong("chat.load.rampSeconds", 10)),
+                TimeUnit.SECONDS.toMillis(Long.getLong("chat.load.durationSeconds", soak ? 4 * 3600 : 60)),
+                TimeUnit.SECONDS.toMillis(Long.getLong("chat.load.reportSeconds", soak ? 60 : 5)),
+                Integer.getInteger("chat.load.transferUsers", 4),
+                Integer.getInteger("chat.load.transferBytes", 1024 * 1024),
+                TimeUnit.SECONDS.toMillis(Long.getLong("chat.load.transferTimeoutSeconds", 120)),
+                soak,
+                System.getProperty("chat.load.serverMetrics", "http://127.0.0.1:9404/"),
+                Double.parseDouble(System.getProperty("chat.load.leakThreshold", "0.25")));
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.exit(fromProperties().run());
+    }
+
+    /**
+     * Runs the configured load and returns the process exit status: 0, or 1 when soak mode suspects a leak.
+     */
+    int run() throws InterruptedException {
+        running = true;
+        System.out.println(String.format(Locale.ROOT, "Load: %d users in %d rooms, %.2f msg/s each, %d transfer users,"
+                + " %d s%s", users, rooms, messagesPerSecond, transferUsers, durationMillis / 1000, soak ? ", soak" : ""));
+        sample();
+        for (int i = 0; i < users; i++) {
+            int user = i;
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    connect(user);
+                }
+            }, rampMillis * i / Math.max(1, users), TimeUnit.MILLISECONDS);
+        }
+        for (int i = 0; i < transferUsers; i++) {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    startTransfers();
+                }
+            }, rampMillis * i / Math.max(1, transferUsers), TimeUnit.MILLISECONDS);
+        }
+        long start = System.nanoTime();
+        long[] last = {start, 0, 0};
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report(start, last);
+            }
+        }, reportMillis, reportMillis, TimeUnit.MILLISECONDS);
+        Thread.sleep(durationMillis);
+        running = false;
+        Thread.sleep(DRAIN_MILLIS);
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        summary(start);
+        for (HeadlessClient client : clients) {
+            client.close();
+        }
+        eventLoops.shutdown();
+        boolean leak = soak && suspectLeak();
+        delete(scratch);
+        return leak ? 1 : 0;
+    }
+
+    private void connect(int user) {
+        if (!running) {
+            return;
+        }
+        try {
+            HeadlessClient client = new HeadlessClient(host, port, transferPort, this, eventLoops);
+            clients.add(client);
+            int room = user % rooms;
+            long period = Math.max(1, (long) (1_000_000 / messagesPerSecond));
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    if (!running || !clients.contains(client)) {
+                        // an exception is how a periodic task cancels itself
+                        throw new IllegalStateException("stopped");
+                    }
+                    Integer current = joined.get(client);
+                    if (current != null) {
+                        expected.add(roomMembers[current].get());
+                        sent.increment();
+                        client.send(message(user));
+                    }
+                }
+            }, ThreadLocalRandom.current().nextLong(period), period, TimeUnit.MICROSECONDS);
+            client.join(ROOM_PREFIX + room);
+        } catch (IOException e) {
+            error("connect");
+        }
+    }
+
+    private String message(int user) {
+        StringBuilder msg = new StringBuilder(messageBytes + 32).append(MARKER).append(System.nanoTime())
+                .append(" user").append(user).append(' ');
+        while (msg.length() < messageBytes) {
+            msg.append('x');
+        }
+        return msg.toString();
+    }
+
+    private void startTransfers() {
+        if (!running) {
+            return;
+        }
+        try {
+            HeadlessClient client = new HeadlessClient(host, port, transferPort, this, eventLoops);
+            clients.add(client);
+            transferLoop(client);
+        } catch (IOException e) {
+            error("connect");
+        }
+    }
+
+    /**
+     * Uploads a file of fresh random bytes, so deduplication cannot short-circuit it, downloads the
+     * stored copy back, then starts over until the run ends.
+     */
+    private void transferLoop(HeadlessClient client) {
+        if (!running || !clients.contains(client)) {
+            return;
+        }
+        Path upload = scratch.resolve("upload-" + System.identityHashCode(client) + "-" + System.nanoTime() + ".bin");
+        Path download = scratch.resolve(upload.getFileName() + ".down");
+        try {
+            byte[] content = new byte[transferBytes];
+            ThreadLocalRandom.current().nextBytes(content);
+            Files.write(upload, content);
+        } catch (IOException e) {
+            error("upload");
+            return;
+        }
+        long uploadStart = System.nanoTime();
+        long[] downloadStart = new long[1];
+        client.upload(upload)
+                .orTimeout(transferTimeoutMillis, TimeUnit.MILLISECONDS)
+                .thenCompose(stored -> {
+                    uploadLatency.recordSince(uploadStart);
+                    downloadStart[0] = System.nanoTime();
+                    return client.download(stored, download).orTimeout(transferTimeoutMillis, TimeUnit.MILLISECONDS);
+                })
+                .whenComplete((path, failure) -> {
+                    if (failure != null) {
+                        error(downloadStart[0] == 0 ? "upload" : "download");
+                    } else {
+                        downloadLatency.recordSince(downloadStart[0]);
+                        transfers.increment();
+                        try {
+                            if (Files.size(path) != transferBytes) {
+                                error("download.size");
+                            }
+                        } catch (IOException e) {
+                            error("download");
+                        }
+                    }
+                    try {
+                        Files.deleteIfExists(upload);
+                        Files.deleteIfExists(download);
+                    } catch (IOException e) {
+                        error("cleanup");
+                    }
+                    if (failure == null) {
+                        transferLoop(client);
+                    }
+                });
+    }
+
+    @Override
+    public void onReady(HeadlessClient client) {
+    }
+
+    @Override
+    public void onMessage(HeadlessClient client, String msg) {
+        int marker = msg.indexOf(MARKER);
+        if (marker >= 0) {
+            int from = marker + MARKER.length();
+            int to = msg.indexOf(' ', from);
+            try {
+                long nanos = System.nanoTime() - Long.parseLong(msg.substring(from, to < 0 ? msg.length() : to));
+                intervalLatency.get().record(nanos);
+                latency.record(nanos);
+                received.increment();
+            } catch (NumberFormatException e) {
+                error("message.corrupt");
+            }
+        } else if (msg.startsWith("`JOIN`" + ROOM_PREFIX)) {
+            int room = Integer.parseInt(msg.substring(("`JOIN`" + ROOM_PREFIX).length()));
+            if (joined.putIfAbsent(client, room) == null) {
+                roomMembers[room].incrementAndGet();
+                client.leave("general");
+            }
+        }
+    }
+
+    @Override
+    public void onClosed(HeadlessClient client) {
+        clients.remove(client);
+        Integer room = joined.remove(client);
+        if (room != null) {
+            roomMembers[room].decrementAndGet();
+        }
+        if (running) {
+            error("disconnect");
+        }
+    }
+
+    @Override
+    public void onError(HeadlessClient client, Exception e) {
+        error("exception");
+    }
+
+    private void error(String kind) {
+        errors.computeIfAbsent(kind, k -> new LongAdder()).increment();
+    }
+
+    private void report(long start, long[] last) {
+        long now = System.nanoTime();
+        long deliveries = received.sum();
+        long messages = sent.sum();
+        double seconds = (now - last[0]) / 1e9;
+        Histogram interval = intervalLatency.getAndSet(new Histogram());
+        System.out.println(String.format(Locale.ROOT, "[%6ds] users %d, sent %.0f msg/s, delivered %.0f msg/s, "
+                        + "latency %s, transfers %d, errors %s",
+                (now - start) / 1_000_000_000L, joined.size(), (messages - last[2]) / seconds,
+                (deliveries - last[1]) / seconds, percentiles(interval), transfers.sum(), errorSummary()));
+        last[0] = now;
+        last[1] = deliveries;
+        last[2] = messages;
+        if (soak) {
+            sample();
+        }
+    }
+
+    private void summary(long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long deliveries = received.sum();
+        long expectedDeliveries = expected.sum();
+        long errorCount = 0;
+        for (LongAdder count : errors.values()) {
+            errorCount += count.sum();
+        }
+        System.out.println("Summary");
+        System.out.println(String.format(Locale.ROOT, "  messages    %d sent, %d delivered of ~%d expected (%.2f%%)",
+                sent.sum(), deliveries, expectedDeliveries,
+                expectedDeliveries == 0 ? 100.0 : 100.0 * deliveries / expectedDeliveries));
+        System.out.println(String.format(Locale.ROOT, "  throughput  %.0f msg/s sent, %.0f deliveries/s",
+                sent.sum() / seconds, deliveries / seconds));
+        System.out.println("  latency     " + percentiles(latency));
+        System.out.println(String.format(Locale.ROOT, "  transfers   %d round trips of %d bytes, upload %s, download %s",
+                transfers.sum(), transferBytes, percentiles(uploadLatency), percentiles(downloadLatency)));
+        System.out.println(String.format(Locale.ROOT, "  errors      %d (%.3f%% of operations) %s", errorCount,
+                100.0 * errorCount / Math.max(1, sent.sum() + transfers.sum()), errorSummary()));
+    }
+
+    private static String percentiles(Histogram histogram) {
+        if (histogram.count() == 0) {
+            return "-";
+        }
+        StringBuilder text = new StringBuilder();
+        for (double percentile : PERCENTILES) {
+            text.append(String.format(Locale.ROOT, "p%s=%.2fms ", percentile == (long) percentile
+                    ? String.valueOf((long) percentile) : String.valueOf(percentile), histogram.percentile(percentile) / 1e6));
+        }
+        return text.append(String.format(Locale.ROOT, "max=%.2fms", histogram.max() / 1e6)).toString();
+    }
+
+    private String errorSummary() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : errors.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts.toString();
+    }
+
+    /**
+     * Records thread count and heap after GC for this process and, when reachable, the server.
+     */
+    private void sample() {
+        Map<String, Long> values = new HashMap<>();
+        values.put("local.threads", (long) ManagementFactory.getThreadMXBean().getThreadCount());
+        long heap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && usage != null) {
+                heap += usage.getUsed();
+            }
+        }
+        values.put("local.heap.after.gc", heap);
+        if (!serverMetrics.isEmpty()) {
+            try (InputStream in = new URL(serverMetrics).openStream()) {
+                for (String line : new String(in.readAllBytes(), StandardCharsets.UTF_8).split("\n")) {
+                    String[] parts = line.split(" ");
+                    if (parts.length == 2 && (parts[0].equals("jvm.threads") || parts[0].equals("jvm.heap.after.gc")
+                            || parts[0].equals("jvm.direct.used"))) {
+                        values.put("server." + parts[0].substring("jvm.".length()), Long.parseLong(parts[1]));
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                error("metrics.scrape");
+            }
+        }
+        if (soak && !samples.isEmpty()) {
+            System.out.println("  resources " + new TreeMap<>(values));
+        }
+        samples.add(values);
+    }
+
+    /**
+     * Compares the median of the first and last third of the samples; growth beyond the threshold (and a small
+     * absolute floor, so idle noise does not trip it) is reported as a suspected leak.
+     */
+    private boolean suspectLeak() {
+        if (samples.size() < 6) {
+            System.out.println("Soak: too few samples for a leak verdict");
+            return false;
+        }
+        int third = samples.size() / 3;
+        boolean leak = false;
+        for (String name : new TreeMap<>(samples.get(samples.size() - 1)).keySet()) {
+            long before = median(name, 1, 1 + third);
+            long after = median(name, samples.size() - third, samples.size());
+            long floor = name.endsWith("threads") ? 16 : 16L * 1024 * 1024;
+            boolean growing = after - before > floor && after > before * (1 + leakThreshold);
+            leak |= growing;
+            System.out.println(String.format(Locale.ROOT, "Soak: %-26s %14d -> %14d %s", name, before, after,
+                    growing ? "GROWING" : "stable"));
+        }
+        return leak;
+    }
+
+    private long median(String name, int from, int to) {
+        long[] values = new long[to - from];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            Long value = samples.get(i).get(name);
+            if (value != null) {
+                values[count++] = value;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        Arrays.sort(values, 0, count);
+        return values[count / 2];
+    }
+
+    private static void delete(Path directory) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            // temporary files only
+        }
+        try {
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            // temporary files only
+        }
+    }
+}
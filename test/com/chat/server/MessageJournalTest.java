@@ -0,0 +1,58 @@
+package com.chat.server;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Fills a journal past its size limit and checks that retention removes the old segment files from disk,
+ * leaving the remaining entries readable.
+ * Run with {@code java -cp out:test-out com.chat.server.MessageJournalTest}; it exits non-zero on failure.
+ */
+class MessageJournalTest {
+    private final static int SEGMENT_SIZE = 16 * 1024 * 1024;
+    private final static int MESSAGES = 15;
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("chat-journal-test");
+        MessageJournal journal = new MessageJournal(directory, 2L * SEGMENT_SIZE, Long.MAX_VALUE);
+        try {
+            String text = "x".repeat(5 * 1024 * 1024);
+            for (int i = 0; i < MESSAGES; i++) {
+                journal.append(RoomRegistry.DEFAULT_ROOM, i + text);
+            }
+            check(files(directory) > 2, "expected the journal to roll, found " + files(directory) + " segments");
+            long deadline = System.currentTimeMillis() + 10000;
+            while (files(directory) > 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            check(files(directory) <= 2, files(directory) + " segment files left after retention");
+            long first = journal.firstSequence();
+            check(first > 1, "first sequence still " + first);
+            List<MessageJournal.Entry> entries = journal.read(first - 1, MESSAGES);
+            check(entries.size() == MESSAGES - first + 1, "read " + entries.size() + " entries from " + first);
+            check(entries.get(0).text.startsWith(String.valueOf(first - 1)), "first entry is not message " + (first - 1));
+            System.out.println("MessageJournalTest: retention left " + files(directory) + " segments, first sequence "
+                    + first);
+        } finally {
+            journal.close();
+        }
+    }
+
+    private static int files(Path directory) throws Exception {
+        int count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.journal")) {
+            for (Path ignored : stream) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
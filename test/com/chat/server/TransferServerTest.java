@@ -0,0 +1,94 @@
+package com.chat.server;
+
+import com.chat.client.HeadlessClient;
+import com.chat.network.FileTransfer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs 50 uploads and 50 downloads at the same time through one engine and checks every file arrives intact.
+ * Run with {@code java -cp out:test-out com.chat.server.TransferServerTest}; it exits non-zero on failure.
+ */
+class TransferServerTest {
+    private final static int TRANSFERS = 50;
+    private final static int PORT = 17801;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("chat.file-transfer.max", String.valueOf(4 * TRANSFERS * TransferServer.STREAMS_PER_TRANSFER));
+        System.setProperty("chat.access.ratePerSecond", "100000");
+        System.setProperty("chat.access.burst", "100000");
+        Path home = Files.createTempDirectory("chat-transfer-test");
+        Files.writeString(home.resolve("access.rules"), "allow 127.0.0.0/8\n");
+        Path shared = Files.createDirectories(home.resolve("Files"));
+        Path local = Files.createTempDirectory("chat-transfer-local");
+        Random random = new Random(5);
+        List<Path> uploads = new ArrayList<>();
+        for (int i = 0; i < TRANSFERS; i++) {
+            byte[] content = new byte[(1 + random.nextInt(3)) * 1024 * 1024 + random.nextInt(4096)];
+            random.nextBytes(content);
+            uploads.add(Files.write(local.resolve("up-" + i + ".bin"), content));
+            Files.write(shared.resolve("down-" + i + ".bin"), content);
+        }
+        Properties properties = new Properties();
+        properties.setProperty("chat.home", home.toString());
+        properties.setProperty("chat.port", String.valueOf(PORT));
+        properties.setProperty("chat.transferPort", String.valueOf(PORT + 1));
+        properties.setProperty("chat.metrics.port", "0");
+        ChatEngine engine = new ChatEngine(ServerConfig.fromProperties(properties));
+        engine.start();
+        try {
+            Thread.sleep(500);
+            List<CompletableFuture<String>> stored = new ArrayList<>();
+            List<CompletableFuture<Path>> downloaded = new ArrayList<>();
+            for (int i = 0; i < TRANSFERS; i++) {
+                stored.add(client().upload(uploads.get(i)));
+                downloaded.add(client().download("down-" + i + ".bin", local.resolve("down-" + i + ".bin")));
+            }
+            for (int i = 0; i < TRANSFERS; i++) {
+                String name = stored.get(i).get(60, TimeUnit.SECONDS);
+                check(FileTransfer.sha256(shared.resolve(name)).equals(FileTransfer.sha256(uploads.get(i))),
+                        "upload " + i + " stored as " + name + " differs");
+                Path received = downloaded.get(i).get(60, TimeUnit.SECONDS);
+                check(FileTransfer.sha256(received).equals(FileTransfer.sha256(shared.resolve("down-" + i + ".bin"))),
+                        "download " + i + " differs");
+            }
+            System.out.println("TransferServerTest: " + TRANSFERS + " uploads and " + TRANSFERS + " downloads ok");
+        } finally {
+            engine.stop(1000);
+        }
+        System.exit(0);
+    }
+
+    private static HeadlessClient client() throws Exception {
+        return new HeadlessClient("127.0.0.1", PORT, PORT + 1, new HeadlessClient.Listener() {
+            @Override
+            public void onReady(HeadlessClient client) {
+            }
+
+            @Override
+            public void onMessage(HeadlessClient client, String msg) {
+            }
+
+            @Override
+            public void onClosed(HeadlessClient client) {
+            }
+
+            @Override
+            public void onError(HeadlessClient client, Exception e) {
+            }
+        }, null);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}